@@ -0,0 +1,382 @@
+package net.corda.parsedata.client;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.HistogramLogWriter;
+import org.HdrHistogram.Recorder;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Load generator for the Spring servers, replaying the scenario of springtest.sh
+ * (issue tokens, create an account, share it, send energy tokens to it, send tokens between accounts)
+ * at fixed rates against one or more servers per role.
+ *
+ * Scheduling is open-loop: each endpoint's requests are due at a fixed rate whether or not earlier ones have
+ * finished, and a request's latency is measured from when it was due rather than from when a thread got to send it.
+ * A slow server therefore shows as latency instead of as a lower request rate (no coordinated omission).
+ *
+ * Latencies are recorded in HDR histograms, one per endpoint: every second's histogram is appended to
+ * <out>/<endpoint>.hlog, and the percentile distribution of the whole run (after the warm-up) is written to
+ * <out>/<endpoint>.hgrm. Both can be plotted with the HdrHistogram tools.
+ * Failed requests (including timeouts) are recorded in histograms of their own, tagged "errors" in the .hlog
+ * and written to <out>/<endpoint>.errors.hgrm, so a server failing fast doesn't make the latencies look better.
+ *
+ * Usage: LoadGenerator [--key=value ...], with the defaults of the quickstart network:
+ *  --oem=localhost:10070            the servers of the OEM nodes, where the accounts live (comma separated)
+ *  --grid=localhost:10080           the servers of the grid nodes, which send energy tokens (comma separated)
+ *  --issuer=localhost:10090         the server of Parsedata, which issues tokens and sanctions the transfers
+ *  --duration=PT5M --warmup=PT30S   how long to run, of which the first part is left out of the totals
+ *  --accounts=10                    the accounts created on each OEM node for the traffic
+ *  --concurrency=64                 the most requests in flight at once (more wait, and their wait counts)
+ *  --connectTimeout=PT5S --readTimeout=PT2M   how long a request may take to connect, and then to be answered
+ *  --rate.<endpoint>=N              requests per second: issueTokens (0.2), createAccount (1), shareAccountInfo (1),
+ *                                   sendEnergyTokens (10), sendfromaccount (5); 0 leaves the endpoint out
+ *  --out=build/loadgen              where the histograms are written
+ */
+public class LoadGenerator {
+    private static final ObjectMapper objectMapper = new ObjectMapper();
+
+    // latencies are recorded in microseconds, up to an hour
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final Map<String, Double> DEFAULT_RATES = new LinkedHashMap<>();
+
+    static {
+        DEFAULT_RATES.put("issueTokens", 0.2);
+        DEFAULT_RATES.put("createAccount", 1.0);
+        DEFAULT_RATES.put("shareAccountInfo", 1.0);
+        DEFAULT_RATES.put("sendEnergyTokens", 10.0);
+        DEFAULT_RATES.put("sendfromaccount", 5.0);
+    }
+
+    private final List<String> oems;
+    private final List<String> grids;
+    private final String issuer;
+    private final Duration duration;
+    private final Duration warmup;
+    private final int accounts;
+    private final int connectTimeoutMillis;
+    private final int readTimeoutMillis;
+    private final Map<String, Double> rates = new LinkedHashMap<>();
+    private final File out;
+
+    // the X500 names of the nodes behind each server, from their /me endpoint
+    private final Map<String, String> names = new HashMap<>();
+    // per OEM server, the accounts on its node, all shared with every grid
+    private final Map<String, List<String>> accountsByOem = new LinkedHashMap<>();
+    private final AtomicLong sequence = new AtomicLong();
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+
+    private final ExecutorService workers;
+    private final Map<String, Endpoint> endpoints = new LinkedHashMap<>();
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                throw new IllegalArgumentException("Expected --key=value, got " + arg);
+            }
+            options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+        }
+        new LoadGenerator(options).run();
+    }
+
+    LoadGenerator(Map<String, String> options) {
+        oems = Arrays.asList(options.getOrDefault("oem", "localhost:10070").split(","));
+        grids = Arrays.asList(options.getOrDefault("grid", "localhost:10080").split(","));
+        issuer = options.getOrDefault("issuer", "localhost:10090");
+        duration = Duration.parse(options.getOrDefault("duration", "PT5M"));
+        warmup = Duration.parse(options.getOrDefault("warmup", "PT30S"));
+        accounts = Integer.parseInt(options.getOrDefault("accounts", "10"));
+        int concurrency = Integer.parseInt(options.getOrDefault("concurrency", "64"));
+        connectTimeoutMillis = (int) Duration.parse(options.getOrDefault("connectTimeout", "PT5S")).toMillis();
+        readTimeoutMillis = (int) Duration.parse(options.getOrDefault("readTimeout", "PT2M")).toMillis();
+        for (Map.Entry<String, Double> rate : DEFAULT_RATES.entrySet()) {
+            String value = options.get("rate." + rate.getKey());
+            rates.put(rate.getKey(), value == null ? rate.getValue() : Double.parseDouble(value));
+        }
+        out = new File(options.getOrDefault("out", "build/loadgen"));
+
+        // requests beyond the concurrency wait in the queue, which is part of their latency
+        workers = Executors.newFixedThreadPool(concurrency);
+        // keep a connection per worker to each server, instead of the default of 5
+        System.setProperty("http.maxConnections", Integer.toString(concurrency));
+    }
+
+    void run() throws Exception {
+        setup();
+        if (!out.isDirectory() && !out.mkdirs()) {
+            throw new IOException("Could not create " + out);
+        }
+
+        long start = System.nanoTime();
+        long warmupEnd = start + warmup.toNanos();
+        long end = start + warmup.toNanos() + duration.toNanos();
+        List<Thread> dispatchers = new ArrayList<>();
+        for (Map.Entry<String, Double> rate : rates.entrySet()) {
+            if (rate.getValue() > 0) {
+                Endpoint endpoint = new Endpoint(rate.getKey(), start);
+                endpoints.put(rate.getKey(), endpoint);
+                Thread dispatcher = new Thread(() -> dispatch(endpoint, rate.getValue(), start, end),
+                        "dispatch-" + rate.getKey());
+                dispatcher.start();
+                dispatchers.add(dispatcher);
+            }
+        }
+        System.out.printf("Running %s (after %s of warm-up) at %s requests per second%n", duration, warmup, rates);
+
+        while (System.nanoTime() < end) {
+            Thread.sleep(1000);
+            report(System.nanoTime() >= warmupEnd);
+        }
+        for (Thread dispatcher : dispatchers) {
+            dispatcher.join();
+        }
+        // wait for the requests still in flight, and count them in the last interval
+        workers.shutdown();
+        workers.awaitTermination(10, TimeUnit.MINUTES);
+        report(true);
+
+        System.out.println("\nTotals after the warm-up, in milliseconds:");
+        for (Endpoint endpoint : endpoints.values()) {
+            endpoint.close();
+            Histogram total = endpoint.total;
+            Histogram errors = endpoint.errorTotal;
+            System.out.printf("%-18s n=%-8d p50 %8.1f  p99 %8.1f  p999 %8.1f  max %8.1f   errors=%-6d p99 %8.1f%n",
+                    endpoint.name, total.getTotalCount(), total.getValueAtPercentile(50) / 1000.0,
+                    total.getValueAtPercentile(99) / 1000.0, total.getValueAtPercentile(99.9) / 1000.0,
+                    total.getMaxValue() / 1000.0, errors.getTotalCount(), errors.getValueAtPercentile(99) / 1000.0);
+        }
+        System.out.println("Histograms written to " + out.getAbsolutePath());
+    }
+
+    /**
+     * The scenario of springtest.sh, once per node: Parsedata issues tokens to every grid, every OEM node creates
+     * its accounts and shares them with every grid, and every grid funds them with energy tokens.
+     */
+    private void setup() throws IOException {
+        for (String server : concat(oems, grids, Collections.singletonList(issuer))) {
+            names.put(server, get(server, "/me").get("me").textValue());
+        }
+        for (String grid : grids) {
+            post(issuer, "/issueTokens", body("numberOfTokens", 1_000_000_000L, "nodeName", names.get(grid)));
+        }
+        for (String oem : oems) {
+            List<String> oemAccounts = new ArrayList<>();
+            for (int i = 0; i < accounts; i++) {
+                String account = "Load " + runId + " " + oems.indexOf(oem) + "-" + i;
+                post(oem, "/createAccount", body("acctName", account));
+                for (String grid : grids) {
+                    post(oem, "/shareAccountInfo", body("accountName", account, "nodeName", names.get(grid)));
+                    post(grid, "/sendEnergyTokens", sendEnergyTokens(account, 10_000));
+                }
+                oemAccounts.add(account);
+            }
+            accountsByOem.put(oem, oemAccounts);
+        }
+        System.out.printf("Set up %d accounts on each of %s%n", accounts, oems);
+    }
+
+    // requests are due every 1/rate seconds from the start, however long earlier ones take
+    private void dispatch(Endpoint endpoint, double rate, long start, long end) {
+        long interval = (long) (1e9 / rate);
+        for (long due = start; due < end; due += interval) {
+            long wait = due - System.nanoTime();
+            if (wait > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(wait);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            long requestDue = due;
+            workers.execute(() -> {
+                boolean failed = false;
+                try {
+                    send(endpoint.name);
+                } catch (IOException | RuntimeException e) {
+                    failed = true;
+                }
+                long latency = Math.min(HIGHEST_LATENCY_MICROS,
+                        TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - requestDue));
+                (failed ? endpoint.errorRecorder : endpoint.recorder).recordValue(latency);
+            });
+        }
+    }
+
+    private void send(String endpoint) throws IOException {
+        long n = sequence.incrementAndGet();
+        String oem = oems.get((int) (n % oems.size()));
+        String grid = grids.get((int) (n % grids.size()));
+        List<String> oemAccounts = accountsByOem.get(oem);
+        String account = oemAccounts.get((int) (n % oemAccounts.size()));
+        switch (endpoint) {
+            case "issueTokens":
+                post(issuer, "/issueTokens", body("numberOfTokens", 1000L, "nodeName", names.get(grid)));
+                break;
+            case "createAccount":
+                post(oem, "/createAccount", body("acctName", "Load " + runId + " new " + n));
+                break;
+            case "shareAccountInfo":
+                post(oem, "/shareAccountInfo", body("accountName", account, "nodeName", names.get(grid)));
+                break;
+            case "sendEnergyTokens":
+                post(grid, "/sendEnergyTokens", sendEnergyTokens(account, 1));
+                break;
+            case "sendfromaccount":
+                String to = oemAccounts.get((int) ((n + 1) % oemAccounts.size()));
+                post(oem, "/sendfromaccount", body(
+                        "sendToAccountName", to, "sendFromAccountName", account, "numberOfTokens", 1L));
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown endpoint " + endpoint);
+        }
+    }
+
+    private Map<String, Object> sendEnergyTokens(String account, long amount) {
+        // a distinct (hex) data hash per session, as the OEM would send
+        String hash = String.format("%016x%016x", runId.hashCode() & 0xffffffffL, sequence.incrementAndGet());
+        return body("numberOfTokens", amount, "sendToAccountName", account,
+                "sanctionsBody", names.get(issuer), "dataHash", hash, "note", "load test");
+    }
+
+    private void report(boolean measured) throws IOException {
+        StringBuilder line = new StringBuilder();
+        for (Endpoint endpoint : endpoints.values()) {
+            Histogram interval = endpoint.interval(measured);
+            line.append(String.format("%s %d/s p99 %.1f ms (%d errors)  ", endpoint.name, interval.getTotalCount(),
+                    interval.getValueAtPercentile(99) / 1000.0, endpoint.intervalErrors));
+        }
+        System.out.println((measured ? "" : "(warm-up) ") + line);
+    }
+
+    private JsonNode get(String server, String path) throws IOException {
+        HttpURLConnection connection = open(server, path);
+        connection.setRequestProperty("Content-Type", "application/json");
+        return objectMapper.readTree(read(connection, path));
+    }
+
+    private void post(String server, String path, Map<String, Object> body) throws IOException {
+        HttpURLConnection connection = open(server, path);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Content-Type", "application/json");
+        connection.setDoOutput(true);
+        try (OutputStream request = connection.getOutputStream()) {
+            objectMapper.writeValue(request, body);
+        }
+        read(connection, path);
+    }
+
+    // without timeouts, a server that stops answering would hold a worker, and its request's latency, forever
+    private HttpURLConnection open(String server, String path) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://" + server + path).openConnection();
+        connection.setConnectTimeout(connectTimeoutMillis);
+        connection.setReadTimeout(readTimeoutMillis);
+        return connection;
+    }
+
+    // reads the whole response, so the connection can be reused
+    private static String read(HttpURLConnection connection, String path) throws IOException {
+        int status = connection.getResponseCode();
+        InputStream stream = status < 400 ? connection.getInputStream() : connection.getErrorStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        if (stream != null) {
+            try (InputStream in = stream) {
+                byte[] buffer = new byte[8192];
+                for (int read; (read = in.read(buffer)) >= 0; ) {
+                    response.write(buffer, 0, read);
+                }
+            }
+        }
+        String body = new String(response.toByteArray(), StandardCharsets.UTF_8);
+        if (status >= 400) {
+            throw new IOException(path + " answered " + status + ": " + body);
+        }
+        return body;
+    }
+
+    // a JSON object from alternating keys and values
+    private static Map<String, Object> body(Object... keysAndValues) {
+        Map<String, Object> body = new LinkedHashMap<>();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            body.put((String) keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return body;
+    }
+
+    @SafeVarargs
+    private static List<String> concat(List<String>... lists) {
+        Set<String> all = new LinkedHashSet<>();
+        for (List<String> list : lists) {
+            all.addAll(list);
+        }
+        return new ArrayList<>(all);
+    }
+
+    /**
+     * The latencies of one endpoint's successful and failed requests. Workers record into the Recorders without
+     * locking; the reporter takes interval histograms from them every second, logs them, and adds them to the totals.
+     */
+    private class Endpoint {
+        private final String name;
+        private final Recorder recorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+        private final Histogram total = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        private final Recorder errorRecorder = new Recorder(HIGHEST_LATENCY_MICROS, 3);
+        private final Histogram errorTotal = new Histogram(HIGHEST_LATENCY_MICROS, 3);
+        private final PrintStream log;
+        private final HistogramLogWriter logWriter;
+        private Histogram recycled;
+        private Histogram recycledErrors;
+        // the failed requests of the last interval
+        private long intervalErrors;
+
+        Endpoint(String name, long startNanos) throws FileNotFoundException {
+            this.name = name;
+            this.log = new PrintStream(new FileOutputStream(new File(out, name + ".hlog")));
+            this.logWriter = new HistogramLogWriter(log);
+            long startMillis = System.currentTimeMillis() - TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startNanos);
+            logWriter.outputStartTime(startMillis);
+            logWriter.setBaseTime(startMillis);
+            logWriter.outputLogFormatVersion();
+            logWriter.outputLegend();
+        }
+
+        Histogram interval(boolean measured) {
+            Histogram interval = recorder.getIntervalHistogram(recycled);
+            recycled = interval;
+            Histogram errors = errorRecorder.getIntervalHistogram(recycledErrors);
+            recycledErrors = errors;
+            errors.setTag("errors");
+            intervalErrors = errors.getTotalCount();
+            logWriter.outputIntervalHistogram(interval);
+            logWriter.outputIntervalHistogram(errors);
+            if (measured) {
+                total.add(interval);
+                errorTotal.add(errors);
+            }
+            return interval;
+        }
+
+        void close() throws IOException {
+            log.close();
+            try (PrintStream distribution = new PrintStream(new FileOutputStream(new File(out, name + ".hgrm")))) {
+                // in milliseconds, like the summary
+                total.outputPercentileDistribution(distribution, 1000.0);
+            }
+            if (errorTotal.getTotalCount() > 0) {
+                File errorFile = new File(out, name + ".errors.hgrm");
+                try (PrintStream distribution = new PrintStream(new FileOutputStream(errorFile))) {
+                    errorTotal.outputPercentileDistribution(distribution, 1000.0);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package net.corda.parsedata.client.webserver;
+
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import net.corda.core.messaging.FlowHandle;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Keeps track of flows started by the asynchronous endpoints of the Controller.
+ * A flow is registered under its run ID as soon as it is started, and its entry is completed
+ * from the RPC client's callback when the flow finishes, so no servlet thread waits on it.
+ * Only the most recent MAX_ENTRIES flows are remembered.
+ */
+public class AsyncFlowRegistry {
+    static final int MAX_ENTRIES = 100_000;
+
+    public enum Status { RUNNING, SUCCEEDED, FAILED }
+
+    /**
+     * The state of one flow, as returned by the status endpoint.
+     */
+    @JsonPropertyOrder({"requestId", "status", "result", "error"})
+    public static class Entry {
+        private final String requestId;
+        private volatile Status status = Status.RUNNING;
+        private volatile Object result;
+        private volatile String error;
+        private final List<Consumer<Entry>> listeners = new ArrayList<>();
+
+        Entry(String requestId) {
+            this.requestId = requestId;
+        }
+
+        public String getRequestId() {
+            return requestId;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public Object getResult() {
+            return result;
+        }
+
+        public String getError() {
+            return error;
+        }
+
+        private void complete(Status status, Object result, String error) {
+            List<Consumer<Entry>> toNotify;
+            synchronized (this) {
+                this.result = result;
+                this.error = error;
+                this.status = status;
+                toNotify = new ArrayList<>(listeners);
+                listeners.clear();
+            }
+            toNotify.forEach(listener -> listener.accept(this));
+        }
+
+        /**
+         * Calls the listener once the flow has finished; straight away if it already has.
+         */
+        void whenDone(Consumer<Entry> listener) {
+            synchronized (this) {
+                if (status == Status.RUNNING) {
+                    listeners.add(listener);
+                    return;
+                }
+            }
+            listener.accept(this);
+        }
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Registers a started flow.
+     * @param handle the handle returned when the flow was started
+     * @param toResult turns the flow's return value into the result reported by the status endpoint
+     * @return the request ID (the flow's run ID) to look the flow up by
+     */
+    public <T> String register(FlowHandle<T> handle, Function<T, Object> toResult) {
+        String requestId = handle.getId().getUuid().toString();
+        Entry entry = new Entry(requestId);
+        synchronized (entries) {
+            entries.put(requestId, entry);
+        }
+        handle.getReturnValue().then(future -> {
+            try {
+                entry.complete(Status.SUCCEEDED, toResult.apply(future.get()), null);
+            } catch (ExecutionException e) {
+                entry.complete(Status.FAILED, null, String.valueOf(e.getCause()));
+            } catch (Exception e) {
+                entry.complete(Status.FAILED, null, String.valueOf(e));
+            }
+            return null;
+        });
+        return requestId;
+    }
+
+    /**
+     * @return the flow registered under this request ID, or null if it is unknown (or long forgotten)
+     */
+    public Entry get(String requestId) {
+        synchronized (entries) {
+            return entries.get(requestId);
+        }
+    }
+
+    /**
+     * @return the number of registered flows that are still running
+     */
+    public long running() {
+        synchronized (entries) {
+            return entries.values().stream().filter(entry -> entry.getStatus() == Status.RUNNING).count();
+        }
+    }
+}
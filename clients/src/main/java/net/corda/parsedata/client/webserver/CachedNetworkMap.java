@@ -0,0 +1,115 @@
+package net.corda.parsedata.client.webserver;
+
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A client-side copy of the node's network map, so the Controller can list peers and notaries
+ * and resolve X500 names to parties without an RPC round trip per request.
+ * It is loaded from networkMapFeed() when the Controller starts and kept current from the feed's updates.
+ * The notaries come from the network parameters, which can only change with a node restart, so they are read once.
+ * Until the feed is available, or if it fails, every read falls back to the RPC call it replaces.
+ */
+public class CachedNetworkMap {
+    private static final Logger logger = LoggerFactory.getLogger(CachedNetworkMap.class);
+
+    private final CordaRPCOps proxy;
+
+    // nodes by the name of their first legal identity, and parties by the name of every legal identity
+    private final Map<CordaX500Name, NodeInfo> nodes = new ConcurrentHashMap<>();
+    private final Map<CordaX500Name, Party> parties = new ConcurrentHashMap<>();
+    private volatile List<Party> notaries = Collections.emptyList();
+    private volatile boolean fed = false;
+
+    public CachedNetworkMap(CordaRPCOps proxy) {
+        this.proxy = proxy;
+        DataFeed<List<NodeInfo>, NetworkMapCache.MapChange> feed = proxy.networkMapFeed();
+        if (feed == null) {
+            return;
+        }
+        notaries = Collections.unmodifiableList(new ArrayList<>(proxy.notaryIdentities()));
+        feed.getSnapshot().forEach(this::add);
+        feed.getUpdates().subscribe(this::onChange, error -> {
+            logger.warn("Network map feed failed, resolving parties over RPC from now on", error);
+            fed = false;
+        });
+        fed = true;
+    }
+
+    /**
+     * @return every node on the network, including notaries and ourselves
+     */
+    public List<NodeInfo> nodes() {
+        return fed ? new ArrayList<>(nodes.values()) : proxy.networkMapSnapshot();
+    }
+
+    public List<Party> notaries() {
+        return fed ? notaries : proxy.notaryIdentities();
+    }
+
+    public boolean isNotary(NodeInfo nodeInfo) {
+        for (Party notary : notaries()) {
+            if (nodeInfo.isLegalIdentity(notary)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the party with this name, or null if there is no such node on the network
+     */
+    public Party wellKnownParty(CordaX500Name name) {
+        if (fed) {
+            Party party = parties.get(name);
+            if (party != null) {
+                return party;
+            }
+        }
+        // not (yet) in the feed, e.g. a node known to the identity service only
+        return proxy.wellKnownPartyFromX500Name(name);
+    }
+
+    private void onChange(NetworkMapCache.MapChange change) {
+        if (change instanceof NetworkMapCache.MapChange.Added) {
+            add(change.getNode());
+        } else if (change instanceof NetworkMapCache.MapChange.Removed) {
+            remove(change.getNode());
+        } else if (change instanceof NetworkMapCache.MapChange.Modified) {
+            remove(((NetworkMapCache.MapChange.Modified) change).getPreviousNode());
+            add(change.getNode());
+        }
+    }
+
+    private void add(NodeInfo nodeInfo) {
+        if (nodeInfo.getLegalIdentities().isEmpty()) {
+            return;
+        }
+        nodes.put(nodeInfo.getLegalIdentities().get(0).getName(), nodeInfo);
+        for (Party party : nodeInfo.getLegalIdentities()) {
+            parties.put(party.getName(), party);
+        }
+    }
+
+    private void remove(NodeInfo nodeInfo) {
+        if (nodeInfo.getLegalIdentities().isEmpty()) {
+            return;
+        }
+        nodes.remove(nodeInfo.getLegalIdentities().get(0).getName());
+        for (Party party : nodeInfo.getLegalIdentities()) {
+            parties.remove(party.getName());
+        }
+    }
+}
@@ -1,9 +1,11 @@
 package net.corda.parsedata.client.webserver;
 
+import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.SerializationFeature;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.fasterxml.jackson.datatype.jsr310.JavaTimeModule;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.FungibleTokenSchemaV1;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import net.corda.client.jackson.JacksonSupport;
 import net.corda.core.contracts.*;
@@ -16,21 +18,42 @@ import net.corda.core.node.services.vault.*;
 import net.corda.core.transactions.SignedTransaction;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import javax.servlet.http.HttpServletRequest;
+import javax.sql.DataSource;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
 import java.util.*;
 
+import net.corda.energy_cordapp.accountUtilities.BalanceSheetEntry;
 import net.corda.energy_cordapp.accountUtilities.CreateNewAccount;
+import net.corda.energy_cordapp.accountUtilities.CreateNewAccounts;
 import net.corda.energy_cordapp.accountUtilities.GetAccountBalance;
+import net.corda.energy_cordapp.accountUtilities.GetBalanceSheet;
 import net.corda.energy_cordapp.accountUtilities.ShareAccountTo;
+import net.corda.energy_cordapp.accountUtilities.ShareAccountsTo;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
 import net.corda.energy_cordapp.flows.A2ATokenTransferFlow;
 import net.corda.energy_cordapp.flows.EnergyTransferFlow;
+import net.corda.energy_cordapp.flows.GetFlowMetrics;
+import net.corda.energy_cordapp.flows.GetInteractionAnalytics;
+import net.corda.energy_cordapp.flows.GetSessionInclusionProof;
+import net.corda.energy_cordapp.flows.InteractionAnalytics;
 import net.corda.energy_cordapp.flows.IssueTokenFlow;
+import net.corda.energy_cordapp.flows.SessionAnchorFlow;
+import net.corda.energy_cordapp.flows.SessionInclusionProof;
+import net.corda.energy_cordapp.states.InteractionBatchSchemaV1;
+import net.corda.energy_cordapp.states.InteractionBatchState;
 import net.corda.energy_cordapp.states.InteractionDataSchemaV1;
 import net.corda.energy_cordapp.states.InteractionDataState;
 import org.bouncycastle.asn1.x500.X500Name;
@@ -44,12 +67,19 @@ import org.springframework.context.annotation.Configuration;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_SIZE;
 import static org.springframework.http.MediaType.APPLICATION_JSON_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_OCTET_STREAM_VALUE;
+import static org.springframework.http.MediaType.APPLICATION_STREAM_JSON_VALUE;
 import static org.springframework.http.MediaType.TEXT_PLAIN_VALUE;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
@@ -62,18 +92,49 @@ import org.springframework.web.bind.annotation.RestController;
 @RequestMapping("/") // The paths for HTTP requests are relative to this base path.
 public class Controller {
     private static final Logger logger = LoggerFactory.getLogger(RestController.class);
+    private final NodeRPCConnection rpc;
     private final CordaRPCOps proxy;
     private final CordaX500Name me;
 
-    // the database connection, if one is provided
-    private Connection dbConnection;
+    // the nodes, notaries and parties of the network, kept in memory from the network map feed
+    private final CachedNetworkMap networkMap;
+
+    // how many accounts the bulk endpoints hand to each flow, unless the request says otherwise
+    private static final int DEFAULT_BULK_CHUNK_SIZE = 100;
+
+    // how long /flowResult waits for a flow before answering that it is still running
+    private static final long FLOW_RESULT_TIMEOUT_MILLIS = 60_000;
+
+    // the response header carrying the token for the next page of a paged query
+    static final String CONTINUATION_TOKEN_HEADER = "Continuation-Token";
+
+    // flows started by the asynchronous endpoints
+    private final AsyncFlowRegistry asyncFlows = new AsyncFlowRegistry();
+
+    // how long a query on the node's database may run before it is cancelled
+    private static final int QUERY_TIMEOUT_SECONDS = 10;
+
+    // TRANSACTION_ID is of type VARCHAR(144)
+    private static final String TRANSACTION_DETAILS_SQL = "SELECT grid, oem, hash, linear_id, amount, note " +
+            "FROM INTERACTION_DATA_STATE_MODEL WHERE TRANSACTION_ID = ?";
+
+    // the pool of database connections, if one is provided
+    private DataSource dataSource;
+
+    // the request metrics collected by the GatewayMetrics filter, if it is installed
+    private GatewayMetrics metrics;
+
+    // the V2G data behind the interaction hashes, on the OEM and sanctions body servers
+    private InteractionDataStore interactionDataStore;
 
     // declaring a Jackson ObjecMapper
     ObjectMapper objectMapper;
 
     public Controller(NodeRPCConnection rpc) {
+        this.rpc = rpc;
         this.proxy = rpc.getProxy();
         this.me = proxy.nodeInfo().getLegalIdentities().get(0).getName();
+        this.networkMap = new CachedNetworkMap(proxy);
 
         // instantiating the Jackson ObjectMapper
         objectMapper = new ObjectMapper();
@@ -87,9 +148,7 @@ public class Controller {
     }
 
     private boolean isNotary(NodeInfo nodeInfo) {
-        return !proxy.notaryIdentities()
-                .stream().filter(el -> nodeInfo.isLegalIdentity(el))
-                .collect(Collectors.toList()).isEmpty();
+        return networkMap.isNotary(nodeInfo);
     }
 
     private boolean isMe(NodeInfo nodeInfo){
@@ -101,8 +160,18 @@ public class Controller {
     }
 
     @Autowired(required = false)
-    public void setDbConnection(Connection dbConnection) {
-        this.dbConnection = dbConnection;
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    @Autowired(required = false)
+    public void setMetrics(GatewayMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Autowired(required = false)
+    public void setInteractionDataStore(InteractionDataStore interactionDataStore) {
+        this.interactionDataStore = interactionDataStore;
     }
 
     @Configuration
@@ -143,7 +212,7 @@ public class Controller {
         HashMap<String, List<String>> myMap = new HashMap<>();
 
         // Find all nodes that are not notaries, ourself, or the network map.
-        Stream<NodeInfo> filteredNodes = proxy.networkMapSnapshot().stream()
+        Stream<NodeInfo> filteredNodes = networkMap.nodes().stream()
                 .filter(el -> !isNotary(el) && !isMe(el) && !isNetworkMap(el));
         // Get their names as strings
         List<String> nodeNames = filteredNodes.map(el -> el.getLegalIdentities().get(0).getName().toString())
@@ -155,7 +224,7 @@ public class Controller {
 
     @GetMapping(value = "/notaries", produces = TEXT_PLAIN_VALUE)
     private String notaries() {
-        return proxy.notaryIdentities().toString();
+        return networkMap.notaries().toString();
     }
 
     @GetMapping(value = "/flows", produces = TEXT_PLAIN_VALUE)
@@ -163,9 +232,82 @@ public class Controller {
         return proxy.registeredFlows().toString();
     }
 
-    @GetMapping(value = "/states", produces = TEXT_PLAIN_VALUE)
-    private String states() {
-        return proxy.vaultQuery(ContractState.class).getStates().toString();
+    // /states, /queryByDataHash and their streaming variants return one page of results at a time.
+    // pageSize (default 100, at most 1000) and sort ("asc" or "desc" by recorded time) pick the pages,
+    // and the Continuation-Token header of a response, if present, fetches the next page.
+    // Every page shows the states unconsumed when the first page was read, see VaultCursor.
+    // The /stream variants write every page as JSON lines as it is read, so memory stays flat however large the vault.
+
+    @GetMapping(value = "/states", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> states(@RequestParam(required = false) Integer pageSize,
+                                         @RequestParam(required = false) String sort,
+                                         @RequestParam(required = false) String continuationToken) throws IOException {
+        VaultCursor cursor = VaultCursor.of(continuationToken, pageSize, sort);
+        Vault.Page<ContractState> page = queryPage(allStates(), cursor, ContractState.class);
+        List<Object> objectList = new ArrayList<>(page.getStates().size());
+        for (int i = 0; i < page.getStates().size(); i++) {
+            objectList.add(describeState(page.getStates().get(i), page.getStatesMetadata().get(i)));
+        }
+        return withContinuation(ResponseEntity.status(HttpStatus.OK), cursor.next(page))
+                .body(objectMapper.writeValueAsString(objectList));
+    }
+
+    @GetMapping(value = "/states/stream", produces = APPLICATION_STREAM_JSON_VALUE)
+    public ResponseEntity<StreamingResponseBody> streamStates(@RequestParam(required = false) Integer pageSize,
+                                                              @RequestParam(required = false) String sort) {
+        VaultCursor first = VaultCursor.of(null, pageSize, sort);
+        StreamingResponseBody body = out -> {
+            for (VaultCursor cursor = first; cursor != null; ) {
+                Vault.Page<ContractState> page = queryPage(allStates(), cursor, ContractState.class);
+                for (int i = 0; i < page.getStates().size(); i++) {
+                    writeLine(out, describeState(page.getStates().get(i), page.getStatesMetadata().get(i)));
+                }
+                cursor = cursor.next(page);
+            }
+        };
+        return ResponseEntity.status(HttpStatus.OK).body(body);
+    }
+
+    /**
+     * Queries the vault for the page the cursor points at, among the states unconsumed at its snapshot.
+     */
+    private <T extends ContractState> Vault.Page<T> queryPage(QueryCriteria criteria, VaultCursor cursor, Class<T> type) {
+        return proxy.vaultQueryBy(cursor.restrict(criteria), cursor.paging(), cursor.sort(), type);
+    }
+
+    private static QueryCriteria allStates() {
+        // of any status, so the cursor can keep those consumed since its snapshot
+        return new QueryCriteria.VaultQueryCriteria().withStatus(Vault.StateStatus.ALL);
+    }
+
+    private ResponseEntity.BodyBuilder withContinuation(ResponseEntity.BodyBuilder response, VaultCursor next) {
+        return next == null ? response : response.header(CONTINUATION_TOKEN_HEADER, next.toToken());
+    }
+
+    private Map<String, Object> describeState(StateAndRef<? extends ContractState> stateAndRef, Vault.StateMetadata metadata) {
+        Map<String, Object> described = new LinkedHashMap<>();
+        described.put("ref", stateAndRef.getRef().toString());
+        described.put("contract", stateAndRef.getState().getContract());
+        described.put("recordedTime", metadata.getRecordedTime());
+        described.put("state", stateAndRef.getState().getData().toString());
+        return described;
+    }
+
+    @GetMapping(value = "/rpcStats", produces = APPLICATION_JSON_VALUE)
+    private List<Map<String, Object>> rpcStats() {
+        return rpc.getStats();
+    }
+
+    // this server's request rates, errors and latencies, in the Prometheus text format, for scraping
+    @GetMapping(value = "/metrics", produces = TEXT_PLAIN_VALUE)
+    private String metrics() {
+        return metrics == null ? "" : metrics.prometheusText();
+    }
+
+    // the node's flow step timings, in the Prometheus text format, for scraping
+    @GetMapping(value = "/flowMetrics", produces = TEXT_PLAIN_VALUE)
+    private String flowMetrics() throws ExecutionException, InterruptedException {
+        return waitForFlow(proxy.startFlowDynamic(GetFlowMetrics.class).getReturnValue());
     }
 
     @GetMapping(value = "/me",produces = APPLICATION_JSON_VALUE)
@@ -179,15 +321,15 @@ public class Controller {
 
     @PostMapping (value = "/issueTokens" , produces =  APPLICATION_JSON_VALUE , headers =  "Content-Type=application/json" )
     public ResponseEntity<String> issueTokens(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
         long amount = jsonObject.get("numberOfTokens").asLong();
         String recipient = jsonObject.get("nodeName").textValue();
 
         CordaX500Name partyX500Name = CordaX500Name.Companion.parse(recipient);
-        Party recipientParty = proxy.wellKnownPartyFromX500Name(partyX500Name);
+        Party recipientParty = networkMap.wellKnownParty(partyX500Name);
 
         try {
-            SignedTransaction result = proxy.startTrackedFlowDynamic(IssueTokenFlow.class,amount,recipientParty).getReturnValue().get();
+            SignedTransaction result = waitForFlow(proxy.startTrackedFlowDynamic(IssueTokenFlow.class,amount,recipientParty).getReturnValue());
             return ResponseEntity
                     .status(HttpStatus.CREATED)
                     .body(objectMapper.writeValueAsString(new Object(){
@@ -206,14 +348,37 @@ public class Controller {
 
     }
 
+    @PostMapping (value = "/issueTokensBatch" , produces =  APPLICATION_JSON_VALUE , headers =  "Content-Type=application/json" )
+    public ResponseEntity<String> issueTokensBatch(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
+        // {"recipients": [{"nodeName": ..., "numberOfTokens": ...}, ...]}, all issued in one transaction
+        ObjectNode jsonObject = parse(payload);
+        LinkedHashMap<Party, Long> amounts = new LinkedHashMap<>();
+        for (JsonNode recipient : jsonObject.get("recipients")) {
+            CordaX500Name partyX500Name = CordaX500Name.parse(recipient.get("nodeName").textValue());
+            Party recipientParty = networkMap.wellKnownParty(partyX500Name);
+            if (recipientParty == null) {
+                throw new IllegalArgumentException("Unknown node: " + partyX500Name);
+            }
+            // the same node listed twice is issued the sum of its amounts
+            amounts.merge(recipientParty, recipient.get("numberOfTokens").asLong(), Long::sum);
+        }
+
+        SignedTransaction result = waitForFlow(proxy.startTrackedFlowDynamic(IssueTokenFlow.class, amounts).getReturnValue());
+        return ResponseEntity
+                .status(HttpStatus.CREATED)
+                .body(objectMapper.writeValueAsString(new Object(){
+                    public String transactionHash = result.getId().toHexString();
+                }));
+    }
+
     @PostMapping (value = "/createAccount" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json" )
     public ResponseEntity<String> createNewAccount(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
 
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
         String name = jsonObject.get("acctName").textValue();
 
         try {
-            String result = proxy.startTrackedFlowDynamic(CreateNewAccount.class, name).getReturnValue().get();
+            String result = waitForFlow(proxy.startTrackedFlowDynamic(CreateNewAccount.class, name).getReturnValue());
 
             return ResponseEntity
                     .status(HttpStatus.CREATED)
@@ -229,16 +394,16 @@ public class Controller {
     @PostMapping (value = "shareAccountInfo" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json" )
     public ResponseEntity<String> shareAccountTo(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
 
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
 
         String acctNameShared = jsonObject.get("accountName").textValue();
         String shareTo = jsonObject.get("nodeName").textValue();
 
         CordaX500Name partyX500Name = CordaX500Name.parse(shareTo);
-        Party shareToParty = proxy.wellKnownPartyFromX500Name(partyX500Name);
+        Party shareToParty = networkMap.wellKnownParty(partyX500Name);
 
         try {
-            String result = proxy.startTrackedFlowDynamic(ShareAccountTo.class, acctNameShared, shareToParty).getReturnValue().get();
+            String result = waitForFlow(proxy.startTrackedFlowDynamic(ShareAccountTo.class, acctNameShared, shareToParty).getReturnValue());
             return ResponseEntity
                     .status(HttpStatus.CREATED)
                     .body("{}");
@@ -248,9 +413,112 @@ public class Controller {
         }
     }
 
+    @PostMapping (value = "/createAccounts" , produces = APPLICATION_STREAM_JSON_VALUE, headers =  "Content-Type=application/json" )
+    public ResponseEntity<StreamingResponseBody> createNewAccounts(@RequestBody String payload) throws IllegalArgumentException, IOException {
+        // {"acctNames": [...], "chunkSize": 100}; one line of progress is streamed back per chunk
+        ObjectNode jsonObject = parse(payload);
+        List<String> names = new ArrayList<>();
+        jsonObject.get("acctNames").forEach(name -> names.add(name.textValue()));
+        int chunkSize = jsonObject.has("chunkSize") ? jsonObject.get("chunkSize").asInt() : DEFAULT_BULK_CHUNK_SIZE;
+
+        StreamingResponseBody body = out -> {
+            for (int from = 0; from < names.size(); from += chunkSize) {
+                List<String> chunk = new ArrayList<>(names.subList(from, Math.min(names.size(), from + chunkSize)));
+                Map<String, String> created = awaitFlow(proxy.startTrackedFlowDynamic(CreateNewAccounts.class, chunk)
+                        .getReturnValue());
+                int done = from + chunk.size();
+                writeLine(out, new Object(){
+                    public final int accountsDone = done;
+                    public final int accountsTotal = names.size();
+                    public final Map<String, String> accounts = created;
+                });
+            }
+        };
+        return ResponseEntity.status(HttpStatus.CREATED).body(body);
+    }
+
+    @PostMapping (value = "/shareAccountsInfo" , produces = APPLICATION_STREAM_JSON_VALUE, headers =  "Content-Type=application/json" )
+    public ResponseEntity<StreamingResponseBody> shareAccountsTo(@RequestBody String payload) throws IllegalArgumentException, IOException {
+        // {"accountNames": [...], "nodeNames": [...], "chunkSize": 100}; one line of progress is streamed back per chunk
+        ObjectNode jsonObject = parse(payload);
+        List<String> names = new ArrayList<>();
+        jsonObject.get("accountNames").forEach(name -> names.add(name.textValue()));
+        List<Party> parties = new ArrayList<>();
+        for (JsonNode nodeName : jsonObject.get("nodeNames")) {
+            CordaX500Name partyX500Name = CordaX500Name.parse(nodeName.textValue());
+            Party party = networkMap.wellKnownParty(partyX500Name);
+            if (party == null) {
+                throw new IllegalArgumentException("Unknown node: " + partyX500Name);
+            }
+            parties.add(party);
+        }
+        int chunkSize = jsonObject.has("chunkSize") ? jsonObject.get("chunkSize").asInt() : DEFAULT_BULK_CHUNK_SIZE;
+
+        StreamingResponseBody body = out -> {
+            for (int from = 0; from < names.size(); from += chunkSize) {
+                List<String> chunk = new ArrayList<>(names.subList(from, Math.min(names.size(), from + chunkSize)));
+                awaitFlow(proxy.startTrackedFlowDynamic(ShareAccountsTo.class, chunk, parties).getReturnValue());
+                int done = from + chunk.size();
+                writeLine(out, new Object(){
+                    public final int accountsDone = done;
+                    public final int accountsTotal = names.size();
+                    public final int nodes = parties.size();
+                });
+            }
+        };
+        return ResponseEntity.status(HttpStatus.CREATED).body(body);
+    }
+
+    /**
+     * Parses a request's JSON body, timing it as the request's JSON phase for /metrics.
+     */
+    private ObjectNode parse(String payload) throws IOException {
+        long start = System.nanoTime();
+        try {
+            return objectMapper.readValue(payload, ObjectNode.class);
+        } finally {
+            GatewayMetrics.record(GatewayMetrics.Phase.JSON, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Waits for a flow's result, timing the wait as the request's flow phase for /metrics.
+     */
+    private static <T> T waitForFlow(Future<T> returnValue) throws ExecutionException, InterruptedException {
+        long start = System.nanoTime();
+        try {
+            return returnValue.get();
+        } finally {
+            GatewayMetrics.record(GatewayMetrics.Phase.FLOW, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Waits for a flow started from a streaming response, where only IOExceptions can be thrown.
+     */
+    private <T> T awaitFlow(Future<T> returnValue) throws IOException {
+        try {
+            return waitForFlow(returnValue);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Writes one JSON object as a line of a streaming response, and flushes it so the client sees progress straight away.
+     */
+    private void writeLine(OutputStream out, Object line) throws IOException {
+        out.write(objectMapper.writeValueAsBytes(line));
+        out.write('\n');
+        out.flush();
+    }
+
     @PostMapping (value = "sendEnergyTokens" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json")
     public ResponseEntity<String> sendEnergyTokens(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
 
         long amount = jsonObject.get("numberOfTokens").asLong();
 
@@ -261,18 +529,17 @@ public class Controller {
         String note = jsonObject.get("note").textValue();
 
         CordaX500Name sanctionsBodyX500Name = CordaX500Name.parse(sanctionsBody);
-        Party sanctionsBodyParty = proxy.wellKnownPartyFromX500Name(sanctionsBodyX500Name);
-        System.out.println(sanctionsBodyParty.toString());
+        Party sanctionsBodyParty = networkMap.wellKnownParty(sanctionsBodyX500Name);
 
         try {
-            SignedTransaction result = proxy.startTrackedFlowDynamic(
+            SignedTransaction result = waitForFlow(proxy.startTrackedFlowDynamic(
                     EnergyTransferFlow.SendEnergyTokens.class,
                     amount,
                     whereTo,
                     sanctionsBodyParty,
                     Hex.decode(hash),
                     note
-            ).getReturnValue().get();
+            ).getReturnValue());
             return ResponseEntity
                     .status(HttpStatus.CREATED)
                     .body(objectMapper.writeValueAsString(new Object(){
@@ -285,14 +552,188 @@ public class Controller {
         }
     }
 
+    // Anchors many sessions in one InteractionBatchState: the Merkle root over their data hashes,
+    // with /sessionProof proving any one of them was included
+    @PostMapping (value = "/anchorSessions" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json")
+    public ResponseEntity<String> anchorSessions(@RequestBody String payload) throws IllegalArgumentException, IOException, ExecutionException, InterruptedException {
+        // {"sanctionsBody": "O=...", "dataHashes": ["...", ...], "note": "..."}, note optional
+        ObjectNode jsonObject = parse(payload);
+        CordaX500Name sanctionsBodyX500Name = CordaX500Name.parse(jsonObject.get("sanctionsBody").textValue());
+        String note = jsonObject.has("note") ? jsonObject.get("note").textValue() : "";
+        JsonNode dataHashes = jsonObject.get("dataHashes");
+        List<byte[]> sessionHashes = new ArrayList<>(dataHashes.size());
+        for (JsonNode dataHash : dataHashes) {
+            sessionHashes.add(Hex.decode(dataHash.textValue()));
+        }
+        Party sanctionsBodyParty = networkMap.wellKnownParty(sanctionsBodyX500Name);
+
+        SignedTransaction result = waitForFlow(proxy.startTrackedFlowDynamic(
+                SessionAnchorFlow.AnchorSessions.class, sessionHashes, sanctionsBodyParty, note).getReturnValue());
+        InteractionBatchState batch = result.getTx().outputsOfType(InteractionBatchState.class).get(0);
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("transactionHash", result.getId().toHexString());
+        body.put("merkleRoot", Hex.toHexString(batch.getMerkleRoot()));
+        body.put("leafCount", batch.getLeafCount());
+        return ResponseEntity.status(HttpStatus.CREATED).body(objectMapper.writeValueAsString(body));
+    }
+
+    @GetMapping(path = "/sessionProof", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
+    public ResponseEntity<String> sessionProof(@RequestBody String payload) throws IOException, ExecutionException, InterruptedException {
+        // {"dataHash": "...", "merkleRoot": "..."}, merkleRoot optional only if the node keeps the session index
+        ObjectNode jsonObject = parse(payload);
+        byte[] dataHash = Hex.decode(jsonObject.get("dataHash").textValue());
+        byte[] merkleRoot = jsonObject.has("merkleRoot") ? Hex.decode(jsonObject.get("merkleRoot").textValue()) : null;
+
+        SessionInclusionProof proof = waitForFlow(proxy.startFlowDynamic(
+                GetSessionInclusionProof.class, dataHash, merkleRoot).getReturnValue());
+        if (proof == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("{}");
+        }
+        List<String> auditPath = new ArrayList<>(proof.getAuditPath().size());
+        for (byte[] hash : proof.getAuditPath()) {
+            auditPath.add(Hex.toHexString(hash));
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("dataHash", Hex.toHexString(proof.getSessionHash()));
+        body.put("merkleRoot", Hex.toHexString(proof.getMerkleRoot()));
+        body.put("leafIndex", proof.getLeafIndex());
+        body.put("leafCount", proof.getLeafCount());
+        body.put("auditPath", auditPath);
+        body.put("transactionHash", proof.getTransactionId().toHexString());
+        return ResponseEntity.status(HttpStatus.OK).body(objectMapper.writeValueAsString(body));
+    }
+
+    // checks a proof returned by /sessionProof, and whether its root is anchored on the ledger as far as this node knows
+    @PostMapping(path = "/verifySessionProof", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
+    public ResponseEntity<String> verifySessionProof(@RequestBody String payload) throws IOException, NoSuchFieldException {
+        ObjectNode jsonObject = parse(payload);
+        byte[] merkleRoot = Hex.decode(jsonObject.get("merkleRoot").textValue());
+        List<byte[]> auditPath = new ArrayList<>();
+        for (JsonNode hash : jsonObject.get("auditPath")) {
+            auditPath.add(Hex.decode(hash.textValue()));
+        }
+        boolean valid = SessionMerkleTree.verify(Hex.decode(jsonObject.get("dataHash").textValue()),
+                jsonObject.get("leafIndex").asInt(), jsonObject.get("leafCount").asInt(), auditPath, merkleRoot);
+
+        FieldInfo root = QueryCriteriaUtils.getField("merkleRoot", InteractionBatchSchemaV1.InteractionBatchModel.class);
+        QueryCriteria withRoot = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(root, merkleRoot));
+        boolean anchored = !proxy.vaultQueryBy(withRoot, new PageSpecification(DEFAULT_PAGE_NUM, 1),
+                new Sort(Collections.emptySet()), InteractionBatchState.class).getStates().isEmpty();
+
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("valid", valid);
+        body.put("anchored", anchored);
+        return ResponseEntity.status(HttpStatus.OK).body(objectMapper.writeValueAsString(body));
+    }
+
+    // The asynchronous endpoints below start the same flows as their synchronous counterparts,
+    // but answer 202 with a request ID straight away instead of holding a servlet thread until the flow ends.
+    // Poll /flowStatus/{requestId}, or wait on /flowResult/{requestId}, which doesn't hold a thread either.
+
+    @PostMapping (value = "/async/issueTokens" , produces =  APPLICATION_JSON_VALUE , headers =  "Content-Type=application/json" )
+    public ResponseEntity<String> issueTokensAsync(@RequestBody String payload) throws IllegalArgumentException, IOException {
+        ObjectNode jsonObject = parse(payload);
+        long amount = jsonObject.get("numberOfTokens").asLong();
+        CordaX500Name partyX500Name = CordaX500Name.parse(jsonObject.get("nodeName").textValue());
+        Party recipientParty = networkMap.wellKnownParty(partyX500Name);
+
+        return accepted(asyncFlows.register(
+                proxy.startFlowDynamic(IssueTokenFlow.class, amount, recipientParty),
+                Controller::transactionHashOf));
+    }
+
+    @PostMapping (value = "/async/createAccount" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json" )
+    public ResponseEntity<String> createNewAccountAsync(@RequestBody String payload) throws IllegalArgumentException, IOException {
+        ObjectNode jsonObject = parse(payload);
+        String name = jsonObject.get("acctName").textValue();
+
+        return accepted(asyncFlows.register(
+                proxy.startFlowDynamic(CreateNewAccount.class, name),
+                uuid -> Collections.singletonMap("UUID", uuid)));
+    }
+
+    @PostMapping (value = "/async/sendEnergyTokens" , produces =  APPLICATION_JSON_VALUE, headers =  "Content-Type=application/json")
+    public ResponseEntity<String> sendEnergyTokensAsync(@RequestBody String payload) throws IllegalArgumentException, IOException {
+        ObjectNode jsonObject = parse(payload);
+        long amount = jsonObject.get("numberOfTokens").asLong();
+        String whereTo = jsonObject.get("sendToAccountName").textValue();
+        CordaX500Name sanctionsBodyX500Name = CordaX500Name.parse(jsonObject.get("sanctionsBody").textValue());
+        String hash = jsonObject.get("dataHash").textValue();
+        String note = jsonObject.has("note") ? jsonObject.get("note").textValue() : "";
+        Party sanctionsBodyParty = networkMap.wellKnownParty(sanctionsBodyX500Name);
+
+        return accepted(asyncFlows.register(
+                proxy.startFlowDynamic(
+                        EnergyTransferFlow.SendEnergyTokens.class,
+                        amount,
+                        whereTo,
+                        sanctionsBodyParty,
+                        Hex.decode(hash),
+                        note
+                ),
+                Controller::transactionHashOf));
+    }
+
+    @PostMapping(path = "/async/sendfromaccount", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
+    public ResponseEntity<String> a2aTokenTransferFlowAsync(@RequestBody String payload) throws IOException {
+        ObjectNode jsonObject = parse(payload);
+        String whereTo = jsonObject.get("sendToAccountName").textValue();
+        String whereFrom = jsonObject.get("sendFromAccountName").textValue();
+        long amount = jsonObject.get("numberOfTokens").asLong();
+
+        return accepted(asyncFlows.register(
+                proxy.startFlowDynamic(A2ATokenTransferFlow.SendEnergyTokens.class, whereTo, whereFrom, amount),
+                Controller::transactionHashOf));
+    }
+
+    @GetMapping(path = "/flowStatus/{requestId}", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> flowStatus(@PathVariable String requestId) throws IOException {
+        AsyncFlowRegistry.Entry entry = asyncFlows.get(requestId);
+        if (entry == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).body("{}");
+        }
+        return ResponseEntity.status(HttpStatus.OK).body(objectMapper.writeValueAsString(entry));
+    }
+
+    @GetMapping(path = "/flowResult/{requestId}", produces = APPLICATION_JSON_VALUE)
+    public DeferredResult<ResponseEntity<String>> flowResult(@PathVariable String requestId) {
+        // completed from the RPC callback when the flow ends; until then no servlet thread is held
+        DeferredResult<ResponseEntity<String>> deferred = new DeferredResult<>(FLOW_RESULT_TIMEOUT_MILLIS,
+                ResponseEntity.status(HttpStatus.ACCEPTED).body("{\"status\":\"RUNNING\"}"));
+        AsyncFlowRegistry.Entry entry = asyncFlows.get(requestId);
+        if (entry == null) {
+            deferred.setResult(ResponseEntity.status(HttpStatus.NOT_FOUND).body("{}"));
+            return deferred;
+        }
+        entry.whenDone(done -> {
+            try {
+                HttpStatus status = done.getStatus() == AsyncFlowRegistry.Status.SUCCEEDED
+                        ? HttpStatus.OK : HttpStatus.INTERNAL_SERVER_ERROR;
+                deferred.setResult(ResponseEntity.status(status).body(objectMapper.writeValueAsString(done)));
+            } catch (IOException e) {
+                deferred.setErrorResult(e);
+            }
+        });
+        return deferred;
+    }
+
+    private ResponseEntity<String> accepted(String requestId) throws IOException {
+        return ResponseEntity
+                .status(HttpStatus.ACCEPTED)
+                .body(objectMapper.writeValueAsString(Collections.singletonMap("requestId", requestId)));
+    }
+
+    private static Object transactionHashOf(SignedTransaction transaction) {
+        return Collections.singletonMap("transactionHash", transaction.getId().toHexString());
+    }
+
     @GetMapping(path="/accountTokenBalance", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
     public ResponseEntity<String> getAccountBalance(@RequestBody String payload) throws IOException, ExecutionException, InterruptedException {
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
         String account = jsonObject.get("account").textValue();
         try {
-            Long balance = proxy.startTrackedFlowDynamic(GetAccountBalance.class, account)
-                    .getReturnValue()
-                    .get();
+            Long balance = waitForFlow(proxy.startTrackedFlowDynamic(GetAccountBalance.class, account)
+                    .getReturnValue());
             return ResponseEntity
                     .status(HttpStatus.OK)
                     .body(objectMapper.writeValueAsString(new Object(){
@@ -311,18 +752,18 @@ public class Controller {
 
     @PostMapping(path = "/sendfromaccount", produces = TEXT_PLAIN_VALUE, headers = "Content-Type=application/json")
     public ResponseEntity<String> a2aTokenTransferFlow(@RequestBody String payload) throws IOException, InterruptedException, ExecutionException {
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
         String whereTo = jsonObject.get("sendToAccountName").textValue();
         String whereFrom = jsonObject.get("sendFromAccountName").textValue();
         long amount = jsonObject.get("numberOfTokens").asLong();
 
         try {
-            SignedTransaction transaction = proxy.startTrackedFlowDynamic(
+            SignedTransaction transaction = waitForFlow(proxy.startTrackedFlowDynamic(
                     A2ATokenTransferFlow.SendEnergyTokens.class,
                     whereTo,
                     whereFrom,
                     amount
-            ).getReturnValue().get();
+            ).getReturnValue());
             return ResponseEntity
                     .status(HttpStatus.OK)
                     .body(objectMapper.writeValueAsString(new Object(){
@@ -341,13 +782,12 @@ public class Controller {
 
     @GetMapping(value = "/networkmap", produces = APPLICATION_JSON_VALUE)
     public ResponseEntity<List<String>> getNodeList() {
-        List<NodeInfo> nodes = proxy.networkMapSnapshot();
-        System.out.println("number of nodes: " + nodes.size());
+        List<NodeInfo> nodes = networkMap.nodes();
+        logger.debug("number of nodes: {}", nodes.size());
         List<String> nodeNames = new ArrayList<>(nodes.size());
-        System.out.println("number of node names: " + nodeNames.size());
         for (int i=0; i<nodes.size(); i++) {
             if (nodes.get(i).getLegalIdentities().size() == 0) {
-                System.out.println("#" + i + " node has no legal identities!");
+                logger.warn("#{} node has no legal identities!", i);
             }
             nodeNames.add(i, nodes.get(i).getLegalIdentities().get(0).getName().toString());
         }
@@ -357,45 +797,76 @@ public class Controller {
     }
 
     @GetMapping(value = "/nodeTokenBalance", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
-    public ResponseEntity<String> getNodeBalance() {
-        Vault.Page<FungibleToken> statesPage = proxy.vaultQuery(FungibleToken.class);
-        List<StateAndRef<FungibleToken>> states = statesPage.getStates();
-        if (states.size()==0) {
+    public ResponseEntity<String> getNodeBalance() throws NoSuchFieldException {
+        // let the vault SUM the token amounts instead of loading every state (and being cut off at the default page size)
+        FieldInfo amount = QueryCriteriaUtils.getField("amount", FungibleTokenSchemaV1.PersistentFungibleToken.class);
+        QueryCriteria sumOfAmounts = new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(amount));
+        // the sum is a single row, but without a page specification the vault refuses queries over more states than a page
+        List<Object> sum = proxy.vaultQueryBy(sumOfAmounts, new PageSpecification(DEFAULT_PAGE_NUM, DEFAULT_PAGE_SIZE),
+                new Sort(Collections.emptySet()), FungibleToken.class).getOtherResults();
+        if (sum.isEmpty() || sum.get(0) == null) {
             return ResponseEntity.status(HttpStatus.OK).body("{\"tokenBalance\":0}");
         }
-        long size = 0;
-        for (StateAndRef<FungibleToken> state : states) {
-            size += state.getState().getData().getAmount().getQuantity();
-        }
+        long size = ((Number) sum.get(0)).longValue();
         return ResponseEntity.status(HttpStatus.OK).body("{\"tokenBalance\":"+size+"}");
     }
 
+    @GetMapping(value = "/balanceSheet", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getBalanceSheet() throws IOException, ExecutionException, InterruptedException {
+        // one grouped query on the node, by holder, account, token type and issuer
+        List<BalanceSheetEntry> sheet = waitForFlow(proxy.startTrackedFlowDynamic(GetBalanceSheet.class)
+                .getReturnValue());
+        return ResponseEntity.status(HttpStatus.OK)
+                .body(objectMapper.writeValueAsString(sheet));
+    }
+
+    @GetMapping(value = "/analytics/interactions", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getInteractionAnalytics(@RequestParam(required = false) String from,
+                                                          @RequestParam(required = false) String to,
+                                                          @RequestParam(defaultValue = "hour") String bucket,
+                                                          @RequestParam(defaultValue = "grid,oem") String groupBy)
+            throws IOException, ExecutionException, InterruptedException {
+        // from and to are ISO instants, by default the last day; bucket is hour, day or a number of seconds;
+        // groupBy lists the dimensions of the series (grid, oem, both or neither)
+        Instant end = to == null ? Instant.now() : Instant.parse(to);
+        Instant start = from == null ? end.minus(Duration.ofDays(1)) : Instant.parse(from);
+        long bucketSeconds = bucket.equals("hour") ? 3600 : bucket.equals("day") ? 86400 : Long.parseLong(bucket);
+        List<String> dimensions = Arrays.asList(groupBy.split(","));
+
+        InteractionAnalytics analytics = waitForFlow(proxy.startTrackedFlowDynamic(GetInteractionAnalytics.class,
+                start, end, bucketSeconds, dimensions.contains("grid"), dimensions.contains("oem"))
+                .getReturnValue());
+        return ResponseEntity.status(HttpStatus.OK)
+                .body(objectMapper.writeValueAsString(analytics));
+    }
+
     @GetMapping(path = "/transactionDetails", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
     public ResponseEntity<String> getTransactionDetails(@RequestBody String payload) throws IOException, NoSuchFieldException, SQLException, IllegalAccessException {
-        if (dbConnection == null) {
+        if (dataSource == null) {
             throw new IllegalAccessException("No database connection exists. Consider calling /queryByDataHash");
         }
 
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
+        ObjectNode jsonObject = parse(payload);
         String transactionHash = jsonObject.get("transactionHash").textValue();
 
-        Statement statement = dbConnection.createStatement();
-        // TRANSACTION_ID is of type VARCHAR(144)
-        ResultSet resultSet = statement.executeQuery("SELECT * FROM " +
-                "INTERACTION_DATA_STATE_MODEL WHERE TRANSACTION_ID='"+transactionHash+"';");
-
-        // TODO: make the response an object or array of objects, add all instead of just one
-
         List<Object> objectList = new LinkedList<>();
-        while(resultSet.next()) {
-            objectList.add(new Object(){
-                public final String sender = resultSet.getString("grid");
-                public final String receiver = resultSet.getString("oem");
-                public final String dataHash = new String(Hex.encode(resultSet.getBytes("hash")));
-                public final String linearId = new String(Hex.encode(resultSet.getBytes("linear_id")));
-                public final long numberOfTokens = resultSet.getLong("amount");
-                public final String note = resultSet.getString("note");
-            });
+        // borrow a pooled connection, and give it back with its statement and result set closed
+        try (Connection connection = dataSource.getConnection();
+             PreparedStatement statement = connection.prepareStatement(TRANSACTION_DETAILS_SQL)) {
+            statement.setQueryTimeout(QUERY_TIMEOUT_SECONDS);
+            statement.setString(1, transactionHash);
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    objectList.add(new Object() {
+                        public final String sender = resultSet.getString("grid");
+                        public final String receiver = resultSet.getString("oem");
+                        public final String dataHash = new String(Hex.encode(resultSet.getBytes("hash")));
+                        public final String linearId = new String(Hex.encode(resultSet.getBytes("linear_id")));
+                        public final long numberOfTokens = resultSet.getLong("amount");
+                        public final String note = resultSet.getString("note");
+                    });
+                }
+            }
         }
 
         return ResponseEntity.status(HttpStatus.OK)
@@ -404,28 +875,124 @@ public class Controller {
 
     @GetMapping(path = "/queryByDataHash", produces = APPLICATION_JSON_VALUE, headers = "Content-Type=application/json")
     public ResponseEntity<String> queryByDataHash(@RequestBody String payload) throws NoSuchFieldException, IOException {
-        ObjectNode jsonObject = objectMapper.readValue(payload, ObjectNode.class);
-        String targetDataHash = jsonObject.get("dataHash").textValue();
-        FieldInfo dataHash = QueryCriteriaUtils.getField("hash", InteractionDataSchemaV1.InteractionDataModel.class);
-        CriteriaExpression<Object, Boolean> dataHashExpression = Builder.equal(dataHash, Hex.decode(targetDataHash));
-        QueryCriteria withDataHash = new QueryCriteria.VaultCustomQueryCriteria(dataHashExpression);
-        Vault.Page<ContractState> resultPage = proxy.vaultQueryByCriteria(withDataHash, InteractionDataState.class);
+        // {"dataHash": "...", "pageSize": 100, "sort": "asc", "continuationToken": "..."}, all but dataHash optional
+        ObjectNode jsonObject = parse(payload);
+        QueryCriteria withDataHash = dataHashCriteria(jsonObject.get("dataHash").textValue());
+        VaultCursor cursor = VaultCursor.of(
+                jsonObject.has("continuationToken") ? jsonObject.get("continuationToken").textValue() : null,
+                jsonObject.has("pageSize") ? jsonObject.get("pageSize").asInt() : null,
+                jsonObject.has("sort") ? jsonObject.get("sort").textValue() : null);
+        Vault.Page<InteractionDataState> resultPage = queryPage(withDataHash, cursor, InteractionDataState.class);
 
         ArrayList<Object> objectList = new ArrayList<>(resultPage.getStates().size());
         for (int i = 0; i < resultPage.getStates().size(); i++) {
-            Vault.StateMetadata metadata = resultPage.getStatesMetadata().get(0);
-            InteractionDataState state = (InteractionDataState) resultPage.getStates().get(0).getState().getData();
-            //StateRef ref = resultPage.getStates().get(0).getRef();
-            objectList.add(i, new Object(){
-                public final Instant timeStamp = metadata.getRecordedTime();
-                public final String sender = state.getGrid().getName().getX500Principal().getName();
-                public final String receiver = state.getOem().getName().getX500Principal().getName();
-                public final long numberOfTokensTransferred = state.getAmount();
-                public final String note = state.getNote();
-            });
+            objectList.add(describeInteraction(resultPage.getStates().get(i), resultPage.getStatesMetadata().get(i)));
         }
 
-        return ResponseEntity.status(HttpStatus.OK)
+        return withContinuation(ResponseEntity.status(HttpStatus.OK), cursor.next(resultPage))
                 .body(objectMapper.writeValueAsString(objectList));
     }
+
+    @GetMapping(path = "/queryByDataHash/stream", produces = APPLICATION_STREAM_JSON_VALUE, headers = "Content-Type=application/json")
+    public ResponseEntity<StreamingResponseBody> streamByDataHash(@RequestBody String payload) throws NoSuchFieldException, IOException {
+        // {"dataHash": "...", "pageSize": 100, "sort": "asc"}, all but dataHash optional
+        ObjectNode jsonObject = parse(payload);
+        QueryCriteria withDataHash = dataHashCriteria(jsonObject.get("dataHash").textValue());
+        VaultCursor first = VaultCursor.of(null,
+                jsonObject.has("pageSize") ? jsonObject.get("pageSize").asInt() : null,
+                jsonObject.has("sort") ? jsonObject.get("sort").textValue() : null);
+
+        StreamingResponseBody body = out -> {
+            for (VaultCursor cursor = first; cursor != null; ) {
+                Vault.Page<InteractionDataState> page = queryPage(withDataHash, cursor, InteractionDataState.class);
+                for (int i = 0; i < page.getStates().size(); i++) {
+                    writeLine(out, describeInteraction(page.getStates().get(i), page.getStatesMetadata().get(i)));
+                }
+                cursor = cursor.next(page);
+            }
+        };
+        return ResponseEntity.status(HttpStatus.OK).body(body);
+    }
+
+    /**
+     * Stores the V2G data behind an interaction's hash, streaming the request body into the interaction data store.
+     * The body's length must be known up front; dataHash, if given, is checked against the body's SHA-256
+     * and lets the server skip data it already has.
+     */
+    @PostMapping(path = "/interactionData", consumes = APPLICATION_OCTET_STREAM_VALUE, produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> storeInteractionData(HttpServletRequest request,
+                                                       @RequestParam(value = "dataHash", required = false) String dataHash)
+            throws IOException, IllegalAccessException {
+        InteractionDataStore store = interactionDataStore();
+        long length = request.getContentLengthLong();
+        if (length < 0) {
+            return ResponseEntity.status(HttpStatus.LENGTH_REQUIRED).body("{}");
+        }
+        if (length > store.maxPayloadSize()) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE).body("{}");
+        }
+
+        InteractionDataStore.Stored stored;
+        try (InputStream body = request.getInputStream()) {
+            stored = store.put(body, length, dataHash == null ? null : Hex.decode(dataHash));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.status(HttpStatus.BAD_REQUEST)
+                    .body(objectMapper.writeValueAsString(Collections.singletonMap("error", e.getMessage())));
+        }
+        Map<String, Object> body = new LinkedHashMap<>();
+        body.put("dataHash", Hex.toHexString(stored.getHash()));
+        body.put("size", stored.getSize());
+        return ResponseEntity.status(stored.isCreated() ? HttpStatus.CREATED : HttpStatus.OK)
+                .body(objectMapper.writeValueAsString(body));
+    }
+
+    /**
+     * Returns the V2G data behind an interaction's hash, streamed from the interaction data store.
+     */
+    @GetMapping(path = "/interactionData/{dataHash}", produces = APPLICATION_OCTET_STREAM_VALUE)
+    public ResponseEntity<StreamingResponseBody> getInteractionData(@PathVariable String dataHash) throws IllegalAccessException {
+        ByteBuffer payload = interactionDataStore().get(Hex.decode(dataHash));
+        if (payload == null) {
+            return ResponseEntity.status(HttpStatus.NOT_FOUND).build();
+        }
+        // the payload is a view of the store's mapped segment, so it is never copied onto the heap in full
+        StreamingResponseBody body = out -> {
+            WritableByteChannel channel = Channels.newChannel(out);
+            while (payload.hasRemaining()) {
+                channel.write(payload);
+            }
+        };
+        return ResponseEntity.status(HttpStatus.OK).contentLength(payload.remaining()).body(body);
+    }
+
+    @GetMapping(path = "/interactionData/stats", produces = APPLICATION_JSON_VALUE)
+    public ResponseEntity<String> getInteractionDataStats() throws IOException, IllegalAccessException {
+        return ResponseEntity.status(HttpStatus.OK)
+                .body(objectMapper.writeValueAsString(interactionDataStore().stats()));
+    }
+
+    private InteractionDataStore interactionDataStore() throws IllegalAccessException {
+        if (interactionDataStore == null) {
+            throw new IllegalAccessException("No interaction data store exists. Consider setting config.store.dir");
+        }
+        return interactionDataStore;
+    }
+
+    private QueryCriteria dataHashCriteria(String targetDataHash) throws NoSuchFieldException {
+        FieldInfo dataHash = QueryCriteriaUtils.getField("hash", InteractionDataSchemaV1.InteractionDataModel.class);
+        CriteriaExpression<Object, Boolean> dataHashExpression = Builder.equal(dataHash, Hex.decode(targetDataHash));
+        // of any status, so a VaultCursor can keep those consumed since its snapshot
+        return new QueryCriteria.VaultCustomQueryCriteria(dataHashExpression, Vault.StateStatus.ALL);
+    }
+
+    private Object describeInteraction(StateAndRef<InteractionDataState> stateAndRef, Vault.StateMetadata metadata) {
+        InteractionDataState state = stateAndRef.getState().getData();
+        return new Object(){
+            public final Instant timeStamp = metadata.getRecordedTime();
+            public final String sender = state.getGrid().getName().getX500Principal().getName();
+            public final String receiver = state.getOem().getName().getX500Principal().getName();
+            public final long numberOfTokensTransferred = state.getAmount();
+            public final String note = state.getNote();
+        };
+    }
 }
\ No newline at end of file
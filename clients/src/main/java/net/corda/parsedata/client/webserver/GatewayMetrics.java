@@ -0,0 +1,225 @@
+package net.corda.parsedata.client.webserver;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+import org.springframework.web.servlet.HandlerMapping;
+
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Request rates, error rates and latencies of the Spring server, per endpoint, served at /metrics.
+ * Each request's time is split into phases: parsing its JSON body, RPC calls to the node, and waiting for flows
+ * to complete. Whatever is left of the total is the gateway's own time (routing, rendering the response, ...),
+ * so a growing remainder points at the gateway rather than the node as the bottleneck.
+ *
+ * The phases are added up per thread while the request runs: the Controller times JSON parsing and flows,
+ * and NodeRPCConnection times every RPC call.
+ * A request that goes asynchronous (/flowResult, and the streaming endpoints) is recorded when its response
+ * completes, with the status it completed with, since the filter is not run again for the async dispatch.
+ * The work done for it on other threads counts towards its total but not towards its phases.
+ * Latencies are recorded into HdrHistogram Recorders, which writers never wait on; a scrape collects them.
+ */
+@Component
+public class GatewayMetrics extends OncePerRequestFilter {
+
+    public enum Phase {
+        JSON, RPC, FLOW
+    }
+
+    // latencies are recorded in microseconds, up to an hour, to two significant digits
+    private static final long HIGHEST_LATENCY_MICROS = TimeUnit.HOURS.toMicros(1);
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    // the time spent in each phase by the request running on this thread, if any
+    private static final ThreadLocal<long[]> requestPhases = new ThreadLocal<>();
+
+    private final Map<String, Endpoint> endpoints = new ConcurrentHashMap<>();
+
+    /**
+     * Adds time spent in a phase to the request running on this thread. Does nothing outside of a request.
+     */
+    public static void record(Phase phase, long nanos) {
+        long[] phases = requestPhases.get();
+        if (phases != null) {
+            phases[phase.ordinal()] += nanos;
+        }
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        long[] phases = new long[Phase.values().length];
+        requestPhases.set(phases);
+        long start = System.nanoTime();
+        boolean failed = true;
+        try {
+            chain.doFilter(request, response);
+            failed = false;
+        } finally {
+            requestPhases.remove();
+            // the mapping, e.g. /flowStatus/{requestId}, rather than the path, so each endpoint is one series
+            Object pattern = request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+            String endpoint = request.getMethod() + " " + (pattern == null ? "unmatched" : pattern);
+            if (!failed && request.isAsyncStarted()) {
+                request.getAsyncContext().addListener(new AsyncCompletion(endpoint, response, start, phases));
+            } else {
+                record(endpoint, failed ? 500 : response.getStatus(), System.nanoTime() - start, phases);
+            }
+        }
+    }
+
+    private void record(String endpoint, int status, long totalNanos, long[] phases) {
+        endpoints.computeIfAbsent(endpoint, it -> new Endpoint()).record(status, totalNanos, phases);
+    }
+
+    /**
+     * Records an asynchronous request once its response is complete, whichever thread completes it.
+     */
+    private class AsyncCompletion implements AsyncListener {
+        private final String endpoint;
+        private final HttpServletResponse response;
+        private final long start;
+        private final long[] phases;
+        private volatile boolean failed;
+
+        AsyncCompletion(String endpoint, HttpServletResponse response, long start, long[] phases) {
+            this.endpoint = endpoint;
+            this.response = response;
+            this.start = start;
+            this.phases = phases;
+        }
+
+        @Override
+        public void onComplete(AsyncEvent event) {
+            record(endpoint, failed ? 500 : response.getStatus(), System.nanoTime() - start, phases);
+        }
+
+        @Override
+        public void onTimeout(AsyncEvent event) {
+            // the container completes the request with the status the timeout handling set
+        }
+
+        @Override
+        public void onError(AsyncEvent event) {
+            failed = true;
+        }
+
+        @Override
+        public void onStartAsync(AsyncEvent event) {
+            // async was started again, which drops the listeners, so keep listening for the new cycle
+            event.getAsyncContext().addListener(this);
+        }
+    }
+
+    /**
+     * @return every endpoint's metrics in the Prometheus text format
+     */
+    public String prometheusText() {
+        StringBuilder text = new StringBuilder();
+        Map<String, Endpoint> sorted = new TreeMap<>(endpoints);
+
+        text.append("# HELP gateway_requests_total HTTP requests served, by endpoint and status class\n");
+        text.append("# TYPE gateway_requests_total counter\n");
+        sorted.forEach((name, endpoint) -> {
+            for (int i = 0; i < endpoint.statuses.length; i++) {
+                long count = endpoint.statuses[i].sum();
+                if (count > 0) {
+                    text.append("gateway_requests_total{endpoint=\"").append(name).append("\",status=\"")
+                            .append(i + 1).append("xx\"} ").append(count).append('\n');
+                }
+            }
+        });
+
+        text.append("# HELP gateway_request_seconds Time spent on HTTP requests, by endpoint and phase " +
+                "(total, json, rpc or flow)\n");
+        text.append("# TYPE gateway_request_seconds summary\n");
+        sorted.forEach((name, endpoint) -> {
+            Histogram[] histograms = endpoint.collect();
+            for (int phase = 0; phase < histograms.length; phase++) {
+                String labels = "endpoint=\"" + name + "\",phase=\"" + endpoint.phaseName(phase) + "\"";
+                Histogram histogram = histograms[phase];
+                for (double quantile : QUANTILES) {
+                    text.append("gateway_request_seconds{").append(labels).append(",quantile=\"").append(quantile)
+                            .append("\"} ").append(seconds(histogram.getValueAtPercentile(quantile * 100)))
+                            .append('\n');
+                }
+                text.append("gateway_request_seconds_sum{").append(labels).append("} ")
+                        .append(seconds(endpoint.sumMicros[phase].sum())).append('\n');
+                text.append("gateway_request_seconds_count{").append(labels).append("} ")
+                        .append(histogram.getTotalCount()).append('\n');
+            }
+        });
+        return text.toString();
+    }
+
+    private static String seconds(long micros) {
+        return String.format(Locale.ROOT, "%.6f", micros / 1e6);
+    }
+
+    /**
+     * The metrics of one endpoint: requests by status class, and a latency histogram per phase,
+     * the first being the total.
+     */
+    private static class Endpoint {
+        private final LongAdder[] statuses = new LongAdder[5];
+        private final Recorder[] recorders = new Recorder[Phase.values().length + 1];
+        private final Histogram[] totals = new Histogram[recorders.length];
+        private final LongAdder[] sumMicros = new LongAdder[recorders.length];
+
+        Endpoint() {
+            for (int i = 0; i < statuses.length; i++) {
+                statuses[i] = new LongAdder();
+            }
+            for (int i = 0; i < recorders.length; i++) {
+                recorders[i] = new Recorder(HIGHEST_LATENCY_MICROS, 2);
+                totals[i] = new Histogram(HIGHEST_LATENCY_MICROS, 2);
+                sumMicros[i] = new LongAdder();
+            }
+        }
+
+        String phaseName(int index) {
+            return index == 0 ? "total" : Phase.values()[index - 1].name().toLowerCase(Locale.ROOT);
+        }
+
+        void record(int status, long totalNanos, long[] phases) {
+            statuses[Math.min(Math.max(status / 100, 1), 5) - 1].increment();
+            record(0, totalNanos);
+            // a phase the request never entered is left out, rather than recorded as taking no time
+            for (int i = 0; i < phases.length; i++) {
+                if (phases[i] > 0) {
+                    record(i + 1, phases[i]);
+                }
+            }
+        }
+
+        private void record(int index, long nanos) {
+            long micros = Math.min(HIGHEST_LATENCY_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos));
+            recorders[index].recordValue(micros);
+            sumMicros[index].add(micros);
+        }
+
+        // moves what was recorded since the last scrape into the totals
+        synchronized Histogram[] collect() {
+            Histogram[] copies = new Histogram[totals.length];
+            for (int i = 0; i < totals.length; i++) {
+                totals[i].add(recorders[i].getIntervalHistogram());
+                copies[i] = totals[i].copy();
+            }
+            return copies;
+        }
+    }
+}
@@ -0,0 +1,402 @@
+package net.corda.parsedata.client.webserver;
+
+import org.bouncycastle.util.encoders.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The V2G data behind InteractionDataState hashes, kept by the OEM and sanctions body servers and addressed by its
+ * SHA-256, i.e. the state's getHash().
+ *
+ * The data is appended to a log of memory-mapped segment files in config.store.dir, and never rewritten.
+ * A record is a 48 byte header (marker, status, length, SHA-256) followed by the payload, padded to 8 bytes.
+ * An upload reserves its record from the declared length, so concurrent uploads are written side by side,
+ * each streamed into the mapped segment and hashed as it arrives; only a small copy buffer is on the heap.
+ * The record is committed once its hash is known, and discarded if the upload fails or the hash is not the expected
+ * one. An in-memory index from hash to record offset makes retrieval a lookup and a slice of the mapped segment.
+ *
+ * New segments are written out in full before they are mapped, so a full disk fails the upload that needed one
+ * rather than crashing the server with a SIGBUS when a page of the mapping can't be allocated.
+ *
+ * Opening the store rebuilds the index from the record headers. Records of the last segment are also hashed again,
+ * since a crash may have lost pages the OS had not written back yet, unless config.store.sync forces every upload
+ * to disk before it is acknowledged.
+ */
+public class InteractionDataStore implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(InteractionDataStore.class);
+
+    static final int HEADER_SIZE = 48;
+    // "V2GD", at the start of every record header
+    private static final int MARKER = 0x56324744;
+    private static final int PENDING = 1;
+    private static final int COMMITTED = 2;
+    private static final int DISCARDED = 3;
+    private static final int STATUS_OFFSET = 4;
+    private static final int LENGTH_OFFSET = 8;
+    private static final int HASH_OFFSET = 16;
+    private static final int HASH_SIZE = 32;
+    // how much of an upload is on the heap at once
+    private static final int COPY_BUFFER_SIZE = 64 * 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final boolean sync;
+    private final List<Segment> segments = new CopyOnWriteArrayList<>();
+    // the committed records, by hash: the segment number in the high 32 bits, and the offset in the low 32 bits
+    private final Map<ByteBuffer, Long> index = new ConcurrentHashMap<>();
+    private final LongAdder storedBytes = new LongAdder();
+    private final LongAdder discarded = new LongAdder();
+
+    // the segment new records are appended to, and where the next one goes; guarded by this
+    private Segment active;
+    private int appendOffset;
+
+    /**
+     * The outcome of an upload.
+     */
+    public static class Stored {
+        private final byte[] hash;
+        private final long size;
+        private final boolean created;
+
+        Stored(byte[] hash, long size, boolean created) {
+            this.hash = hash;
+            this.size = size;
+            this.created = created;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return false if the store already had this payload
+         */
+        public boolean isCreated() {
+            return created;
+        }
+    }
+
+    /**
+     * Opens the store in this directory, creating it if needed.
+     * @param segmentSize the size of new segment files, and so the largest payload; at most 2 GiB
+     * @param sync whether every upload is forced to disk before it is acknowledged
+     */
+    public InteractionDataStore(Path directory, int segmentSize, boolean sync) throws IOException {
+        if (segmentSize <= HEADER_SIZE) {
+            throw new IllegalArgumentException("A segment must be larger than a record header");
+        }
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.sync = sync;
+        Files.createDirectories(directory);
+
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "segment-*.log")) {
+            stream.forEach(files::add);
+        }
+        Collections.sort(files);
+        for (int i = 0; i < files.size(); i++) {
+            Segment segment = Segment.open(files.get(i), i, 0);
+            segments.add(segment);
+            appendOffset = recover(segment, i == files.size() - 1);
+            active = segment;
+        }
+        if (active == null) {
+            roll();
+        }
+        logger.info("Opened the interaction data store in {}: {} payloads in {} segments",
+                directory, index.size(), segments.size());
+    }
+
+    /**
+     * @return the largest payload a record can hold
+     */
+    public long maxPayloadSize() {
+        return (segmentSize & ~7) - HEADER_SIZE;
+    }
+
+    public boolean contains(byte[] hash) {
+        return index.containsKey(ByteBuffer.wrap(hash));
+    }
+
+    /**
+     * Streams a payload into the store, hashing it as it is written.
+     * @param length the payload's length, as declared by the upload
+     * @param expectedHash the SHA-256 the payload should have, or null; if the store already has it, nothing is read
+     * @throws IllegalArgumentException if the payload is too large, longer than declared or not the expected one
+     * @throws EOFException if the payload is shorter than declared
+     */
+    public Stored put(InputStream in, long length, byte[] expectedHash) throws IOException {
+        if (expectedHash != null && contains(expectedHash)) {
+            return new Stored(expectedHash, sizeOf(index.get(ByteBuffer.wrap(expectedHash))), false);
+        }
+        if (length < 0 || length > maxPayloadSize()) {
+            throw new IllegalArgumentException("A payload must be between 0 and " + maxPayloadSize() + " bytes");
+        }
+
+        Segment segment;
+        int offset;
+        synchronized (this) {
+            long recordSize = align(HEADER_SIZE + length);
+            // as longs, since a record near the end of a segment of 1 GiB or more would overflow an int
+            if (appendOffset + recordSize > active.size) {
+                roll();
+            }
+            segment = active;
+            offset = appendOffset;
+            appendOffset += (int) recordSize;
+            // the length is written first, so a crash leaves a record that can be skipped
+            segment.buffer.putLong(offset + LENGTH_OFFSET, length);
+            segment.buffer.putInt(offset + STATUS_OFFSET, PENDING);
+            segment.buffer.putInt(offset, MARKER);
+        }
+
+        boolean committed = false;
+        try {
+            MessageDigest digest = sha256();
+            ByteBuffer target = segment.buffer.duplicate();
+            target.position(offset + HEADER_SIZE);
+            byte[] chunk = new byte[(int) Math.max(1, Math.min(COPY_BUFFER_SIZE, length))];
+            long remaining = length;
+            while (remaining > 0) {
+                int read = in.read(chunk, 0, (int) Math.min(chunk.length, remaining));
+                if (read < 0) {
+                    throw new EOFException("The payload ended after " + (length - remaining) + " of " + length + " bytes");
+                }
+                digest.update(chunk, 0, read);
+                target.put(chunk, 0, read);
+                remaining -= read;
+            }
+            if (in.read() >= 0) {
+                throw new IllegalArgumentException("The payload is longer than " + length + " bytes");
+            }
+            byte[] hash = digest.digest();
+            if (expectedHash != null && !Arrays.equals(hash, expectedHash)) {
+                throw new IllegalArgumentException("The payload's SHA-256 is " + Hex.toHexString(hash) +
+                        ", not " + Hex.toHexString(expectedHash));
+            }
+            target.position(offset + HASH_OFFSET);
+            target.put(hash);
+
+            // committed (and forced, if asked to) before it is published, so no reader sees a record a crash can lose
+            segment.buffer.putInt(offset + STATUS_OFFSET, COMMITTED);
+            if (sync) {
+                segment.buffer.force();
+            }
+            // an identical payload uploaded at the same time wins, and this copy is discarded; should a crash come
+            // first, opening the store keeps whichever copy comes first in the log
+            if (index.putIfAbsent(ByteBuffer.wrap(hash), location(segment.number, offset)) != null) {
+                return new Stored(hash, length, false);
+            }
+            committed = true;
+            storedBytes.add(length);
+            return new Stored(hash, length, true);
+        } finally {
+            if (!committed) {
+                segment.buffer.putInt(offset + STATUS_OFFSET, DISCARDED);
+                discarded.increment();
+            }
+        }
+    }
+
+    /**
+     * @return the payload with this SHA-256, as a read-only view of its segment, or null if the store doesn't have it
+     */
+    public ByteBuffer get(byte[] hash) {
+        Long location = index.get(ByteBuffer.wrap(hash));
+        if (location == null) {
+            return null;
+        }
+        Segment segment = segments.get((int) (location >>> 32));
+        int offset = (int) location.longValue();
+        ByteBuffer payload = segment.buffer.duplicate();
+        payload.position(offset + HEADER_SIZE);
+        payload.limit(offset + HEADER_SIZE + (int) segment.buffer.getLong(offset + LENGTH_OFFSET));
+        return payload.slice().asReadOnlyBuffer();
+    }
+
+    public Map<String, Long> stats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("payloads", (long) index.size());
+        stats.put("storedBytes", storedBytes.sum());
+        stats.put("discarded", discarded.sum());
+        stats.put("segments", (long) segments.size());
+        stats.put("segmentSize", (long) segmentSize);
+        return stats;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        for (Segment segment : segments) {
+            segment.buffer.force();
+            segment.channel.close();
+        }
+    }
+
+    // starts a new segment, once the active one cannot hold the next record; called holding the lock,
+    // so uploads wait while the segment is written out
+    private void roll() throws IOException {
+        int number = segments.size();
+        Segment segment = Segment.open(directory.resolve(String.format("segment-%06d.log", number)), number, segmentSize);
+        segments.add(segment);
+        active = segment;
+        appendOffset = 0;
+    }
+
+    /**
+     * Indexes a segment's committed records, and discards the ones whose upload never finished.
+     * @param verify whether to hash the committed records again, and discard those that don't match
+     * @return the offset after the segment's last record
+     */
+    private int recover(Segment segment, boolean verify) {
+        MappedByteBuffer buffer = segment.buffer;
+        int offset = 0;
+        while ((long) offset + HEADER_SIZE <= segment.size && buffer.getInt(offset) == MARKER) {
+            long length = buffer.getLong(offset + LENGTH_OFFSET);
+            if (length < 0 || (long) offset + HEADER_SIZE + length > segment.size) {
+                break;
+            }
+            int status = buffer.getInt(offset + STATUS_OFFSET);
+            if (status == COMMITTED) {
+                byte[] hash = new byte[HASH_SIZE];
+                ByteBuffer header = buffer.duplicate();
+                header.position(offset + HASH_OFFSET);
+                header.get(hash);
+                if (verify && !Arrays.equals(hash, hashOf(buffer, offset + HEADER_SIZE, (int) length))) {
+                    logger.warn("Discarding the payload {} in {}, whose data was lost", Hex.toHexString(hash), segment.path);
+                    buffer.putInt(offset + STATUS_OFFSET, DISCARDED);
+                    discarded.increment();
+                } else if (index.putIfAbsent(ByteBuffer.wrap(hash), location(segment.number, offset)) == null) {
+                    storedBytes.add(length);
+                }
+            } else if (status == PENDING) {
+                buffer.putInt(offset + STATUS_OFFSET, DISCARDED);
+                discarded.increment();
+            }
+            offset = (int) Math.min(align((long) offset + HEADER_SIZE + length), segment.size);
+        }
+        // a torn header could otherwise be read as a record once the log has grown past it again
+        if ((long) offset + Integer.BYTES <= segment.size && buffer.getInt(offset) != 0) {
+            for (int i = offset; i < segment.size; i++) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+        return offset;
+    }
+
+    private long sizeOf(long location) {
+        return segments.get((int) (location >>> 32)).buffer.getLong((int) location + LENGTH_OFFSET);
+    }
+
+    private static long location(int segment, int offset) {
+        return ((long) segment << 32) | offset;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    private static byte[] hashOf(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset);
+        payload.limit(offset + length);
+        MessageDigest digest = sha256();
+        digest.update(payload);
+        return digest.digest();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * One segment file, mapped in full.
+     */
+    private static class Segment {
+        private final Path path;
+        private final int number;
+        private final int size;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+
+        private Segment(Path path, int number, int size, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.number = number;
+            this.size = size;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        /**
+         * @param size the size of a new segment; an existing one keeps its own
+         */
+        static Segment open(Path path, int number, int size) throws IOException {
+            FileChannel channel = FileChannel.open(path,
+                    StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            try {
+                if (channel.size() < size) {
+                    preallocate(path, channel, size);
+                }
+                long mapped = channel.size();
+                if (mapped > Integer.MAX_VALUE) {
+                    throw new IOException("The segment " + path + " is larger than 2 GiB");
+                }
+                return new Segment(path, number, (int) mapped, channel,
+                        channel.map(FileChannel.MapMode.READ_WRITE, 0, mapped));
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Writes zeros up to the segment size, so the file has its disk blocks before it is mapped:
+         * mapping past the end of a file would extend it sparsely, and the disk would only fill up on a mapped write.
+         */
+        private static void preallocate(Path path, FileChannel channel, int size) throws IOException {
+            long needed = size - channel.size();
+            long usable = Files.getFileStore(path).getUsableSpace();
+            if (usable < needed) {
+                throw new IOException("Not enough disk space for the segment " + path + ": " + needed +
+                        " bytes needed, " + usable + " usable");
+            }
+            ByteBuffer zeros = ByteBuffer.allocate(COPY_BUFFER_SIZE);
+            for (long position = channel.size(); position < size; ) {
+                zeros.clear();
+                zeros.limit((int) Math.min(zeros.capacity(), size - position));
+                position += channel.write(zeros, position);
+            }
+        }
+    }
+}
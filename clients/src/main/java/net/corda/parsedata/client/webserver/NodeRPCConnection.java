@@ -2,21 +2,42 @@ package net.corda.parsedata.client.webserver;
 
 import net.corda.client.rpc.CordaRPCClient;
 import net.corda.client.rpc.CordaRPCConnection;
+import net.corda.client.rpc.GracefulReconnect;
 import net.corda.core.messaging.CordaRPCOps;
 import net.corda.core.utilities.NetworkHostAndPort;
+import net.corda.energy_cordapp.contracts.FlightRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import javax.annotation.PostConstruct;
 import javax.annotation.PreDestroy;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Wraps an RPC connection to a Corda node.
+ * Wraps a pool of RPC connections to a Corda node.
  *
- * The RPC connection is configured using command line arguments.
+ * The RPC connections are configured using command line arguments.
+ * config.rpc.poolSize sets how many connections are opened (1 by default),
+ * and config.rpc.dispatch chooses how calls are spread over them: round-robin (the default) or least-busy.
+ * Every connection reconnects on its own if the node restarts, so the server doesn't need redeploying.
+ * getProxy() returns a single CordaRPCOps that dispatches every call to one of the pooled connections,
+ * keeping per-connection in-flight and latency statistics.
+ * Every call is also a JFR RpcCallEvent when the JVM supports them (see FlightRecorder).
  */
 @Component
 public class NodeRPCConnection implements AutoCloseable {
+    private static final Logger logger = LoggerFactory.getLogger(NodeRPCConnection.class);
+
     // The host of the node we are connecting to.
     @Value("${config.rpc.host}")
     private String host;
@@ -29,24 +50,154 @@ public class NodeRPCConnection implements AutoCloseable {
     // The password for logging into the RPC client.
     @Value("${config.rpc.port}")
     private int rpcPort;
+    // The number of RPC connections to open.
+    @Value("${config.rpc.poolSize:1}")
+    private int poolSize;
+    // How calls are spread over the connections: round-robin or least-busy.
+    @Value("${config.rpc.dispatch:round-robin}")
+    private String dispatch;
 
-    private CordaRPCConnection rpcConnection;
+    private final List<PooledConnection> pool = new ArrayList<>();
+    private final AtomicInteger next = new AtomicInteger();
     CordaRPCOps proxy;
 
+    /**
+     * One connection of the pool, and its statistics.
+     */
+    static class PooledConnection {
+        private final int index;
+        private final CordaRPCConnection connection;
+        private final AtomicInteger inFlight = new AtomicInteger();
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        // counted by the connection's GracefulReconnect callback
+        private final AtomicLong reconnects;
+
+        PooledConnection(int index, CordaRPCConnection connection, AtomicLong reconnects) {
+            this.index = index;
+            this.connection = connection;
+            this.reconnects = reconnects;
+        }
+
+        Object invoke(Method method, Object[] args) throws Throwable {
+            RpcCallEvent event = null;
+            if (FlightRecorder.AVAILABLE) {
+                event = new RpcCallEvent();
+                event.begin();
+            }
+            inFlight.incrementAndGet();
+            long start = System.nanoTime();
+            boolean succeeded = false;
+            try {
+                Object result = method.invoke(connection.getProxy(), args);
+                succeeded = true;
+                return result;
+            } catch (InvocationTargetException e) {
+                errors.incrementAndGet();
+                throw e.getCause();
+            } finally {
+                long elapsed = System.nanoTime() - start;
+                if (event != null) {
+                    event.end();
+                    if (event.shouldCommit()) {
+                        event.method = method.getName();
+                        event.connection = index;
+                        event.succeeded = succeeded;
+                        event.commit();
+                    }
+                }
+                GatewayMetrics.record(GatewayMetrics.Phase.RPC, elapsed);
+                inFlight.decrementAndGet();
+                calls.incrementAndGet();
+                totalNanos.addAndGet(elapsed);
+                maxNanos.accumulateAndGet(elapsed, Math::max);
+            }
+        }
+
+        Map<String, Object> stats() {
+            Map<String, Object> stats = new LinkedHashMap<>();
+            long callCount = calls.get();
+            stats.put("connection", index);
+            stats.put("inFlight", inFlight.get());
+            stats.put("calls", callCount);
+            stats.put("errors", errors.get());
+            stats.put("reconnects", reconnects.get());
+            stats.put("meanLatencyMillis", callCount == 0 ? 0.0 : totalNanos.get() / 1e6 / callCount);
+            stats.put("maxLatencyMillis", maxNanos.get() / 1e6);
+            return stats;
+        }
+    }
+
     @PostConstruct
     public void initialiseNodeRPCConnection() {
         NetworkHostAndPort rpcAddress = new NetworkHostAndPort(host, rpcPort);
-        CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
-        rpcConnection = rpcClient.start(username, password);
-        proxy = rpcConnection.getProxy();
+        for (int i = 0; i < Math.max(1, poolSize); i++) {
+            final int index = i;
+            final AtomicLong reconnects = new AtomicLong();
+            GracefulReconnect gracefulReconnect = new GracefulReconnect(
+                    () -> logger.warn("RPC connection {} to {} lost, reconnecting", index, rpcAddress),
+                    () -> {
+                        reconnects.incrementAndGet();
+                        logger.info("RPC connection {} to {} re-established", index, rpcAddress);
+                    });
+            CordaRPCClient rpcClient = new CordaRPCClient(rpcAddress);
+            pool.add(new PooledConnection(index, rpcClient.start(username, password, gracefulReconnect), reconnects));
+        }
+        proxy = (CordaRPCOps) Proxy.newProxyInstance(
+                CordaRPCOps.class.getClassLoader(),
+                new Class<?>[]{CordaRPCOps.class},
+                (self, method, args) -> {
+                    if (method.getDeclaringClass() == Object.class) {
+                        switch (method.getName()) {
+                            case "equals":
+                                return self == args[0];
+                            case "hashCode":
+                                return System.identityHashCode(self);
+                            default:
+                                return "pooled CordaRPCOps to " + rpcAddress;
+                        }
+                    }
+                    return choose().invoke(method, args);
+                });
+    }
+
+    private PooledConnection choose() {
+        if (pool.size() == 1) {
+            return pool.get(0);
+        }
+        if ("least-busy".equals(dispatch)) {
+            PooledConnection leastBusy = pool.get(0);
+            for (PooledConnection connection : pool) {
+                if (connection.inFlight.get() < leastBusy.inFlight.get()) {
+                    leastBusy = connection;
+                }
+            }
+            return leastBusy;
+        }
+        return pool.get(Math.floorMod(next.getAndIncrement(), pool.size()));
+    }
+
+    /**
+     * @return the in-flight calls, call and error counts, reconnects and latencies of every pooled connection
+     */
+    public List<Map<String, Object>> getStats() {
+        List<Map<String, Object>> stats = new ArrayList<>(pool.size());
+        for (PooledConnection connection : pool) {
+            stats.add(connection.stats());
+        }
+        return stats;
     }
 
     @PreDestroy
     public void close() {
-        rpcConnection.notifyServerAndClose();
+        for (PooledConnection pooled : pool) {
+            pooled.connection.notifyServerAndClose();
+        }
     }
 
     public CordaRPCOps getProxy() {
         return proxy;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,29 @@
+package net.corda.parsedata.client.webserver;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one RPC call the Spring server makes to the node through NodeRPCConnection.
+ * Only used when FlightRecorder.AVAILABLE.
+ */
+@Name("net.corda.energy_cordapp.RpcCall")
+@Label("RPC Call")
+@Category({"Energy CorDapp", "Spring Server"})
+@Description("An RPC call from the Spring server to the Corda node")
+@StackTrace(false)
+final class RpcCallEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Connection")
+    @Description("The index of the pooled RPC connection used")
+    int connection;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
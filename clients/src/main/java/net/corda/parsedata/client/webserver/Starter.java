@@ -1,16 +1,17 @@
 package net.corda.parsedata.client.webserver;
 
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.pool.HikariPool;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.Banner;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.context.annotation.Bean;
 
-import java.sql.Connection;
-import java.sql.Driver;
-import java.sql.DriverManager;
-import java.sql.SQLException;
-import java.util.Optional;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.nio.file.Paths;
 
 import static org.springframework.boot.WebApplicationType.SERVLET;
 
@@ -27,24 +28,65 @@ public class Starter {
     private String passwd;
     @Value("${config.db.nodb:false}")
     private boolean nodb;
-    @Bean
-    public Connection dbConnection() throws SQLException {
-        /*
-        final String url = "jdbc:h2:tcp://localhost:20042/node";
-        final String user = "sa";
-        final String passwd = "";
-         */
+    // the most database connections the server keeps open
+    @Value("${config.db.poolSize:10}")
+    private int poolSize;
+    // how long a request may wait for a free connection
+    @Value("${config.db.connectionTimeoutMillis:5000}")
+    private long connectionTimeoutMillis;
+    // where the interaction data store keeps its segments; no store if empty
+    @Value("${config.store.dir:}")
+    private String storeDir;
+    // the size of each segment of the store, and so the largest payload
+    @Value("${config.store.segmentSizeMegabytes:256}")
+    private int storeSegmentSizeMegabytes;
+    // whether every upload to the store is forced to disk before it is acknowledged
+    @Value("${config.store.sync:false}")
+    private boolean storeSync;
+
+    /**
+     * A pool of read-only connections to the node's database, for the queries on our custom schemas.
+     * Requests each borrow a connection rather than sharing one, so concurrent reads don't queue on a single session.
+     * The connections are long-lived, so H2 keeps the statements it has already parsed for each of them.
+     */
+    @Bean(destroyMethod = "close")
+    public DataSource dataSource() {
         if (nodb) {
             return null;
         }
+        HikariConfig config = new HikariConfig();
+        config.setJdbcUrl(url);
+        config.setUsername(user);
+        config.setPassword(passwd);
+        config.setMaximumPoolSize(poolSize);
+        config.setConnectionTimeout(connectionTimeoutMillis);
+        config.setReadOnly(true);
+        config.setPoolName("node-db");
         try {
-            return DriverManager.getConnection(url, user, passwd);
-        } catch (SQLException throwables) {
+            return new HikariDataSource(config);
+        } catch (HikariPool.PoolInitializationException e) {
             System.out.println("config.db.nodb is set to false, trying to establish h2 connection." +
                     "Consider setting config.db.nodb=true to fix this error.");
-            throw throwables;
+            throw e;
         }
     }
+
+    /**
+     * The V2G data behind the interaction hashes, kept by the OEM and sanctions body servers.
+     */
+    @Bean(destroyMethod = "close")
+    public InteractionDataStore interactionDataStore() throws IOException {
+        if (storeDir.isEmpty()) {
+            return null;
+        }
+        // a segment is mapped as one buffer, so it must stay under 2 GiB
+        if (storeSegmentSizeMegabytes < 1 || storeSegmentSizeMegabytes > 2047) {
+            throw new IllegalArgumentException("config.store.segmentSizeMegabytes must be between 1 and 2047, got " +
+                    storeSegmentSizeMegabytes);
+        }
+        return new InteractionDataStore(Paths.get(storeDir), storeSegmentSizeMegabytes << 20, storeSync);
+    }
+
     /**
      * Starts our Spring Boot application.
      */
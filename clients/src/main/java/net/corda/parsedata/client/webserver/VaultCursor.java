@@ -0,0 +1,131 @@
+package net.corda.parsedata.client.webserver;
+
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.*;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashSet;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * A position in a paged vault query, handed to clients as an opaque continuation token.
+ * The first page fixes a snapshot time, and every page sees the states that were unconsumed at that time:
+ * recorded up to then, and either still unconsumed or consumed after it, ordered by recorded time and state ref.
+ * That set never changes, so states recorded or consumed while a client is paging
+ * neither shift the pages it has yet to read nor make it skip or repeat a state.
+ * The criteria a cursor restricts must therefore match states of any status (Vault.StateStatus.ALL).
+ */
+public class VaultCursor {
+    static final int DEFAULT_PAGE_SIZE = 100;
+    static final int MAX_PAGE_SIZE = 1000;
+
+    private final int pageNumber;
+    private final int pageSize;
+    private final Sort.Direction direction;
+    private final Instant snapshot;
+
+    private VaultCursor(int pageNumber, int pageSize, Sort.Direction direction, Instant snapshot) {
+        this.pageNumber = pageNumber;
+        this.pageSize = pageSize;
+        this.direction = direction;
+        this.snapshot = snapshot;
+    }
+
+    /**
+     * @param continuationToken the token returned with the previous page, or null for the first page
+     * @param pageSize the number of states per page, or null for DEFAULT_PAGE_SIZE (ignored when continuing)
+     * @param sort "asc" (oldest first, the default) or "desc" (ignored when continuing)
+     */
+    public static VaultCursor of(String continuationToken, Integer pageSize, String sort) {
+        if (continuationToken != null && !continuationToken.isEmpty()) {
+            return parse(continuationToken);
+        }
+        int size = checkPageSize(pageSize == null ? DEFAULT_PAGE_SIZE : pageSize);
+        Sort.Direction direction = sort == null || sort.equalsIgnoreCase("asc") ? Sort.Direction.ASC
+                : sort.equalsIgnoreCase("desc") ? Sort.Direction.DESC : null;
+        if (direction == null) {
+            throw new IllegalArgumentException("sort must be asc or desc, got " + sort);
+        }
+        return new VaultCursor(DEFAULT_PAGE_NUM, size, direction, Instant.now());
+    }
+
+    private static VaultCursor parse(String continuationToken) {
+        try {
+            String decoded = new String(Base64.getUrlDecoder().decode(continuationToken), StandardCharsets.UTF_8);
+            // the snapshot goes last, as an ISO instant contains colons itself
+            String[] parts = decoded.split(":", 4);
+            int pageNumber = Integer.parseInt(parts[0]);
+            if (pageNumber < DEFAULT_PAGE_NUM) {
+                throw new IllegalArgumentException("page number " + pageNumber);
+            }
+            // a token is as untrusted as the query parameters, so it can't ask for larger pages either
+            return new VaultCursor(pageNumber, checkPageSize(Integer.parseInt(parts[1])),
+                    Sort.Direction.valueOf(parts[2]), Instant.parse(parts[3]));
+        } catch (IllegalArgumentException | ArrayIndexOutOfBoundsException | DateTimeParseException e) {
+            throw new IllegalArgumentException("Invalid continuation token: " + continuationToken);
+        }
+    }
+
+    private static int checkPageSize(int pageSize) {
+        if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+            throw new IllegalArgumentException("pageSize must be between 1 and " + MAX_PAGE_SIZE + ", got " + pageSize);
+        }
+        return pageSize;
+    }
+
+    /**
+     * @param criteria criteria over states of any status
+     * @return the criteria restricted to the states unconsumed at this cursor's snapshot
+     */
+    public QueryCriteria restrict(QueryCriteria criteria) {
+        QueryCriteria recordedBySnapshot = anyStatus(new QueryCriteria.TimeCondition(
+                QueryCriteria.TimeInstantType.RECORDED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.LESS_THAN_OR_EQUAL, snapshot)));
+        QueryCriteria unconsumed = anyStatus(new QueryCriteria.TimeCondition(
+                QueryCriteria.TimeInstantType.CONSUMED,
+                new ColumnPredicate.NullExpression<>(NullOperator.IS_NULL)));
+        QueryCriteria consumedAfterSnapshot = anyStatus(new QueryCriteria.TimeCondition(
+                QueryCriteria.TimeInstantType.CONSUMED,
+                new ColumnPredicate.BinaryComparison<>(BinaryComparisonOperator.GREATER_THAN, snapshot)));
+        return criteria.and(recordedBySnapshot).and(unconsumed.or(consumedAfterSnapshot));
+    }
+
+    private static QueryCriteria anyStatus(QueryCriteria.TimeCondition timeCondition) {
+        // the default, UNCONSUMED, would drop the states consumed since the snapshot
+        return new QueryCriteria.VaultQueryCriteria().withStatus(Vault.StateStatus.ALL).withTimeCondition(timeCondition);
+    }
+
+    public PageSpecification paging() {
+        return new PageSpecification(pageNumber, pageSize);
+    }
+
+    /**
+     * @return recorded time first, then the state ref, so the order is total and pages never overlap
+     */
+    public Sort sort() {
+        return new Sort(new LinkedHashSet<>(Arrays.asList(
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), direction),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID), direction),
+                new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX), direction))));
+    }
+
+    /**
+     * @return the cursor for the page after the given one, or null if it was the last page
+     */
+    public VaultCursor next(Vault.Page<?> page) {
+        if ((long) pageNumber * pageSize >= page.getTotalStatesAvailable()) {
+            return null;
+        }
+        return new VaultCursor(pageNumber + 1, pageSize, direction, snapshot);
+    }
+
+    public String toToken() {
+        String encoded = pageNumber + ":" + pageSize + ":" + direction.name() + ":" + snapshot;
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(encoded.getBytes(StandardCharsets.UTF_8));
+    }
+}
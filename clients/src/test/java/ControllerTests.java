@@ -1,15 +1,22 @@
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import net.corda.core.concurrent.CordaFuture;
 import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.ContractState;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.contracts.TransactionState;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.identity.CordaX500Name;
 import net.corda.core.identity.Party;
 import net.corda.core.messaging.CordaRPCOps;
+import net.corda.core.messaging.DataFeed;
+import net.corda.core.flows.StateMachineRunId;
+import net.corda.core.messaging.FlowHandle;
 import net.corda.core.messaging.FlowProgressHandle;
 import net.corda.core.node.NodeInfo;
+import net.corda.core.node.services.NetworkMapCache;
 import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.energy_cordapp.accountUtilities.CreateNewAccount;
 import net.corda.energy_cordapp.accountUtilities.GetAccountBalance;
@@ -18,23 +25,59 @@ import net.corda.energy_cordapp.flows.A2ATokenTransferFlow;
 import net.corda.energy_cordapp.flows.EnergyTransferFlow;
 import net.corda.energy_cordapp.flows.IssueTokenFlow;
 import net.corda.parsedata.client.webserver.Controller;
+import net.corda.parsedata.client.webserver.GatewayMetrics;
+import net.corda.parsedata.client.webserver.InteractionDataStore;
 import net.corda.parsedata.client.webserver.NodeRPCConnection;
 import org.bouncycastle.util.encoders.Hex;
 import org.junit.Before;
+import kotlin.jvm.functions.Function1;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
-
+import org.springframework.web.servlet.HandlerMapping;
+import org.springframework.web.servlet.mvc.method.annotation.StreamingResponseBody;
+import rx.subjects.PublishSubject;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.FilterChain;
+import javax.servlet.ReadListener;
+import javax.servlet.ServletException;
+import javax.servlet.ServletInputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import javax.sql.DataSource;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Instant;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -50,6 +93,9 @@ public class ControllerTests {
 
     private Controller controller ;
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void setup() {
         when(rpc.getProxy()).thenReturn(proxy);
@@ -131,6 +177,36 @@ public class ControllerTests {
                 response.getBody());
     }
 
+    @Test
+    public void testIssueTokensBatch() throws ExecutionException, InterruptedException, IOException {
+        SecureHash txid = SecureHash.Companion.sha256("transaction hash");
+        String txidString = txid.toHexString();
+
+        SignedTransaction mockTransaction = mock(SignedTransaction.class);
+        when(mockTransaction.getId()).thenReturn(txid);
+        when(mockFuture.get()).thenReturn(mockTransaction);
+        when(proxy.startTrackedFlowDynamic(eq(IssueTokenFlow.class), any())).thenReturn(mockHandle);
+
+        // two recipients, one of them listed twice
+        Party vw = mock(Party.class);
+        Party grid = mock(Party.class);
+        when(proxy.wellKnownPartyFromX500Name(CordaX500Name.parse("O=VW,L=Wolfsburg,C=GB"))).thenReturn(vw);
+        when(proxy.wellKnownPartyFromX500Name(CordaX500Name.parse("O=Grid,L=London,C=GB"))).thenReturn(grid);
+
+        ResponseEntity<String> response = controller.issueTokensBatch("{\"recipients\":[" +
+                "{\"nodeName\":\"O=VW,L=Wolfsburg,C=GB\", \"numberOfTokens\":100}," +
+                "{\"nodeName\":\"O=Grid,L=London,C=GB\", \"numberOfTokens\":50}," +
+                "{\"nodeName\":\"O=VW,L=Wolfsburg,C=GB\", \"numberOfTokens\":5}]}");
+
+        // a single flow issues to both nodes
+        LinkedHashMap<Party, Long> expected = new LinkedHashMap<>();
+        expected.put(vw, 105L);
+        expected.put(grid, 50L);
+        verify(proxy).startTrackedFlowDynamic(IssueTokenFlow.class, expected);
+
+        assertEquals("{\"transactionHash\":\"" + txidString + "\"}", response.getBody());
+    }
+
     @Test
     public void testSendEnergyTokens() throws ExecutionException, InterruptedException, IOException {
 
@@ -181,6 +257,56 @@ public class ControllerTests {
                 response.getBody());
     }
 
+    @Test
+    public void testSendEnergyTokensAsync() throws IOException {
+        SecureHash txid = SecureHash.Companion.sha256("transaction hash");
+        UUID runId = UUID.randomUUID();
+
+        // a flow that has been started but not finished yet
+        FlowHandle handle = mock(FlowHandle.class);
+        when(handle.getId()).thenReturn(new StateMachineRunId(runId));
+        when(handle.getReturnValue()).thenReturn(mockFuture);
+        when(proxy.startFlowDynamic(
+                eq(EnergyTransferFlow.SendEnergyTokens.class),
+                any(), any(), any(), any(), any()))
+                .thenReturn(handle);
+        Party mockParty = mock(Party.class);
+        when(proxy.wellKnownPartyFromX500Name(
+                CordaX500Name.parse("O=Parsedata,L=Toronto,C=CA")
+        )).thenReturn(mockParty);
+
+        ResponseEntity<String> response = controller.sendEnergyTokensAsync(
+                "{\"sendToAccountName\":\"Batmobile\", " +
+                        "\"dataHash\":\"" + new String(Hex.encode("sample hash".getBytes(StandardCharsets.UTF_8))) + "\"," +
+                        "\"numberOfTokens\":100," +
+                        "\"sanctionsBody\":\"O=Parsedata,L=Toronto,C=CA\"" +
+                        "}"
+        );
+
+        // the request is accepted with the flow's run ID, without waiting for the flow
+        assertEquals(HttpStatus.ACCEPTED, response.getStatusCode());
+        assertEquals("{\"requestId\":\"" + runId + "\"}", response.getBody());
+        assertEquals("{\"requestId\":\"" + runId + "\",\"status\":\"RUNNING\",\"result\":null,\"error\":null}",
+                controller.flowStatus(runId.toString()).getBody());
+
+        // once the flow ends, its callback completes the entry
+        ArgumentCaptor<Function1> callback = ArgumentCaptor.forClass(Function1.class);
+        verify(mockFuture).then(callback.capture());
+        SignedTransaction mockTransaction = mock(SignedTransaction.class);
+        when(mockTransaction.getId()).thenReturn(txid);
+        try {
+            when(mockFuture.get()).thenReturn(mockTransaction);
+        } catch (InterruptedException | ExecutionException e) {
+            throw new AssertionError(e);
+        }
+        callback.getValue().invoke(mockFuture);
+
+        assertEquals("{\"requestId\":\"" + runId + "\",\"status\":\"SUCCEEDED\"," +
+                        "\"result\":{\"transactionHash\":\"" + txid.toHexString() + "\"},\"error\":null}",
+                controller.flowStatus(runId.toString()).getBody());
+        assertEquals(HttpStatus.NOT_FOUND, controller.flowStatus(UUID.randomUUID().toString()).getStatusCode());
+    }
+
     @Test
     public void testShareAccount() throws ExecutionException, InterruptedException, IOException {
         when(mockFuture.get()).thenReturn("No string at all");
@@ -255,26 +381,256 @@ public class ControllerTests {
     }
 
     @Test
-    public void testNodeTokenBalance() {
+    public void testNodeTokenBalance() throws NoSuchFieldException {
+        // the vault returns the SUM of the token amounts as the only "other result"
         Vault.Page mockPage = mock(Vault.Page.class);
-        StateAndRef mockStateAndRef = mock(StateAndRef.class);
-        TransactionState mockState = mock(TransactionState.class);
-        FungibleToken mockToken = mock(FungibleToken.class);
-        Amount mockAmount = mock(Amount.class);
+        when(mockPage.getOtherResults()).thenReturn(Arrays.asList(100L));
 
-        when(mockAmount.getQuantity()).thenReturn(100L);
-        when(mockToken.getAmount()).thenReturn(mockAmount);
-        when(mockState.getData()).thenReturn(mockToken);
-        when(mockStateAndRef.getState()).thenReturn(mockState);
-        when(mockPage.getStates()).thenReturn(Arrays.asList(mockStateAndRef));
-
-        when(proxy.vaultQuery(FungibleToken.class)).thenReturn(mockPage);
+        when(proxy.vaultQueryBy(any(), any(), any(), eq(FungibleToken.class))).thenReturn(mockPage);
 
         ResponseEntity<String> response
                 = controller.getNodeBalance();
 
-        verify(proxy).vaultQuery(FungibleToken.class);
+        verify(proxy).vaultQueryBy(any(), any(), any(), eq(FungibleToken.class));
 
         assertEquals("{\"tokenBalance\":100}", response.getBody());
     }
+
+    @Test
+    public void testEmptyNodeTokenBalance() throws NoSuchFieldException {
+        // SUM over no rows is null
+        Vault.Page mockPage = mock(Vault.Page.class);
+        when(mockPage.getOtherResults()).thenReturn(Arrays.asList((Object) null));
+
+        when(proxy.vaultQueryBy(any(), any(), any(), eq(FungibleToken.class))).thenReturn(mockPage);
+
+        assertEquals("{\"tokenBalance\":0}", controller.getNodeBalance().getBody());
+    }
+
+    @Test
+    public void testTransactionDetails() throws Exception {
+        // a pooled connection returning one row
+        DataSource dataSource = mock(DataSource.class);
+        Connection connection = mock(Connection.class);
+        PreparedStatement statement = mock(PreparedStatement.class);
+        ResultSet resultSet = mock(ResultSet.class);
+        when(dataSource.getConnection()).thenReturn(connection);
+        when(connection.prepareStatement(any())).thenReturn(statement);
+        when(statement.executeQuery()).thenReturn(resultSet);
+        when(resultSet.next()).thenReturn(true, false);
+        when(resultSet.getString("grid")).thenReturn("O=Grid, L=Fake Town, C=US");
+        when(resultSet.getString("oem")).thenReturn("O=Oem, L=Fake Town, C=US");
+        when(resultSet.getBytes("hash")).thenReturn(new byte[]{0x01});
+        when(resultSet.getBytes("linear_id")).thenReturn(new byte[]{0x02});
+        when(resultSet.getLong("amount")).thenReturn(100L);
+        when(resultSet.getString("note")).thenReturn("note");
+        controller.setDataSource(dataSource);
+
+        ResponseEntity<String> response
+                = controller.getTransactionDetails("{\"transactionHash\":\"ABCD\"}");
+
+        // the hash is bound as a parameter, and everything is closed again
+        verify(statement).setString(1, "ABCD");
+        verify(resultSet).close();
+        verify(statement).close();
+        verify(connection).close();
+
+        assertEquals("[{\"sender\":\"O=Grid, L=Fake Town, C=US\",\"receiver\":\"O=Oem, L=Fake Town, C=US\"," +
+                "\"dataHash\":\"01\",\"linearId\":\"02\",\"numberOfTokens\":100,\"note\":\"note\"}]",
+                response.getBody());
+    }
+
+    @Test
+    public void testStatesPaging() throws IOException {
+        // two states in the vault, read one page of one state at a time
+        StateAndRef mockState = mock(StateAndRef.class);
+        TransactionState mockTransactionState = mock(TransactionState.class);
+        ContractState mockData = mock(ContractState.class);
+        when(mockState.getRef()).thenReturn(new StateRef(SecureHash.Companion.sha256("transaction hash"), 0));
+        when(mockState.getState()).thenReturn(mockTransactionState);
+        when(mockTransactionState.getContract()).thenReturn("SomeContract");
+        when(mockTransactionState.getData()).thenReturn(mockData);
+        Vault.StateMetadata mockMetadata = mock(Vault.StateMetadata.class);
+        when(mockMetadata.getRecordedTime()).thenReturn(Instant.EPOCH);
+
+        Vault.Page mockPage = mock(Vault.Page.class);
+        when(mockPage.getStates()).thenReturn(Arrays.asList(mockState));
+        when(mockPage.getStatesMetadata()).thenReturn(Arrays.asList(mockMetadata));
+        when(mockPage.getTotalStatesAvailable()).thenReturn(2L);
+        when(proxy.vaultQueryBy(any(), any(), any(), eq(ContractState.class))).thenReturn(mockPage);
+
+        ResponseEntity<String> first = controller.states(1, "desc", null);
+        String token = first.getHeaders().getFirst("Continuation-Token");
+        assertNotNull(token);
+
+        // the second page is the last one
+        ResponseEntity<String> second = controller.states(null, null, token);
+        assertNull(second.getHeaders().getFirst("Continuation-Token"));
+
+        ArgumentCaptor<PageSpecification> paging = ArgumentCaptor.forClass(PageSpecification.class);
+        verify(proxy, times(2)).vaultQueryBy(any(), paging.capture(), any(), eq(ContractState.class));
+        assertEquals(new PageSpecification(1, 1), paging.getAllValues().get(0));
+        assertEquals(new PageSpecification(2, 1), paging.getAllValues().get(1));
+    }
+
+    @Test
+    public void testPeersFromNetworkMapFeed() {
+        Party peer = mock(Party.class);
+        when(peer.getName()).thenReturn(CordaX500Name.parse("O=Peer,L=Los Angeles,C=US"));
+        NodeInfo peerInfo = mock(NodeInfo.class);
+        when(peerInfo.getLegalIdentities()).thenReturn(Arrays.asList(peer));
+        Party newcomer = mock(Party.class);
+        when(newcomer.getName()).thenReturn(CordaX500Name.parse("O=Newcomer,L=Paris,C=FR"));
+        NodeInfo newcomerInfo = mock(NodeInfo.class);
+        when(newcomerInfo.getLegalIdentities()).thenReturn(Arrays.asList(newcomer));
+
+        // a controller started while the node's network map holds a single peer
+        PublishSubject<NetworkMapCache.MapChange> updates = PublishSubject.create();
+        when(proxy.networkMapFeed()).thenReturn(new DataFeed<>(Arrays.asList(peerInfo), updates));
+        Controller fedController = new Controller(rpc);
+
+        assertEquals(Arrays.asList("O=Peer, L=Los Angeles, C=US"), fedController.getPeers().get("peerNodes"));
+
+        // a node joining the network is picked up from the feed
+        updates.onNext(new NetworkMapCache.MapChange.Added(newcomerInfo));
+        List<String> peers = fedController.getPeers().get("peerNodes");
+        assertEquals(2, peers.size());
+        assertTrue(peers.contains("O=Newcomer, L=Paris, C=FR"));
+
+        // neither the peers nor the notaries were asked for again over RPC
+        verify(proxy, never()).networkMapSnapshot();
+        verify(proxy, times(1)).notaryIdentities();
+    }
+
+    @Test
+    public void testGatewayMetrics() throws IOException, ServletException, ExecutionException, InterruptedException {
+        GatewayMetrics metrics = new GatewayMetrics();
+        when(mockFuture.get()).thenReturn(100L);
+        when(proxy.startTrackedFlowDynamic(eq(GetAccountBalance.class), any())).thenReturn(mockHandle);
+
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/accountTokenBalance");
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+
+        // the controller parses the body and waits for the flow within the request, as it would behind the filter
+        FilterChain balance = (req, res) -> {
+            try {
+                controller.getAccountBalance("{\"account\":\"Batmobile\"}");
+            } catch (ExecutionException | InterruptedException e) {
+                throw new ServletException(e);
+            }
+        };
+        metrics.doFilter(request, response, balance);
+        metrics.doFilter(request, response, balance);
+
+        // a request that fails outside of Spring's error handling counts as a server error
+        try {
+            metrics.doFilter(request, response, (req, res) -> {
+                throw new IllegalStateException("failed");
+            });
+        } catch (IllegalStateException expected) {
+        }
+
+        String text = metrics.prometheusText();
+        String endpoint = "endpoint=\"GET /accountTokenBalance\"";
+        assertTrue(text.contains("gateway_requests_total{" + endpoint + ",status=\"2xx\"} 2\n"));
+        assertTrue(text.contains("gateway_requests_total{" + endpoint + ",status=\"5xx\"} 1\n"));
+        assertTrue(text.contains("gateway_request_seconds_count{" + endpoint + ",phase=\"total\"} 3\n"));
+        assertTrue(text.contains("gateway_request_seconds_count{" + endpoint + ",phase=\"json\"} 2\n"));
+        assertTrue(text.contains("gateway_request_seconds_count{" + endpoint + ",phase=\"flow\"} 2\n"));
+    }
+
+    @Test
+    public void testGatewayMetricsAsync() throws IOException, ServletException {
+        GatewayMetrics metrics = new GatewayMetrics();
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getMethod()).thenReturn("GET");
+        when(request.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE)).thenReturn("/flowResult/{requestId}");
+        when(request.isAsyncStarted()).thenReturn(true);
+        AsyncContext asyncContext = mock(AsyncContext.class);
+        when(request.getAsyncContext()).thenReturn(asyncContext);
+        HttpServletResponse response = mock(HttpServletResponse.class);
+        when(response.getStatus()).thenReturn(200);
+
+        // the handler returns before the response is written, so nothing is recorded yet
+        metrics.doFilter(request, response, (req, res) -> {});
+        String endpoint = "endpoint=\"GET /flowResult/{requestId}\"";
+        assertFalse(metrics.prometheusText().contains(endpoint));
+
+        ArgumentCaptor<AsyncListener> listener = ArgumentCaptor.forClass(AsyncListener.class);
+        verify(asyncContext).addListener(listener.capture());
+        when(response.getStatus()).thenReturn(404);
+        listener.getValue().onComplete(new AsyncEvent(asyncContext, request, response));
+
+        String text = metrics.prometheusText();
+        assertTrue(text.contains("gateway_requests_total{" + endpoint + ",status=\"4xx\"} 1\n"));
+        assertTrue(text.contains("gateway_request_seconds_count{" + endpoint + ",phase=\"total\"} 1\n"));
+    }
+
+    @Test
+    public void testInteractionDataStore() throws Exception {
+        Path directory = temporaryFolder.newFolder("interaction-data").toPath();
+        byte[] data = "{\"session\":42,\"kWh\":7.5}".getBytes(StandardCharsets.UTF_8);
+        String dataHash = Hex.toHexString(MessageDigest.getInstance("SHA-256").digest(data));
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1 << 20, false)) {
+            controller.setInteractionDataStore(store);
+
+            ResponseEntity<String> created = controller.storeInteractionData(upload(data), null);
+            assertEquals(HttpStatus.CREATED, created.getStatusCode());
+            assertEquals("{\"dataHash\":\"" + dataHash + "\",\"size\":" + data.length + "}", created.getBody());
+
+            // the same data again is not stored twice
+            assertEquals(HttpStatus.OK, controller.storeInteractionData(upload(data), dataHash).getStatusCode());
+            // nor is data that doesn't match the hash it was uploaded for
+            String otherHash = Hex.toHexString(new byte[32]);
+            assertEquals(HttpStatus.BAD_REQUEST, controller.storeInteractionData(upload(data), otherHash).getStatusCode());
+            assertEquals(HttpStatus.NOT_FOUND, controller.getInteractionData(otherHash).getStatusCode());
+
+            assertTrue(Arrays.equals(data, download(controller.getInteractionData(dataHash))));
+        }
+
+        // the index is rebuilt from the segments when the store is opened again
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1 << 20, false)) {
+            controller.setInteractionDataStore(store);
+            assertTrue(Arrays.equals(data, download(controller.getInteractionData(dataHash))));
+            assertEquals(Long.valueOf(1), store.stats().get("payloads"));
+        }
+    }
+
+    private static HttpServletRequest upload(byte[] data) throws IOException {
+        ByteArrayInputStream in = new ByteArrayInputStream(data);
+        HttpServletRequest request = mock(HttpServletRequest.class);
+        when(request.getContentLengthLong()).thenReturn((long) data.length);
+        when(request.getInputStream()).thenReturn(new ServletInputStream() {
+            @Override
+            public boolean isFinished() {
+                return in.available() == 0;
+            }
+
+            @Override
+            public boolean isReady() {
+                return true;
+            }
+
+            @Override
+            public void setReadListener(ReadListener readListener) {
+            }
+
+            @Override
+            public int read() {
+                return in.read();
+            }
+        });
+        return request;
+    }
+
+    private static byte[] download(ResponseEntity<StreamingResponseBody> response) throws IOException {
+        assertEquals(HttpStatus.OK, response.getStatusCode());
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        response.getBody().writeTo(out);
+        return out.toByteArray();
+    }
 }
@@ -0,0 +1,272 @@
+import net.corda.parsedata.client.webserver.InteractionDataStore;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * The segment log behind /interactionData, with segments small enough to write records by hand.
+ */
+public class InteractionDataStoreTests {
+
+    // the record layout of InteractionDataStore: marker, status, length and SHA-256, then the payload
+    private static final int HEADER_SIZE = 48;
+    private static final int MARKER = 0x56324744;
+    private static final int PENDING = 1;
+    private static final int COMMITTED = 2;
+    private static final int DISCARDED = 3;
+
+    private static final int SEGMENT_SIZE = 256;
+
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void testSegmentRollOver() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        byte[][] payloads = {payload(100, 1), payload(100, 2), payload(100, 3)};
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+            assertEquals(SEGMENT_SIZE - HEADER_SIZE, store.maxPayloadSize());
+            // a record takes 152 bytes, so each goes in a segment of its own
+            for (byte[] payload : payloads) {
+                assertTrue(put(store, payload).isCreated());
+            }
+            assertEquals(Long.valueOf(3), store.stats().get("segments"));
+            for (byte[] payload : payloads) {
+                assertArrayEquals(payload, read(store.get(sha256(payload))));
+            }
+
+            // the largest payload fills a segment to the byte, and one more doesn't fit at all
+            byte[] largest = payload(SEGMENT_SIZE - HEADER_SIZE, 4);
+            assertTrue(put(store, largest).isCreated());
+            assertEquals(Long.valueOf(4), store.stats().get("segments"));
+            try {
+                put(store, payload(SEGMENT_SIZE - HEADER_SIZE + 1, 5));
+                throw new AssertionError("A payload larger than a segment was stored");
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+            assertEquals(Long.valueOf(4), store.stats().get("payloads"));
+            assertEquals(Long.valueOf(4), store.stats().get("segments"));
+            for (byte[] payload : payloads) {
+                assertArrayEquals(payload, read(store.get(sha256(payload))));
+            }
+        }
+    }
+
+    @Test
+    public void testRecoveryOfPendingAndTornRecords() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        byte[] committed = payload(20, 1);
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1024, false)) {
+            put(store, committed);
+        }
+
+        // after the committed record (72 bytes): an upload that never finished, then a header torn mid-write,
+        // then bytes of a record that never made it
+        Path segment = directory.resolve("segment-000000.log");
+        writeHeader(segment, 72, PENDING, 16);
+        writeHeader(segment, 136, PENDING, 10_000);
+        write(segment, 600, new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF});
+
+        byte[] next = payload(30, 2);
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1024, false)) {
+            assertEquals(Long.valueOf(1), store.stats().get("payloads"));
+            assertEquals(Long.valueOf(1), store.stats().get("discarded"));
+            assertArrayEquals(committed, read(store.get(sha256(committed))));
+            // the log resumes where the torn header was
+            put(store, next);
+        }
+
+        ByteBuffer file = ByteBuffer.wrap(Files.readAllBytes(segment));
+        assertEquals(DISCARDED, file.getInt(72 + 4));
+        assertEquals(MARKER, file.getInt(136));
+        assertEquals(COMMITTED, file.getInt(136 + 4));
+        // the torn tail was zeroed, past the record written over its start
+        for (int i = 136 + HEADER_SIZE + 32; i < file.capacity(); i++) {
+            assertEquals("byte " + i, 0, file.get(i));
+        }
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1024, false)) {
+            assertEquals(Long.valueOf(2), store.stats().get("payloads"));
+            assertArrayEquals(next, read(store.get(sha256(next))));
+        }
+    }
+
+    @Test
+    public void testLastSegmentIsHashedAgain() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        byte[] first = payload(100, 1);
+        byte[] last = payload(100, 2);
+        try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+            put(store, first);
+            put(store, last);
+            assertEquals(Long.valueOf(2), store.stats().get("segments"));
+        }
+
+        // as if the OS had lost pages of both before writing them back
+        write(directory.resolve("segment-000000.log"), HEADER_SIZE, new byte[]{0});
+        write(directory.resolve("segment-000001.log"), HEADER_SIZE, new byte[]{0});
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+            // only the last segment can have been written to when the server stopped, so only it is checked
+            assertTrue(store.contains(sha256(first)));
+            assertFalse(store.contains(sha256(last)));
+            assertNull(store.get(sha256(last)));
+            assertEquals(Long.valueOf(1), store.stats().get("discarded"));
+
+            // so it can be uploaded again
+            assertTrue(put(store, last).isCreated());
+        }
+    }
+
+    @Test
+    public void testConcurrentUploadsOfTheSamePayload() throws Exception {
+        Path directory = temporaryFolder.newFolder().toPath();
+        byte[] payload = payload(40, 1);
+        // both uploads have reserved their record before either sends any data
+        CyclicBarrier reserved = new CyclicBarrier(2);
+        ExecutorService uploads = Executors.newFixedThreadPool(2);
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1024, false)) {
+            Callable<InteractionDataStore.Stored> upload
+                    = () -> store.put(new BarrierInputStream(payload, reserved), payload.length, null);
+            List<Future<InteractionDataStore.Stored>> stored = uploads.invokeAll(Arrays.asList(upload, upload));
+            uploads.shutdown();
+            assertTrue(uploads.awaitTermination(10, TimeUnit.SECONDS));
+
+            assertNotEquals(stored.get(0).get().isCreated(), stored.get(1).get().isCreated());
+            assertArrayEquals(sha256(payload), stored.get(0).get().getHash());
+            assertArrayEquals(sha256(payload), stored.get(1).get().getHash());
+            assertEquals(Long.valueOf(1), store.stats().get("payloads"));
+            assertEquals(Long.valueOf(1), store.stats().get("discarded"));
+            assertArrayEquals(payload, read(store.get(sha256(payload))));
+        }
+
+        // both copies are committed before either is published, so a crash can leave two of them
+        Path segment = directory.resolve("segment-000000.log");
+        int loser = ByteBuffer.wrap(Files.readAllBytes(segment)).getInt(4) == DISCARDED ? 0 : 88;
+        write(segment, loser + 4, ByteBuffer.allocate(4).putInt(COMMITTED).array());
+
+        try (InteractionDataStore store = new InteractionDataStore(directory, 1024, false)) {
+            assertEquals(Long.valueOf(1), store.stats().get("payloads"));
+            assertEquals(Long.valueOf(payload.length), store.stats().get("storedBytes"));
+        }
+    }
+
+    @Test
+    public void testCorruptHeaders() throws Exception {
+        // a negative length, a length past the end of the segment, and no marker at all
+        int[][] headers = {{MARKER, COMMITTED, -1}, {MARKER, COMMITTED, SEGMENT_SIZE}, {0x12345678, COMMITTED, 8}};
+        byte[] payload = payload(50, 1);
+
+        for (int[] header : headers) {
+            Path directory = temporaryFolder.newFolder().toPath();
+            Path segment = directory.resolve("segment-000000.log");
+            Files.write(segment, new byte[SEGMENT_SIZE]);
+            ByteBuffer written = ByteBuffer.allocate(16).putInt(header[0]).putInt(header[1]).putLong(header[2]);
+            write(segment, 0, written.array());
+
+            // the log ends at the bad header, so the store opens empty and appends over it
+            try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+                assertEquals(Long.valueOf(0), store.stats().get("payloads"));
+                assertTrue(put(store, payload).isCreated());
+            }
+            try (InteractionDataStore store = new InteractionDataStore(directory, SEGMENT_SIZE, false)) {
+                assertEquals(Long.valueOf(1), store.stats().get("payloads"));
+                assertArrayEquals(payload, read(store.get(sha256(payload))));
+            }
+        }
+    }
+
+    private static InteractionDataStore.Stored put(InteractionDataStore store, byte[] payload) throws IOException {
+        return store.put(new ByteArrayInputStream(payload), payload.length, null);
+    }
+
+    private static byte[] payload(int length, int seed) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte) (seed * 31 + i);
+        }
+        return payload;
+    }
+
+    private static byte[] read(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    private static byte[] sha256(byte[] payload) throws Exception {
+        return MessageDigest.getInstance("SHA-256").digest(payload);
+    }
+
+    private static void writeHeader(Path segment, int offset, int status, long length) throws IOException {
+        write(segment, offset, ByteBuffer.allocate(16).putInt(MARKER).putInt(status).putLong(length).array());
+    }
+
+    private static void write(Path segment, int offset, byte[] bytes) throws IOException {
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(bytes), offset);
+        }
+    }
+
+    /**
+     * A payload whose first read waits for the other uploads at the barrier.
+     */
+    private static class BarrierInputStream extends InputStream {
+        private final ByteArrayInputStream payload;
+        private final CyclicBarrier barrier;
+        private boolean started;
+
+        BarrierInputStream(byte[] payload, CyclicBarrier barrier) {
+            this.payload = new ByteArrayInputStream(payload);
+            this.barrier = barrier;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (!started) {
+                started = true;
+                try {
+                    barrier.await(10, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    throw new IOException(e);
+                }
+            }
+            return payload.read(bytes, offset, length);
+        }
+
+        @Override
+        public int read() {
+            return payload.read();
+        }
+    }
+}
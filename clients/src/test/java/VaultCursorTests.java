@@ -0,0 +1,129 @@
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.node.NetworkParameters;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.energy_cordapp.flows.IssueTokenFlow;
+import net.corda.energy_cordapp.flows.TokenConsolidationFlow;
+import net.corda.parsedata.client.webserver.VaultCursor;
+import net.corda.testing.node.MockNetwork;
+import net.corda.testing.node.MockNetworkParameters;
+import net.corda.testing.node.StartedMockNode;
+import net.corda.testing.node.TestCordapp;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+/**
+ * Pages a real vault with VaultCursor, as the Controller does over RPC.
+ */
+public class VaultCursorTests {
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode grid;
+    private StartedMockNode parsedata;
+
+    @Before
+    public void setup() {
+        mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
+                TestCordapp.findCordapp("net.corda.energy_cordapp.contracts"),
+                TestCordapp.findCordapp("net.corda.energy_cordapp.flows"),
+                TestCordapp.findCordapp("net.corda.energy_cordapp.accountUtilities"),
+                TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows")
+        )).withNetworkParameters(new NetworkParameters(4, Arrays.asList(), 10485760, (10485760 * 5),
+                Instant.now(), 1, new LinkedHashMap<>())));
+        grid = mockNetwork.createPartyNode(new CordaX500Name("Hydro One", "Toronto", "CA"));
+        parsedata = mockNetwork.createPartyNode(new CordaX500Name("Parsedata", "Toronto", "CA"));
+        mockNetwork.runNetwork();
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    /**
+     * Consumes every state between the first and second page, which shifted the offsets of an UNCONSUMED query
+     * so the client skipped the rest of the pages.
+     */
+    @Test
+    public void testStatesConsumedBetweenPages() {
+        for (int i = 0; i < 3; i++) {
+            parsedata.startFlow(new IssueTokenFlow((long) 10, grid.getInfo().getLegalIdentities().get(0)));
+            mockNetwork.runNetwork();
+        }
+        QueryCriteria criteria = new QueryCriteria.VaultQueryCriteria().withStatus(Vault.StateStatus.ALL);
+
+        VaultCursor cursor = VaultCursor.of(null, 1, "asc");
+        Vault.Page<FungibleToken> page = queryPage(criteria, cursor);
+        assertEquals(3, page.getTotalStatesAvailable());
+        List<StateRef> read = new ArrayList<>(refs(page));
+
+        // merges the three states into a new one, recorded after the cursor's snapshot
+        grid.startFlow(new TokenConsolidationFlow.Consolidate(2));
+        mockNetwork.runNetwork();
+        assertEquals(1, grid.getServices().getVaultService().queryBy(FungibleToken.class).getStates().size());
+
+        for (cursor = cursor.next(page); cursor != null; cursor = cursor.next(page)) {
+            // as a client would, from the token alone
+            cursor = VaultCursor.of(cursor.toToken(), null, null);
+            page = queryPage(criteria, cursor);
+            assertEquals(3, page.getTotalStatesAvailable());
+            assertFalse(read.containsAll(refs(page)));
+            read.addAll(refs(page));
+        }
+        assertEquals(3, read.size());
+
+        // a new cursor sees the vault as it is now
+        assertEquals(1, queryPage(criteria, VaultCursor.of(null, 1, "asc")).getTotalStatesAvailable());
+    }
+
+    /**
+     * Continuation tokens are made by clients as far as the server knows, so they are held to the same limits
+     * as the pageSize parameter.
+     */
+    @Test
+    public void testHandMadeTokens() {
+        String snapshot = Instant.now().toString();
+        for (String token : Arrays.asList("1:100000000:ASC:" + snapshot, "1:0:ASC:" + snapshot,
+                "0:100:ASC:" + snapshot, "-3:100:ASC:" + snapshot, "1:100:SIDEWAYS:" + snapshot, "1:100:ASC")) {
+            try {
+                VaultCursor.of(Base64.getUrlEncoder().encodeToString(token.getBytes(StandardCharsets.UTF_8)), null, null);
+                fail("Accepted the continuation token " + token);
+            } catch (IllegalArgumentException expected) {
+            }
+        }
+
+        // a token the server made is taken back as it is
+        VaultCursor cursor = VaultCursor.of(null, 1000, "desc");
+        assertEquals(cursor.toToken(), VaultCursor.of(cursor.toToken(), null, null).toToken());
+    }
+
+    private Vault.Page<FungibleToken> queryPage(QueryCriteria criteria, VaultCursor cursor) {
+        return grid.getServices().getVaultService()
+                .queryBy(FungibleToken.class, cursor.restrict(criteria), cursor.paging(), cursor.sort());
+    }
+
+    private static List<StateRef> refs(Vault.Page<FungibleToken> page) {
+        List<StateRef> refs = new ArrayList<>(page.getStates().size());
+        page.getStates().forEach(state -> refs.add(state.getRef()));
+        return refs;
+    }
+}
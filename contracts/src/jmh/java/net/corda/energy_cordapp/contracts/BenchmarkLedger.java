@@ -0,0 +1,41 @@
+package net.corda.energy_cordapp.contracts;
+
+import net.corda.core.serialization.internal.SerializationEnvironmentKt;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.energy_cordapp.states.InteractionDataState;
+import net.corda.testing.internal.InternalSerializationTestHelpersKt;
+import net.corda.testing.node.MockServices;
+
+/**
+ * Sets up the benchmarks' ledger, using the EnergyTransferBuilder of the contract tests.
+ */
+class BenchmarkLedger {
+    private static boolean serializationInstalled = false;
+
+    /**
+     * The benchmarks run outside JUnit, so there is no SerializationEnvironmentRule to set up serialization for them.
+     */
+    static synchronized void installSerialization() {
+        if (!serializationInstalled) {
+            SerializationEnvironmentKt.setNodeSerializationEnv(
+                    InternalSerializationTestHelpersKt.createTestSerializationEnv());
+            serializationInstalled = true;
+        }
+    }
+
+    static MockServices services() {
+        installSerialization();
+        return EnergyTransferBuilder.services();
+    }
+
+    static InteractionDataState session(int i) {
+        return EnergyTransferBuilder.session(EnergyTransferBuilder.GRID.getParty(), i);
+    }
+
+    /**
+     * @param inputs the number of the grid's token states spent, and of sessions settled
+     */
+    static LedgerTransaction energyTransfer(MockServices services, int inputs) {
+        return new EnergyTransferBuilder().inputs(inputs).sessions(inputs).build(services);
+    }
+}
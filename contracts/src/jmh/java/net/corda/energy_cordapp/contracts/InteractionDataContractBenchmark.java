@@ -0,0 +1,41 @@
+package net.corda.energy_cordapp.contracts;
+
+import net.corda.core.transactions.LedgerTransaction;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times InteractionDataContract.verify, and the baseline verifier, on energy transfers of growing size.
+ * A transfer with `inputs` token inputs has 2 * `inputs` token outputs and `inputs` InteractionDataStates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InteractionDataContractBenchmark {
+
+    @Param({"1", "10", "100", "1000"})
+    public int inputs;
+
+    private LedgerTransaction transaction;
+    private final InteractionDataContract contract = new InteractionDataContract();
+    private final BaselineInteractionDataContract baseline = new BaselineInteractionDataContract();
+
+    @Setup(Level.Trial)
+    public void setup() {
+        transaction = BenchmarkLedger.energyTransfer(BenchmarkLedger.services(), inputs);
+    }
+
+    @Benchmark
+    public void verify() {
+        contract.verify(transaction);
+    }
+
+    @Benchmark
+    public void verifyBaseline() {
+        baseline.verify(transaction);
+    }
+}
@@ -0,0 +1,52 @@
+package net.corda.energy_cordapp.contracts;
+
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.serialization.SerializationDefaults;
+import net.corda.core.serialization.SerializationFactory;
+import net.corda.core.serialization.SerializedBytes;
+import net.corda.energy_cordapp.states.InteractionDataSchemaV1;
+import net.corda.energy_cordapp.states.InteractionDataState;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times the per-state work every participant does when an InteractionDataState is sent and recorded:
+ * AMQP serialization in both directions, and mapping the state to its InteractionDataSchemaV1 row.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InteractionDataStateBenchmark {
+
+    private final InteractionDataSchemaV1 schema = new InteractionDataSchemaV1();
+    private InteractionDataState state;
+    private SerializedBytes<InteractionDataState> serialized;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        BenchmarkLedger.installSerialization();
+        state = BenchmarkLedger.session(0);
+        serialized = serialize();
+    }
+
+    @Benchmark
+    public SerializedBytes<InteractionDataState> serialize() {
+        return SerializationFactory.Companion.getDefaultFactory()
+                .serialize(state, SerializationDefaults.INSTANCE.getP2P_CONTEXT());
+    }
+
+    @Benchmark
+    public InteractionDataState deserialize() {
+        return SerializationFactory.Companion.getDefaultFactory()
+                .deserialize(serialized, InteractionDataState.class, SerializationDefaults.INSTANCE.getP2P_CONTEXT());
+    }
+
+    @Benchmark
+    public PersistentState generateMappedObject() {
+        return state.generateMappedObject(schema);
+    }
+}
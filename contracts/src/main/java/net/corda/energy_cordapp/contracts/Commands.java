@@ -5,4 +5,5 @@ import net.corda.core.contracts.CommandData;
 
 public interface Commands {
     class EnergyTransfer implements CommandData {};
+    class AnchorBatch implements CommandData {};
 }
@@ -0,0 +1,30 @@
+package net.corda.energy_cordapp.contracts;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one run of InteractionDataContract.verify. Only used when FlightRecorder.AVAILABLE.
+ */
+@Name("net.corda.energy_cordapp.ContractVerify")
+@Label("Contract Verify")
+@Category({"Energy CorDapp", "Ledger"})
+@Description("Verification of a transaction by InteractionDataContract")
+@StackTrace(false)
+final class ContractVerifyEvent extends jdk.jfr.Event {
+
+    @Label("Transaction ID")
+    String transactionId;
+
+    @Label("Inputs")
+    int inputs;
+
+    @Label("Outputs")
+    int outputs;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
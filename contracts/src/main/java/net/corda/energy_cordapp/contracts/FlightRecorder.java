@@ -0,0 +1,27 @@
+package net.corda.energy_cordapp.contracts;
+
+/**
+ * Whether this JVM has the Java Flight Recorder event API (jdk.jfr): Java 11, and OpenJDK 8 from 8u262.
+ * The CorDapp's custom JFR events (contract verification, flows, coin selection, the Spring server's RPC calls)
+ * are only created when it does, so the CorDapp and its clients still run on older Java 8 JVMs.
+ *
+ * With a recording running, e.g. -XX:StartFlightRecording on the node or the Spring server, the events show up
+ * under "Energy CorDapp" next to the JVM's own GC, lock and I/O events. Without one, an event costs an allocation
+ * the JIT usually removes and a check of whether it is enabled.
+ */
+public final class FlightRecorder {
+
+    public static final boolean AVAILABLE = available();
+
+    private FlightRecorder() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightRecorder.class.getClassLoader());
+            return true;
+        } catch (ClassNotFoundException | LinkageError e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package net.corda.energy_cordapp.contracts;
+
+import net.corda.core.contracts.Attachment;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.CommandWithParties;
+import net.corda.core.contracts.Contract;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.PublicKey;
+import java.util.Arrays;
+import java.util.List;
+
+import static net.corda.energy_cordapp.contracts.Requirements.require;
+
+public class InteractionBatchContract implements Contract {
+
+    // the root must be the one of the session hashes attached to the transaction,
+    // so whoever holds the state can prove any session's inclusion from the transaction alone
+    @Override
+    public void verify(@NotNull LedgerTransaction tx) throws IllegalArgumentException {
+        require("Should not consume an InteractionBatchState", tx.inputsOfType(InteractionBatchState.class).isEmpty());
+        List<InteractionBatchState> batches = tx.outputsOfType(InteractionBatchState.class);
+        require("Should have at least one InteractionBatchState output", !batches.isEmpty());
+
+        List<PublicKey> signers = null;
+        for (CommandWithParties<CommandData> command : tx.getCommands()) {
+            if (command.getValue() instanceof Commands.AnchorBatch) {
+                signers = command.getSigners();
+            }
+        }
+        require("Should include AnchorBatchCommand", signers != null);
+
+        for (InteractionBatchState batch : batches) {
+            require("The grid should sign the batch", signers.contains(batch.getGrid().getOwningKey()));
+            require("The sanctions body should sign the batch",
+                    signers.contains(batch.getSanctionsBody().getOwningKey()));
+
+            Attachment sessionHashes = null;
+            for (Attachment attachment : tx.getAttachments()) {
+                if (attachment.getId().equals(batch.getSessionHashes())) {
+                    sessionHashes = attachment;
+                }
+            }
+            require("Should attach the session hashes", sessionHashes != null);
+
+            SessionMerkleTree tree;
+            try (InputStream in = sessionHashes.open()) {
+                tree = SessionMerkleTree.fromAttachment(in);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Failed requirement: The session hashes should be readable", e);
+            }
+            require("The leaf count should be the number of session hashes", tree.getLeafCount() == batch.getLeafCount());
+            require("The Merkle root should be the one of the session hashes",
+                    Arrays.equals(tree.getRoot(), batch.getMerkleRoot()));
+        }
+    }
+}
@@ -2,74 +2,108 @@ package net.corda.energy_cordapp.contracts;
 
 import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import net.corda.core.contracts.CommandData;
+import net.corda.core.contracts.CommandWithParties;
 import net.corda.core.contracts.Contract;
 import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
 import net.corda.core.contracts.TransactionState;
+import net.corda.core.identity.Party;
 import net.corda.core.transactions.LedgerTransaction;
 import net.corda.energy_cordapp.states.InteractionDataState;
 import org.jetbrains.annotations.NotNull;
 
-import java.util.stream.Stream;
+import java.util.List;
 
-import static net.corda.core.contracts.ContractsDSL.requireThat;
+import static net.corda.energy_cordapp.contracts.Requirements.require;
 
 public class InteractionDataContract implements Contract {
+
+    // timed as a JFR event when the JVM supports them (see FlightRecorder)
     @Override
     public void verify(@NotNull LedgerTransaction tx) throws IllegalArgumentException {
-        ContractState[] dataStateStream
-                = tx.getOutputStates().stream().filter(state -> state instanceof InteractionDataState).toArray(ContractState[]::new);
-        requireThat(require -> {
-            require.using("Should only have one InteractionDataState output",
-                    dataStateStream.length == 1);
-            return null;
-        });
-        InteractionDataState interactionDataState = (InteractionDataState) dataStateStream[0];
-
-        ContractState[] gridInputStream = tx.getInputStates().stream()
-                .filter(state -> state instanceof FungibleToken)
-                .filter(state -> ((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
-                .toArray(ContractState[]::new);
-
-//        requireThat(require -> {
-//            require.using("Should only have one Fungible Grid input",
-//                    gridInputStream.length == 1);
-//            return null;
-//        });
+        if (!FlightRecorder.AVAILABLE) {
+            verifyInteraction(tx);
+            return;
+        }
+        ContractVerifyEvent event = new ContractVerifyEvent();
+        event.begin();
+        boolean succeeded = false;
+        try {
+            verifyInteraction(tx);
+            succeeded = true;
+        } finally {
+            event.end();
+            // the fields are only filled in when a recording wants the event
+            if (event.shouldCommit()) {
+                event.transactionId = tx.getId().toString();
+                event.inputs = tx.getInputs().size();
+                event.outputs = tx.getOutputs().size();
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
 
-        FungibleToken gridInputState = (FungibleToken) gridInputStream[0];
+    // verify runs on the grid, the OEM and the sanctions body for every transfer, and batched transfers can be large,
+    // so it walks the outputs, inputs and commands once each, with early exits and no intermediate collections
+    private static void verifyInteraction(LedgerTransaction tx) {
+        // getOutputs() and getInputs() are the transaction's own lists, unlike getOutputStates() and getInputStates()
+        List<TransactionState<ContractState>> outputs = tx.getOutputs();
 
-        ContractState[] gridOutputStream = tx.getOutputStates().stream()
-                .filter(state -> state instanceof FungibleToken)
-                .filter(state -> ((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
-                .toArray(ContractState[]::new);
+        // the grid is the one of the first InteractionDataState;
+        // a batched energy transfer carries one InteractionDataState per session,
+        // but all of them must be paid for by the same grid
+        Party grid = null;
+        int firstInteraction = -1;
+        boolean sameGrid = true;
+        boolean gridOutput = false;
+        for (int i = 0; i < outputs.size(); i++) {
+            ContractState state = outputs.get(i).getData();
+            if (state instanceof InteractionDataState) {
+                Party stateGrid = ((InteractionDataState) state).getGrid();
+                if (firstInteraction < 0) {
+                    grid = stateGrid;
+                    firstInteraction = i;
+                } else if (sameGrid && grid != null && !grid.equals(stateGrid)) {
+                    sameGrid = false;
+                }
+            } else if (firstInteraction >= 0 && !gridOutput && state instanceof FungibleToken) {
+                gridOutput = ((FungibleToken) state).getHolder().equals(grid);
+            }
+        }
+        require("Should have at least one InteractionDataState output", firstInteraction >= 0);
+        require("InteractionDataState outputs should have a grid", grid != null);
+        require("All InteractionDataState outputs should share the same grid", sameGrid);
 
-//        requireThat(require -> {
-//            require.using("Should only have one Fungible Grid output",
-//                    gridOutputStream.length == 1);
-//            return null;
-//        });
+        // token outputs before the first InteractionDataState were passed before the grid was known
+        for (int i = 0; i < firstInteraction && !gridOutput; i++) {
+            ContractState state = outputs.get(i).getData();
+            gridOutput = state instanceof FungibleToken && ((FungibleToken) state).getHolder().equals(grid);
+        }
 
-        FungibleToken gridOutputState = (FungibleToken) gridOutputStream[0];
+        boolean gridInput = false;
+        List<StateAndRef<ContractState>> inputs = tx.getInputs();
+        for (int i = 0; i < inputs.size() && !gridInput; i++) {
+            ContractState state = inputs.get(i).getState().getData();
+            gridInput = state instanceof FungibleToken && ((FungibleToken) state).getHolder().equals(grid);
+        }
+        require("Should spend a FungibleToken held by the grid", gridInput);
+        require("Should return a FungibleToken to the grid", gridOutput);
 
-        long notGridOutputCount = tx.getOutputStates().stream()
-                .filter(state -> state instanceof FungibleToken)
-                .filter(state -> !((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
-                .count();
+        boolean moveCommand = false;
+        boolean energyTransferCommand = false;
+        List<CommandWithParties<CommandData>> commands = tx.getCommands();
+        for (int i = 0; i < commands.size() && !(moveCommand && energyTransferCommand); i++) {
+            CommandData command = commands.get(i).getValue();
+            moveCommand |= command instanceof MoveTokenCommand;
+            energyTransferCommand |= command instanceof Commands.EnergyTransfer;
+        }
+        require("Should include MoveTokenCommand", moveCommand);
+        require("Should include EnergyTransferCommand", energyTransferCommand);
 
-        requireThat(require -> {
-            require.using("Should include MoveTokenCommand",
-                    tx.getCommands().stream().anyMatch(o -> o.getValue() instanceof MoveTokenCommand));
-            require.using("Should include EnergyTransferCommand",
-                    tx.getCommands().stream().anyMatch(o -> o.getValue() instanceof Commands.EnergyTransfer));
-//            require.using("Should only have one output that doesn't belong to the grid",
-//                    notGridOutputCount == 1);
-//            require.using("Amount spent by grid should match",
-//                    gridInputState.getAmount().getQuantity() - gridOutputState.getAmount().getQuantity()
-//                            == interactionDataState.getAmount());
-            // Since we verified that MoveTokenCommand is applied, and these are verified to be FungibleTokens,
-            // FungibleTokenContract will ensure that the total input amount matches total output amount,
-            // so we don't have to worry about counting the amount transferred to the OEM as well as Grid
-            return null;
-        });
+        // Since we verified that MoveTokenCommand is applied, and these are verified to be FungibleTokens,
+        // FungibleTokenContract will ensure that the total input amount matches total output amount,
+        // so we don't have to worry about counting the amount transferred to the OEM as well as Grid
     }
 }
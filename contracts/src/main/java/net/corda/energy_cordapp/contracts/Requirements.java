@@ -0,0 +1,18 @@
+package net.corda.energy_cordapp.contracts;
+
+/**
+ * The checks shared by this CorDapp's contracts.
+ */
+final class Requirements {
+    private Requirements() {
+    }
+
+    /**
+     * Fails verification like ContractsDSL.requireThat, without allocating a lambda per check.
+     */
+    static void require(String message, boolean expression) {
+        if (!expression) {
+            throw new IllegalArgumentException("Failed requirement: " + message);
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package net.corda.energy_cordapp.contracts;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+import java.util.zip.ZipEntry;
+
+/**
+ * A Merkle tree over V2G session hashes, whose root an InteractionBatchState anchors on the ledger.
+ *
+ * The tree is the one of RFC 6962 (Certificate Transparency), with SHA-256: a leaf is hashed as 0x00 || session hash
+ * and an inner node as 0x01 || left || right, so a leaf can't pass for a node. The leaves are the session hashes in
+ * ascending unsigned order, which makes them unique and lets a session be found by binary search. A tree that isn't
+ * a power of two wide promotes the last node of an odd level unchanged.
+ *
+ * The session hashes themselves travel with the anchoring transaction as an attachment (see toAttachment),
+ * so every participant can rebuild the tree and prove a session's inclusion without a ledger state per session.
+ */
+public final class SessionMerkleTree {
+    public static final int HASH_SIZE = 32;
+    // the attachment entry holding the session hashes, concatenated
+    public static final String LEAVES_ENTRY = "session-hashes.bin";
+
+    private static final byte LEAF_PREFIX = 0;
+    private static final byte NODE_PREFIX = 1;
+
+    private final byte[][] leaves;
+    // levels[0] holds the leaf hashes, and the last level the root
+    private final byte[][][] levels;
+
+    /**
+     * @param sessionHashes the session hashes, in any order; each must be a SHA-256
+     * @throws IllegalArgumentException if there are none, one has the wrong size or one is repeated
+     */
+    public SessionMerkleTree(Collection<byte[]> sessionHashes) {
+        if (sessionHashes.isEmpty()) {
+            throw new IllegalArgumentException("A Merkle tree needs at least one session hash");
+        }
+        leaves = sessionHashes.toArray(new byte[0][]);
+        for (byte[] leaf : leaves) {
+            if (leaf == null || leaf.length != HASH_SIZE) {
+                throw new IllegalArgumentException("A session hash must be " + HASH_SIZE + " bytes");
+            }
+        }
+        Arrays.sort(leaves, SessionMerkleTree::compare);
+        for (int i = 1; i < leaves.length; i++) {
+            if (compare(leaves[i - 1], leaves[i]) == 0) {
+                throw new IllegalArgumentException("The session hashes must be unique");
+            }
+        }
+
+        List<byte[][]> built = new ArrayList<>();
+        MessageDigest digest = sha256();
+        byte[][] level = new byte[leaves.length][];
+        for (int i = 0; i < leaves.length; i++) {
+            level[i] = leafHash(digest, leaves[i]);
+        }
+        built.add(level);
+        while (level.length > 1) {
+            byte[][] parents = new byte[(level.length + 1) / 2][];
+            for (int i = 0; i < parents.length; i++) {
+                parents[i] = 2 * i + 1 < level.length ? nodeHash(digest, level[2 * i], level[2 * i + 1]) : level[2 * i];
+            }
+            built.add(parents);
+            level = parents;
+        }
+        levels = built.toArray(new byte[0][][]);
+    }
+
+    public byte[] getRoot() {
+        return levels[levels.length - 1][0].clone();
+    }
+
+    public int getLeafCount() {
+        return leaves.length;
+    }
+
+    /**
+     * @return the session hash's position among the leaves, or a negative number if it isn't one of them
+     */
+    public int indexOf(byte[] sessionHash) {
+        return Arrays.binarySearch(leaves, sessionHash, SessionMerkleTree::compare);
+    }
+
+    /**
+     * @return the hashes needed to recompute the root from the leaf at this index, from the bottom of the tree up
+     */
+    public List<byte[]> auditPath(int index) {
+        if (index < 0 || index >= leaves.length) {
+            throw new IndexOutOfBoundsException("No leaf " + index + " in a tree of " + leaves.length);
+        }
+        List<byte[]> path = new ArrayList<>(levels.length);
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = index ^ 1;
+            // the last node of an odd level has no sibling, and is promoted as it is
+            if (sibling < levels[level].length) {
+                path.add(levels[level][sibling].clone());
+            }
+            index /= 2;
+        }
+        return path;
+    }
+
+    /**
+     * Checks that a session is one of the leaves of the tree with this root, as in RFC 6962 section 2.1.1.
+     * @param leafIndex the session's position among the leaves
+     * @param leafCount the number of leaves of the tree
+     * @param auditPath the path returned by auditPath
+     */
+    public static boolean verify(byte[] sessionHash, int leafIndex, int leafCount, List<byte[]> auditPath, byte[] root) {
+        if (sessionHash == null || root == null || leafIndex < 0 || leafIndex >= leafCount) {
+            return false;
+        }
+        MessageDigest digest = sha256();
+        long index = leafIndex;
+        long lastIndex = leafCount - 1;
+        byte[] hash = leafHash(digest, sessionHash);
+        for (byte[] sibling : auditPath) {
+            if (lastIndex == 0) {
+                return false;
+            }
+            if ((index & 1) == 1 || index == lastIndex) {
+                hash = nodeHash(digest, sibling, hash);
+                // skip the levels where this node was promoted without a sibling
+                while ((index & 1) == 0 && index != 0) {
+                    index >>= 1;
+                    lastIndex >>= 1;
+                }
+            } else {
+                hash = nodeHash(digest, hash, sibling);
+            }
+            index >>= 1;
+            lastIndex >>= 1;
+        }
+        return lastIndex == 0 && MessageDigest.isEqual(hash, root);
+    }
+
+    /**
+     * @return the session hashes as a jar, to attach to the anchoring transaction
+     */
+    public byte[] toAttachment() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(leaves.length * HASH_SIZE + 256);
+        try (JarOutputStream jar = new JarOutputStream(bytes)) {
+            ZipEntry entry = new ZipEntry(LEAVES_ENTRY);
+            // a fixed time, so the same sessions always make the same attachment
+            entry.setTime(0);
+            jar.putNextEntry(entry);
+            for (byte[] leaf : leaves) {
+                jar.write(leaf);
+            }
+            jar.closeEntry();
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Rebuilds the tree from an attachment made by toAttachment.
+     * @throws IllegalArgumentException if the attachment doesn't hold session hashes
+     */
+    public static SessionMerkleTree fromAttachment(InputStream attachment) throws IOException {
+        return new SessionMerkleTree(readLeaves(attachment));
+    }
+
+    /**
+     * Reads the session hashes of an attachment made by toAttachment, in ascending order, without hashing them.
+     * @throws IllegalArgumentException if the attachment doesn't hold session hashes
+     */
+    public static List<byte[]> readLeaves(InputStream attachment) throws IOException {
+        try (JarInputStream jar = new JarInputStream(attachment)) {
+            for (ZipEntry entry = jar.getNextEntry(); entry != null; entry = jar.getNextEntry()) {
+                if (!LEAVES_ENTRY.equals(entry.getName())) {
+                    continue;
+                }
+                List<byte[]> leaves = new ArrayList<>();
+                byte[] leaf = new byte[HASH_SIZE];
+                int filled = 0;
+                for (int read; (read = jar.read(leaf, filled, HASH_SIZE - filled)) >= 0; ) {
+                    filled += read;
+                    if (filled == HASH_SIZE) {
+                        leaves.add(leaf);
+                        leaf = new byte[HASH_SIZE];
+                        filled = 0;
+                    }
+                }
+                if (filled != 0) {
+                    throw new IllegalArgumentException(LEAVES_ENTRY + " is not a whole number of session hashes");
+                }
+                return leaves;
+            }
+        }
+        throw new IllegalArgumentException("The attachment has no " + LEAVES_ENTRY);
+    }
+
+    // unsigned lexicographic order
+    private static int compare(byte[] a, byte[] b) {
+        for (int i = 0; i < Math.min(a.length, b.length); i++) {
+            int difference = (a[i] & 0xff) - (b[i] & 0xff);
+            if (difference != 0) {
+                return difference;
+            }
+        }
+        return a.length - b.length;
+    }
+
+    private static byte[] leafHash(MessageDigest digest, byte[] sessionHash) {
+        digest.update(LEAF_PREFIX);
+        return digest.digest(sessionHash);
+    }
+
+    private static byte[] nodeHash(MessageDigest digest, byte[] left, byte[] right) {
+        digest.update(NODE_PREFIX);
+        digest.update(left);
+        return digest.digest(right);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,4 @@
+package net.corda.energy_cordapp.states;
+
+public class InteractionBatchSchema {
+}
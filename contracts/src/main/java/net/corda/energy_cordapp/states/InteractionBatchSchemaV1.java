@@ -0,0 +1,167 @@
+package net.corda.energy_cordapp.states;
+
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Embeddable;
+import javax.persistence.EmbeddedId;
+import javax.persistence.Entity;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.UUID;
+
+public class InteractionBatchSchemaV1 extends MappedSchema {
+    public InteractionBatchSchemaV1() {
+        super(InteractionBatchSchema.class, 1, Arrays.asList(InteractionBatchModel.class, SessionModel.class));
+    }
+
+    // migration/interaction-batch.changelog-master.xml, for both tables and the merkle_root index
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "interaction-batch.changelog-master";
+    }
+
+    @Entity
+    @Table(name="interaction_batch_state_model", indexes = {
+            @Index(name = "interaction_batch_root_idx", columnList = "merkle_root")
+    })
+    public static class InteractionBatchModel extends PersistentState {
+
+        @Column(name="merkle_root", length = 32)
+        private final byte[] merkleRoot;
+        @Column(name="linear_id", columnDefinition = "varbinary not null")
+        public final UUID linearId;
+        @Column(name="grid")
+        private final Party grid;
+        @Column(name="leaf_count")
+        private final int leafCount;
+        @Column(name="session_hashes", length = 144)
+        private final String sessionHashes;
+        @Column(name="note")
+        private final String note;
+
+        public InteractionBatchModel(byte[] merkleRoot, UUID linearId, Party grid, int leafCount,
+                                     String sessionHashes, String note) {
+            this.merkleRoot = merkleRoot;
+            this.linearId = linearId;
+            this.grid = grid;
+            this.leafCount = leafCount;
+            this.sessionHashes = sessionHashes;
+            this.note = note;
+        }
+
+        public InteractionBatchModel() {
+            this.merkleRoot = new byte[]{};
+            this.linearId = UUID.randomUUID();
+            this.grid = null;
+            this.leafCount = 0;
+            this.sessionHashes = null;
+            this.note = "";
+        }
+
+        public byte[] getMerkleRoot() {
+            return merkleRoot;
+        }
+
+        public Party getGrid() {
+            return grid;
+        }
+
+        public int getLeafCount() {
+            return leafCount;
+        }
+
+        public String getSessionHashes() {
+            return sessionHashes;
+        }
+
+        public String getNote() {
+            return note;
+        }
+    }
+
+    /**
+     * The index from a session hash to the batches anchoring it, so a session's proof is found without reading
+     * every batch's attachment. Filled by SessionIndexService, if enabled, as batches are recorded: the hashes are
+     * in the attachment rather than in the state, so the state's own mapping can't hold them.
+     * Queries refer to the entity by its name.
+     */
+    @Entity(name = "InteractionBatchSession")
+    @Table(name="interaction_batch_session")
+    public static class SessionModel {
+
+        @EmbeddedId
+        private final SessionKey key;
+
+        public SessionModel(String sessionHash, String transactionId, int outputIndex) {
+            this.key = new SessionKey(sessionHash, transactionId, outputIndex);
+        }
+
+        public SessionModel() {
+            this.key = null;
+        }
+
+        public String getSessionHash() {
+            return key.sessionHash;
+        }
+
+        public String getTransactionId() {
+            return key.transactionId;
+        }
+
+        public int getOutputIndex() {
+            return key.outputIndex;
+        }
+    }
+
+    // led by the session hash, so the primary key serves the lookup
+    @Embeddable
+    public static class SessionKey implements Serializable {
+
+        // the session hash in hex
+        @Column(name="session_hash", length = 64)
+        private final String sessionHash;
+        @Column(name="transaction_id", length = 144)
+        private final String transactionId;
+        @Column(name="output_index")
+        private final int outputIndex;
+
+        public SessionKey(String sessionHash, String transactionId, int outputIndex) {
+            this.sessionHash = sessionHash;
+            this.transactionId = transactionId;
+            this.outputIndex = outputIndex;
+        }
+
+        public SessionKey() {
+            this.sessionHash = null;
+            this.transactionId = null;
+            this.outputIndex = 0;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof SessionKey)) {
+                return false;
+            }
+            SessionKey other = (SessionKey) o;
+            return outputIndex == other.outputIndex && Objects.equals(sessionHash, other.sessionHash)
+                    && Objects.equals(transactionId, other.transactionId);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sessionHash, transactionId, outputIndex);
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package net.corda.energy_cordapp.states;
+
+import net.corda.core.contracts.BelongsToContract;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.LinearState;
+import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.AbstractParty;
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+import net.corda.core.schemas.PersistentState;
+import net.corda.core.schemas.QueryableState;
+import net.corda.energy_cordapp.contracts.InteractionBatchContract;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Anchors many V2G sessions on the ledger at once: the Merkle root over their hashes (see SessionMerkleTree),
+ * committed by a grid and signed off by the sanctions body, instead of one InteractionDataState per session.
+ * The session hashes themselves are in the attachment sessionHashes of the same transaction.
+ */
+@BelongsToContract(InteractionBatchContract.class)
+public class InteractionBatchState implements ContractState, LinearState, QueryableState {
+    private final Party grid;
+    private final Party sanctionsBody;
+    private final byte[] merkleRoot;
+    private final int leafCount;
+    private final SecureHash sessionHashes;
+    private final String note;
+    private final UniqueIdentifier linearId = new UniqueIdentifier();
+
+    public InteractionBatchState(Party grid, Party sanctionsBody, byte[] merkleRoot, int leafCount,
+                                 SecureHash sessionHashes, String note) {
+        this.grid = grid;
+        this.sanctionsBody = sanctionsBody;
+        this.merkleRoot = merkleRoot;
+        this.leafCount = leafCount;
+        this.sessionHashes = sessionHashes;
+        this.note = note;
+    }
+
+    @NotNull
+    @Override
+    public List<AbstractParty> getParticipants() {
+        return Arrays.asList(grid, sanctionsBody);
+    }
+
+    @NotNull
+    @Override
+    public UniqueIdentifier getLinearId() {
+        return linearId;
+    }
+
+    @NotNull
+    @Override
+    public PersistentState generateMappedObject(@NotNull MappedSchema schema) {
+        if (schema instanceof InteractionBatchSchemaV1) {
+            return new InteractionBatchSchemaV1.InteractionBatchModel(merkleRoot, linearId.getId(), grid, leafCount,
+                    sessionHashes.toString(), note);
+        } else {
+            throw new IllegalArgumentException("No supported schema found");
+        }
+    }
+
+    @NotNull
+    @Override
+    public Iterable<MappedSchema> supportedSchemas() {
+        return Arrays.asList(new InteractionBatchSchemaV1());
+    }
+
+    public Party getGrid() {
+        return grid;
+    }
+
+    public Party getSanctionsBody() {
+        return sanctionsBody;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    /**
+     * @return the ID of the attachment holding the session hashes
+     */
+    public SecureHash getSessionHashes() {
+        return sessionHashes;
+    }
+
+    public String getNote() {
+        return note;
+    }
+}
@@ -5,8 +5,11 @@ import net.corda.core.identity.Party;
 import net.corda.core.schemas.MappedSchema;
 import net.corda.core.schemas.PersistentState;
 
+import org.jetbrains.annotations.Nullable;
+
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.Index;
 import javax.persistence.Table;
 import java.util.Arrays;
 import java.util.UUID;
@@ -16,11 +19,24 @@ public class InteractionDataSchemaV1 extends MappedSchema {
         super(InteractionDataSchema.class, 1, Arrays.asList(InteractionDataModel.class));
     }
 
+    // migration/interaction-data.changelog-master.xml, which also adds the hash, grid, oem and transaction ID indexes
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "interaction-data.changelog-master";
+    }
+
     @Entity
-    @Table(name="interaction_data_state_model")
+    @Table(name="interaction_data_state_model", indexes = {
+            @Index(name = "interaction_data_hash_idx", columnList = "hash"),
+            @Index(name = "interaction_data_grid_idx", columnList = "grid"),
+            @Index(name = "interaction_data_oem_idx", columnList = "oem"),
+            @Index(name = "interaction_data_tx_id_idx", columnList = "transaction_id")
+    })
     public static class InteractionDataModel extends PersistentState {
 
-        @Column(name="hash")
+        // interaction hashes are at most 64 bytes (SHA-512), bounded so the hash index stays compact
+        @Column(name="hash", length = 64)
         private final byte[] hash;
         @Column(name="linear_id", columnDefinition = "varbinary not null")
         public final UUID linearId;
@@ -0,0 +1,89 @@
+package net.corda.energy_cordapp.contracts;
+
+import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import net.corda.core.contracts.Contract;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.energy_cordapp.states.InteractionDataState;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.stream.Stream;
+
+import static net.corda.core.contracts.ContractsDSL.requireThat;
+
+/**
+ * A frozen copy of InteractionDataContract.verify from before it was rewritten as a single pass.
+ * ContractTests checks that both reach the same decisions, and the JMH benchmarks compare their cost.
+ * Not used on the ledger.
+ */
+class BaselineInteractionDataContract implements Contract {
+    @Override
+    public void verify(@NotNull LedgerTransaction tx) throws IllegalArgumentException {
+        ContractState[] dataStateStream
+                = tx.getOutputStates().stream().filter(state -> state instanceof InteractionDataState).toArray(ContractState[]::new);
+        requireThat(require -> {
+            require.using("Should have at least one InteractionDataState output",
+                    dataStateStream.length >= 1);
+            return null;
+        });
+        InteractionDataState interactionDataState = (InteractionDataState) dataStateStream[0];
+
+        // a batched energy transfer carries one InteractionDataState per session,
+        // but all of them must be paid for by the same grid
+        requireThat(require -> {
+            require.using("All InteractionDataState outputs should share the same grid",
+                    Stream.of(dataStateStream)
+                            .allMatch(state -> ((InteractionDataState) state).getGrid()
+                                    .equals(interactionDataState.getGrid())));
+            return null;
+        });
+
+        ContractState[] gridInputStream = tx.getInputStates().stream()
+                .filter(state -> state instanceof FungibleToken)
+                .filter(state -> ((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
+                .toArray(ContractState[]::new);
+
+//        requireThat(require -> {
+//            require.using("Should only have one Fungible Grid input",
+//                    gridInputStream.length == 1);
+//            return null;
+//        });
+
+        FungibleToken gridInputState = (FungibleToken) gridInputStream[0];
+
+        ContractState[] gridOutputStream = tx.getOutputStates().stream()
+                .filter(state -> state instanceof FungibleToken)
+                .filter(state -> ((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
+                .toArray(ContractState[]::new);
+
+//        requireThat(require -> {
+//            require.using("Should only have one Fungible Grid output",
+//                    gridOutputStream.length == 1);
+//            return null;
+//        });
+
+        FungibleToken gridOutputState = (FungibleToken) gridOutputStream[0];
+
+        long notGridOutputCount = tx.getOutputStates().stream()
+                .filter(state -> state instanceof FungibleToken)
+                .filter(state -> !((FungibleToken) state).getHolder().equals(interactionDataState.getGrid()))
+                .count();
+
+        requireThat(require -> {
+            require.using("Should include MoveTokenCommand",
+                    tx.getCommands().stream().anyMatch(o -> o.getValue() instanceof MoveTokenCommand));
+            require.using("Should include EnergyTransferCommand",
+                    tx.getCommands().stream().anyMatch(o -> o.getValue() instanceof Commands.EnergyTransfer));
+//            require.using("Should only have one output that doesn't belong to the grid",
+//                    notGridOutputCount == 1);
+//            require.using("Amount spent by grid should match",
+//                    gridInputState.getAmount().getQuantity() - gridOutputState.getAmount().getQuantity()
+//                            == interactionDataState.getAmount());
+            // Since we verified that MoveTokenCommand is applied, and these are verified to be FungibleTokens,
+            // FungibleTokenContract will ensure that the total input amount matches total output amount,
+            // so we don't have to worry about counting the amount transferred to the OEM as well as Grid
+            return null;
+        });
+    }
+}
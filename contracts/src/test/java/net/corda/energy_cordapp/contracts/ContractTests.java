@@ -1,14 +1,152 @@
 package net.corda.energy_cordapp.contracts;
 
+import net.corda.core.contracts.Contract;
 import net.corda.core.contracts.UniqueIdentifier;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.identity.CordaX500Name;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+import net.corda.testing.core.SerializationEnvironmentRule;
 import net.corda.testing.core.TestIdentity;
 import net.corda.testing.node.MockServices;
+import org.junit.Rule;
 import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 import static net.corda.testing.node.NodeTestUtils.ledger;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 public class ContractTests {
+    @Rule
+    public final SerializationEnvironmentRule testSerialization = new SerializationEnvironmentRule();
+
     private final MockServices ledgerServices = new MockServices();
     TestIdentity Operator = new TestIdentity(new CordaX500Name("Alice",  "TestLand",  "US"));
 
-}
\ No newline at end of file
+    /**
+     * Energy transfers InteractionDataContract should accept
+     */
+    private static Map<String, LedgerTransaction> validTransfers(MockServices services) {
+        Map<String, LedgerTransaction> transfers = new LinkedHashMap<>();
+        transfers.put("single session", new EnergyTransferBuilder().build(services));
+        transfers.put("batch", new EnergyTransferBuilder().inputs(50).sessions(50).build(services));
+        transfers.put("sessions before tokens", new EnergyTransferBuilder().sessions(3).sessionsFirst().build(services));
+        return transfers;
+    }
+
+    /**
+     * Energy transfers that each break one rule of InteractionDataContract
+     */
+    private static Map<String, LedgerTransaction> invalidTransfers(MockServices services) {
+        Map<String, LedgerTransaction> transfers = new LinkedHashMap<>();
+        transfers.put("no session", new EnergyTransferBuilder().sessions(0).build(services));
+        transfers.put("two grids", new EnergyTransferBuilder().sessions(3).withOtherGridSession().build(services));
+        transfers.put("not the grid's tokens", new EnergyTransferBuilder()
+                .inputsHeldBy(EnergyTransferBuilder.OTHER_GRID.getParty()).build(services));
+        transfers.put("no change for the grid", new EnergyTransferBuilder().withoutGridChange().build(services));
+        transfers.put("no move command", new EnergyTransferBuilder().withoutMoveCommand().build(services));
+        transfers.put("no energy transfer command",
+                new EnergyTransferBuilder().withoutEnergyTransferCommand().build(services));
+        return transfers;
+    }
+
+    private static boolean accepts(Contract contract, LedgerTransaction tx) {
+        try {
+            contract.verify(tx);
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Test that the single-pass verifier accepts and rejects the same transactions as the verifier it replaced
+     */
+    @Test
+    public void verifierDecisionsMatchBaseline() {
+        MockServices services = EnergyTransferBuilder.services();
+        for (Map.Entry<String, LedgerTransaction> transfer : validTransfers(services).entrySet()) {
+            assertTrue(transfer.getKey(), accepts(new InteractionDataContract(), transfer.getValue()));
+            assertTrue(transfer.getKey(), accepts(new BaselineInteractionDataContract(), transfer.getValue()));
+        }
+        for (Map.Entry<String, LedgerTransaction> transfer : invalidTransfers(services).entrySet()) {
+            assertFalse(transfer.getKey(), accepts(new InteractionDataContract(), transfer.getValue()));
+            assertFalse(transfer.getKey(), accepts(new BaselineInteractionDataContract(), transfer.getValue()));
+        }
+    }
+
+    private static byte[] sessionHash(String session) {
+        return SecureHash.sha256(session.getBytes(StandardCharsets.UTF_8)).getBytes();
+    }
+
+    private static List<byte[]> sessionHashes(String prefix, int count) {
+        List<byte[]> hashes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            hashes.add(sessionHash(prefix + i));
+        }
+        return hashes;
+    }
+
+    /**
+     * A transaction anchoring a batch with this root and leaf count, with the given tree's session hashes attached
+     */
+    private static LedgerTransaction anchoring(MockServices services, SessionMerkleTree attached, byte[] merkleRoot,
+                                               int leafCount) throws IOException {
+        byte[] jar = attached.toAttachment();
+        SecureHash attachment = SecureHash.sha256(jar);
+        if (!services.getAttachments().hasAttachment(attachment)) {
+            attachment = services.getAttachments().importAttachment(new ByteArrayInputStream(jar), "test", null);
+        }
+        TransactionBuilder anchor = new TransactionBuilder(EnergyTransferBuilder.NOTARY.getParty());
+        anchor.addOutputState(new InteractionBatchState(EnergyTransferBuilder.GRID.getParty(),
+                EnergyTransferBuilder.PARSEDATA.getParty(), merkleRoot, leafCount, attachment, ""));
+        anchor.addCommand(new Commands.AnchorBatch(), Arrays.asList(
+                EnergyTransferBuilder.GRID.getPublicKey(), EnergyTransferBuilder.PARSEDATA.getPublicKey()));
+        anchor.addAttachment(attachment);
+        return anchor.toWireTransaction(services).toLedgerTransaction(services);
+    }
+
+    /**
+     * Test that every session of a batch has an inclusion proof, and that a proof holds for no other session
+     */
+    @Test
+    public void sessionInclusionProofs() {
+        for (int count : new int[]{1, 2, 3, 5, 8, 13, 100}) {
+            List<byte[]> hashes = sessionHashes("session ", count);
+            SessionMerkleTree tree = new SessionMerkleTree(hashes);
+            byte[] root = tree.getRoot();
+            for (byte[] hash : hashes) {
+                int index = tree.indexOf(hash);
+                List<byte[]> path = tree.auditPath(index);
+                assertTrue(SessionMerkleTree.verify(hash, index, count, path, root));
+                assertFalse(SessionMerkleTree.verify(sessionHash("other session"), index, count, path, root));
+                assertFalse(SessionMerkleTree.verify(hash, index, count + 1, path, root));
+            }
+            assertTrue(tree.indexOf(sessionHash("other session")) < 0);
+        }
+    }
+
+    /**
+     * Test that a batch is only anchored under the root and leaf count of the session hashes it attaches
+     */
+    @Test
+    public void batchRootMatchesSessionHashes() throws IOException {
+        MockServices services = EnergyTransferBuilder.services();
+        SessionMerkleTree tree = new SessionMerkleTree(sessionHashes("session ", 100));
+        SessionMerkleTree other = new SessionMerkleTree(sessionHashes("other session ", 100));
+
+        assertTrue(accepts(new InteractionBatchContract(), anchoring(services, tree, tree.getRoot(), 100)));
+        assertFalse(accepts(new InteractionBatchContract(), anchoring(services, tree, other.getRoot(), 100)));
+        assertFalse(accepts(new InteractionBatchContract(), anchoring(services, tree, tree.getRoot(), 99)));
+    }
+}
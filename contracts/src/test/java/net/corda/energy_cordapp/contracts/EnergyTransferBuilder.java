@@ -0,0 +1,155 @@
+package net.corda.energy_cordapp.contracts;
+
+import com.r3.corda.lib.tokens.contracts.commands.IssueTokenCommand;
+import com.r3.corda.lib.tokens.contracts.commands.MoveTokenCommand;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import net.corda.core.contracts.Amount;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.transactions.LedgerTransaction;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.energy_cordapp.states.EnergyTokenType;
+import net.corda.energy_cordapp.states.InteractionDataState;
+import net.corda.testing.core.TestIdentity;
+import net.corda.testing.node.MockServices;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Builds ledger transactions shaped like an EnergyTransferFlow.SendEnergyTokensBatch, for the contract tests and benchmarks:
+ * the grid spends `inputs` token states, gets change back and pays an OEM for each of them,
+ * with `sessions` InteractionDataStates. Each option breaks one of the rules the contract checks.
+ */
+class EnergyTransferBuilder {
+    static final TestIdentity GRID = new TestIdentity(new CordaX500Name("Hydro One", "Toronto", "CA"));
+    static final TestIdentity OTHER_GRID = new TestIdentity(new CordaX500Name("Quebec Hydro", "Montreal", "CA"));
+    static final TestIdentity OEM = new TestIdentity(new CordaX500Name("Volkswagen", "Wolfsburg", "DE"));
+    static final TestIdentity PARSEDATA = new TestIdentity(new CordaX500Name("Parsedata", "Toronto", "CA"));
+    static final TestIdentity NOTARY = new TestIdentity(new CordaX500Name("Notary", "London", "GB"));
+
+    static final IssuedTokenType DLR = new IssuedTokenType(PARSEDATA.getParty(), new EnergyTokenType());
+
+    private int inputs = 1;
+    private int sessions = 1;
+    private Party inputHolder = GRID.getParty();
+    private boolean gridChange = true;
+    private boolean sessionsFirst = false;
+    private boolean otherGridSession = false;
+    private boolean moveCommand = true;
+    private boolean energyTransferCommand = true;
+
+    static MockServices services() {
+        return new MockServices(
+                Arrays.asList("net.corda.energy_cordapp.contracts", "net.corda.energy_cordapp.states",
+                        "com.r3.corda.lib.tokens.contracts"),
+                PARSEDATA, GRID, OTHER_GRID, OEM);
+    }
+
+    static InteractionDataState session(Party grid, int i) {
+        return new InteractionDataState(grid, OEM.getParty(), PARSEDATA.getParty(),
+                ("session " + i).getBytes(StandardCharsets.UTF_8), 10, "benchmark");
+    }
+
+    EnergyTransferBuilder inputs(int inputs) {
+        this.inputs = inputs;
+        return this;
+    }
+
+    EnergyTransferBuilder sessions(int sessions) {
+        this.sessions = sessions;
+        return this;
+    }
+
+    // the token inputs are held by someone other than the grid
+    EnergyTransferBuilder inputsHeldBy(Party holder) {
+        this.inputHolder = holder;
+        return this;
+    }
+
+    // the grid spends all its inputs, with no change back
+    EnergyTransferBuilder withoutGridChange() {
+        this.gridChange = false;
+        return this;
+    }
+
+    // the InteractionDataStates come before the token outputs
+    EnergyTransferBuilder sessionsFirst() {
+        this.sessionsFirst = true;
+        return this;
+    }
+
+    // the last InteractionDataState names another grid
+    EnergyTransferBuilder withOtherGridSession() {
+        this.otherGridSession = true;
+        return this;
+    }
+
+    EnergyTransferBuilder withoutMoveCommand() {
+        this.moveCommand = false;
+        return this;
+    }
+
+    EnergyTransferBuilder withoutEnergyTransferCommand() {
+        this.energyTransferCommand = false;
+        return this;
+    }
+
+    LedgerTransaction build(MockServices services) {
+        // issue the token states that will be spent
+        TransactionBuilder issue = new TransactionBuilder(NOTARY.getParty());
+        List<Integer> issued = new ArrayList<>(inputs);
+        for (int i = 0; i < inputs; i++) {
+            issue.addOutputState(new FungibleToken(new Amount<>(100, DLR), inputHolder, null));
+            issued.add(i);
+        }
+        issue.addCommand(new IssueTokenCommand(DLR, issued), PARSEDATA.getPublicKey());
+        SignedTransaction issuance = services.signInitialTransaction(issue);
+        services.recordTransactions(issuance);
+
+        TransactionBuilder transfer = new TransactionBuilder(NOTARY.getParty());
+        List<Integer> inputIndexes = new ArrayList<>(inputs);
+        for (int i = 0; i < inputs; i++) {
+            transfer.addInputState(issuance.getTx().outRef(i));
+            inputIndexes.add(i);
+        }
+        if (sessionsFirst) {
+            addSessions(transfer);
+        }
+        List<Integer> outputIndexes = new ArrayList<>(2 * inputs);
+        int first = sessionsFirst ? sessions : 0;
+        for (int i = 0; i < inputs; i++) {
+            if (gridChange) {
+                transfer.addOutputState(new FungibleToken(new Amount<>(90, DLR), GRID.getParty(), null));
+                transfer.addOutputState(new FungibleToken(new Amount<>(10, DLR), OEM.getParty(), null));
+                outputIndexes.add(first + 2 * i);
+                outputIndexes.add(first + 2 * i + 1);
+            } else {
+                transfer.addOutputState(new FungibleToken(new Amount<>(100, DLR), OEM.getParty(), null));
+                outputIndexes.add(first + i);
+            }
+        }
+        if (!sessionsFirst) {
+            addSessions(transfer);
+        }
+        if (moveCommand) {
+            transfer.addCommand(new MoveTokenCommand(DLR, inputIndexes, outputIndexes), inputHolder.getOwningKey());
+        }
+        if (energyTransferCommand) {
+            transfer.addCommand(new Commands.EnergyTransfer(),
+                    Arrays.asList(GRID.getPublicKey(), OEM.getPublicKey(), PARSEDATA.getPublicKey()));
+        }
+        return transfer.toWireTransaction(services).toLedgerTransaction(services);
+    }
+
+    private void addSessions(TransactionBuilder transfer) {
+        for (int i = 0; i < sessions; i++) {
+            boolean other = otherGridSession && i == sessions - 1;
+            transfer.addOutputState(session(other ? OTHER_GRID.getParty() : GRID.getParty(), i));
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package net.corda.energy_cordapp.contracts;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Measures lookup latency on interaction_data_state_model before and after the indexes of
+ * interaction-data.changelog-v1.xml are created, on a file-backed H2 database like the nodes use.
+ *
+ * Run with ./gradlew :contracts:benchmarkInteractionDataIndexes (10M rows by default),
+ * or pass -Prows=N for a quicker run.
+ * The table is loaded without indexes (as Hibernate used to create it), the lookups made by /queryByDataHash,
+ * /transactionDetails and the grid/oem filters are timed, then the indexes are created and the lookups timed again.
+ */
+public class InteractionDataIndexBenchmark {
+
+    private static final int BATCH_SIZE = 10_000;
+    private static final int LOOKUPS = 200;
+    private static final String[] GRIDS = {
+            "O=OntarioHydroGrid,L=Toronto,C=CA", "O=QuebecHydroGrid,L=Montreal,C=CA", "O=OtherGrids,L=Ottawa,C=CA"};
+    private static final String[] OEMS = {
+            "O=Hyundai,L=Seoul,C=KR", "O=Tesla,L=Palo Alto,C=US", "O=OtherCars,L=Detroit,C=US"};
+
+    public static void main(String[] args) throws Exception {
+        long rows = args.length > 0 ? Long.parseLong(args[0]) : 10_000_000L;
+        Path directory = Files.createTempDirectory("interaction-data-benchmark");
+        try (Connection connection = DriverManager.getConnection(
+                "jdbc:h2:file:" + directory.resolve("node"), "sa", "")) {
+            createTable(connection);
+            System.out.printf("loading %,d rows...%n", rows);
+            long loadStart = System.nanoTime();
+            load(connection, rows);
+            System.out.printf("loaded in %.1f s%n", (System.nanoTime() - loadStart) / 1e9);
+
+            System.out.println("without indexes:");
+            measure(connection, rows);
+
+            long indexStart = System.nanoTime();
+            createIndexes(connection);
+            System.out.printf("indexes created in %.1f s%n", (System.nanoTime() - indexStart) / 1e9);
+
+            System.out.println("with indexes:");
+            measure(connection, rows);
+        }
+    }
+
+    // the table as created by interaction-data.changelog-v1.xml
+    private static void createTable(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE TABLE interaction_data_state_model (" +
+                    "output_index INT NOT NULL, " +
+                    "transaction_id NVARCHAR(144) NOT NULL, " +
+                    "hash VARBINARY(64), " +
+                    "linear_id VARBINARY(255) NOT NULL, " +
+                    "grid NVARCHAR(255), " +
+                    "oem NVARCHAR(255), " +
+                    "amount BIGINT NOT NULL, " +
+                    "note NVARCHAR(255), " +
+                    "CONSTRAINT interaction_data_state_model_pk PRIMARY KEY (output_index, transaction_id))");
+        }
+    }
+
+    private static void createIndexes(Connection connection) throws SQLException {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("CREATE INDEX interaction_data_hash_idx ON interaction_data_state_model(hash)");
+            statement.execute("CREATE INDEX interaction_data_grid_idx ON interaction_data_state_model(grid)");
+            statement.execute("CREATE INDEX interaction_data_oem_idx ON interaction_data_state_model(oem)");
+            statement.execute("CREATE INDEX interaction_data_tx_id_idx ON interaction_data_state_model(transaction_id)");
+        }
+    }
+
+    private static void load(Connection connection, long rows) throws SQLException {
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement(
+                "INSERT INTO interaction_data_state_model VALUES (?, ?, ?, ?, ?, ?, ?, ?)")) {
+            for (long row = 0; row < rows; row++) {
+                insert.setInt(1, 0);
+                insert.setString(2, transactionId(row));
+                insert.setBytes(3, hash(row));
+                insert.setBytes(4, hash(-row - 1));
+                insert.setString(5, GRIDS[(int) (row % GRIDS.length)]);
+                insert.setString(6, OEMS[(int) (row % OEMS.length)]);
+                insert.setLong(7, row % 1000);
+                insert.setString(8, "benchmark");
+                insert.addBatch();
+                if ((row + 1) % BATCH_SIZE == 0) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+        connection.setAutoCommit(true);
+    }
+
+    private static void measure(Connection connection, long rows) throws SQLException {
+        Random random = new Random(42);
+        long[] byHash = new long[LOOKUPS];
+        long[] byTransaction = new long[LOOKUPS];
+        try (PreparedStatement hashQuery = connection.prepareStatement(
+                "SELECT amount FROM interaction_data_state_model WHERE hash = ?");
+             PreparedStatement transactionQuery = connection.prepareStatement(
+                     "SELECT amount FROM interaction_data_state_model WHERE transaction_id = ?")) {
+            for (int i = 0; i < LOOKUPS; i++) {
+                long row = (long) (random.nextDouble() * rows);
+                hashQuery.setBytes(1, hash(row));
+                byHash[i] = time(hashQuery);
+                transactionQuery.setString(1, transactionId(row));
+                byTransaction[i] = time(transactionQuery);
+            }
+        }
+        report("hash", byHash);
+        report("transaction_id", byTransaction);
+
+        // a selective grid/oem filter, as a counterparty lookup would make
+        long[] byParty = new long[LOOKUPS / 10];
+        try (PreparedStatement partyQuery = connection.prepareStatement(
+                "SELECT COUNT(*) FROM interaction_data_state_model WHERE grid = ? AND oem = ?")) {
+            for (int i = 0; i < byParty.length; i++) {
+                partyQuery.setString(1, GRIDS[i % GRIDS.length]);
+                partyQuery.setString(2, "O=NoSuchOem,L=Nowhere,C=US");
+                byParty[i] = time(partyQuery);
+            }
+        }
+        report("grid and oem", byParty);
+    }
+
+    private static long time(PreparedStatement query) throws SQLException {
+        long start = System.nanoTime();
+        try (ResultSet resultSet = query.executeQuery()) {
+            while (resultSet.next()) {
+                resultSet.getLong(1);
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static void report(String lookup, long[] nanos) {
+        long[] sorted = nanos.clone();
+        Arrays.sort(sorted);
+        System.out.printf("  by %-15s p50 %10.3f ms   p99 %10.3f ms%n", lookup,
+                sorted[sorted.length / 2] / 1e6, sorted[(int) (sorted.length * 0.99)] / 1e6);
+    }
+
+    private static String transactionId(long row) {
+        StringBuilder id = new StringBuilder(64);
+        for (byte b : hash(row)) {
+            id.append(String.format("%02X", b));
+        }
+        return id.toString();
+    }
+
+    // a SHA-256 per row, like the interaction hashes recorded by the flows
+    private static byte[] hash(long row) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (int shift = 56; shift >= 0; shift -= 8) {
+                digest.update((byte) (row >>> shift));
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
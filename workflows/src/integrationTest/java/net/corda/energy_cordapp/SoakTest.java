@@ -0,0 +1,258 @@
+package net.corda.energy_cordapp;
+
+import com.google.common.collect.ImmutableList;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.messaging.CordaRPCOps;
+import net.corda.energy_cordapp.accountUtilities.CreateNewAccounts;
+import net.corda.energy_cordapp.accountUtilities.ShareAccountsTo;
+import net.corda.energy_cordapp.flows.A2ATokenTransferFlow;
+import net.corda.energy_cordapp.flows.EnergyTransferFlow;
+import net.corda.energy_cordapp.flows.GetNodeHealth;
+import net.corda.energy_cordapp.flows.IssueTokenFlow;
+import net.corda.testing.driver.DriverParameters;
+import net.corda.testing.driver.NodeHandle;
+import net.corda.testing.driver.NodeParameters;
+import net.corda.testing.node.TestCordapp;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static net.corda.testing.driver.Driver.driver;
+import static org.junit.Assert.assertTrue;
+
+// WHAT WE ARE SOAKING:
+//  * Grid, Volkswagen and Parsedata run as separate node processes, with a fixed maximum heap
+//  * The grid sends V2G sessions (EnergyTransferFlow) to Volkswagen's accounts, and Volkswagen's accounts pay each other
+//    (A2ATokenTransferFlow), alternately, at a steady rate for the whole run
+//  * Every sample interval, the latency of the flows finished in it is summarised, and each node's heap, vault rows
+//    and checkpoints are sampled (GetNodeHealth)
+//  * The run fails if, between the first and the last quarter of the run (after the first, warm-up, interval),
+//      * the p99 latency of either flow grew more than soak.maxLatencyDrift times
+//      * the smallest heap sampled on a node grew more than soak.maxHeapDrift times
+//    or if more than soak.maxErrorRate of the flows failed, or checkpoints are left behind once the traffic stops
+//
+// This is not part of the integration tests; run it with ./gradlew :workflows:soakTest, configured with
+//  -Psoak.duration=PT4H               how long to drive traffic for (PT10M)
+//  -Psoak.sampleInterval=PT5M         how often to sample (PT1M)
+//  -Psoak.rate=N                      flows started per second, V2G and A2A together (5)
+//  -Psoak.concurrency=N               the most flows in flight at once (16)
+//  -Psoak.accounts=N                  Volkswagen accounts the traffic is spread over (10)
+//  -Psoak.nodeHeap=512m               the maximum heap of each node
+//  -Psoak.maxLatencyDrift=2.0, -Psoak.maxHeapDrift=1.5, -Psoak.maxErrorRate=0.01, -Psoak.maxCheckpoints=2
+
+public class SoakTest {
+    private final CordaX500Name gridName = new CordaX500Name("Grid", "London", "GB");
+    private final CordaX500Name volkswagenName = new CordaX500Name("Volkswagen", "Munich", "DE");
+    private final CordaX500Name parsedataName = new CordaX500Name("Parsedata", "Toronto", "CA");
+
+    private final Duration duration = Duration.parse(System.getProperty("soak.duration", "PT10M"));
+    private final Duration sampleInterval = Duration.parse(System.getProperty("soak.sampleInterval", "PT1M"));
+    private final double rate = Double.parseDouble(System.getProperty("soak.rate", "5"));
+    private final int concurrency = Integer.getInteger("soak.concurrency", 16);
+    private final int accounts = Integer.getInteger("soak.accounts", 10);
+    private final String nodeHeap = System.getProperty("soak.nodeHeap", "512m");
+    private final double maxLatencyDrift = Double.parseDouble(System.getProperty("soak.maxLatencyDrift", "2.0"));
+    private final double maxHeapDrift = Double.parseDouble(System.getProperty("soak.maxHeapDrift", "1.5"));
+    private final double maxErrorRate = Double.parseDouble(System.getProperty("soak.maxErrorRate", "0.01"));
+    private final long maxCheckpoints = Long.getLong("soak.maxCheckpoints", 2);
+
+    @Test
+    public void soak() {
+        driver(new DriverParameters()
+                .withStartNodesInProcess(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.contracts"),
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.flows"),
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.accountUtilities"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows"))), dsl -> {
+            try {
+                List<CordaFuture<NodeHandle>> handleFutures = ImmutableList.of(
+                        dsl.startNode(new NodeParameters().withProvidedName(gridName).withMaximumHeapSize(nodeHeap)),
+                        dsl.startNode(new NodeParameters().withProvidedName(volkswagenName).withMaximumHeapSize(nodeHeap)),
+                        dsl.startNode(new NodeParameters().withProvidedName(parsedataName).withMaximumHeapSize(nodeHeap))
+                );
+                Map<String, CordaRPCOps> nodes = new LinkedHashMap<>();
+                nodes.put("grid", handleFutures.get(0).get().getRpc());
+                nodes.put("volkswagen", handleFutures.get(1).get().getRpc());
+                nodes.put("parsedata", handleFutures.get(2).get().getRpc());
+                soak(nodes);
+            } catch (Exception e) {
+                throw new RuntimeException("Caught exception during soak: ", e);
+            }
+            return null;
+        });
+    }
+
+    private void soak(Map<String, CordaRPCOps> nodes) throws Exception {
+        CordaRPCOps grid = nodes.get("grid");
+        CordaRPCOps volkswagen = nodes.get("volkswagen");
+        CordaRPCOps parsedata = nodes.get("parsedata");
+        Party gridParty = grid.nodeInfo().getLegalIdentities().get(0);
+        Party parsedataParty = parsedata.nodeInfo().getLegalIdentities().get(0);
+
+        // Volkswagen's accounts, known to the grid, and enough DLR for every V2G session plus the accounts' own float
+        List<String> accountNames = new ArrayList<>();
+        for (int i = 0; i < accounts; i++) {
+            accountNames.add("Soak car " + i);
+        }
+        volkswagen.startFlowDynamic(CreateNewAccounts.class, accountNames).getReturnValue().get();
+        volkswagen.startFlowDynamic(ShareAccountsTo.class, accountNames, Collections.singletonList(gridParty))
+                .getReturnValue().get();
+        long sessions = (long) Math.ceil(rate * duration.getSeconds()) + 1;
+        long perAccount = 1000;
+        parsedata.startFlowDynamic(IssueTokenFlow.class, sessions + perAccount * accounts, gridParty)
+                .getReturnValue().get();
+        for (String account : accountNames) {
+            grid.startFlowDynamic(EnergyTransferFlow.SendEnergyTokens.class,
+                    perAccount, account, parsedataParty, "soak funding", "").getReturnValue().get();
+        }
+
+        System.out.printf("soaking for %s at %.1f flows/s, concurrency %d, %d accounts, node heap %s%n",
+                duration, rate, concurrency, accounts, nodeHeap);
+        List<Window> windows = new ArrayList<>();
+        Window window = new Window();
+        Semaphore inFlight = new Semaphore(concurrency);
+        AtomicLong started = new AtomicLong();
+        AtomicLong failed = new AtomicLong();
+
+        // a flow is due every 1/rate seconds; latency counts from when it was due, so a backlog shows up in it
+        long intervalNanos = (long) (1e9 / rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        long nextSample = start + sampleInterval.toNanos();
+        for (long due = start; due < end; due += intervalNanos) {
+            long now = System.nanoTime();
+            if (due > now) {
+                TimeUnit.NANOSECONDS.sleep(due - now);
+            }
+            if (System.nanoTime() >= nextSample) {
+                windows.add(window.close(nodes));
+                window = new Window();
+                nextSample += sampleInterval.toNanos();
+            }
+            inFlight.acquire();
+
+            long i = started.getAndIncrement();
+            boolean v2g = i % 2 == 0;
+            String account = accountNames.get((int) ((i / 2) % accounts));
+            CordaFuture<?> result = v2g
+                    ? grid.startFlowDynamic(EnergyTransferFlow.SendEnergyTokens.class, 1L, account, parsedataParty,
+                            ("soak session " + i).getBytes(StandardCharsets.UTF_8)).getReturnValue()
+                    : volkswagen.startFlowDynamic(A2ATokenTransferFlow.SendEnergyTokens.class,
+                            accountNames.get((int) ((i / 2 + 1) % accounts)), account, 1L).getReturnValue();
+            long flowDue = due;
+            Window flowWindow = window;
+            result.then(it -> {
+                try {
+                    it.get();
+                    flowWindow.record(v2g, System.nanoTime() - flowDue);
+                } catch (Exception e) {
+                    failed.incrementAndGet();
+                } finally {
+                    inFlight.release();
+                }
+                return null;
+            });
+        }
+
+        // let the last flows finish before the last sample, so no checkpoint should be left behind
+        inFlight.acquire(concurrency);
+        windows.add(window.close(nodes));
+
+        assertTrue("Expected at least two sample intervals, run for longer or sample more often", windows.size() >= 2);
+        List<Window> measured = windows.size() > 2 ? windows.subList(1, windows.size()) : windows;
+        List<Window> first = measured.subList(0, Math.max(1, measured.size() / 4));
+        List<Window> last = measured.subList(measured.size() - Math.max(1, measured.size() / 4), measured.size());
+
+        double errorRate = (double) failed.get() / started.get();
+        System.out.printf("%d flows, %d failed%n", started.get(), failed.get());
+        assertTrue(String.format("%.2f%% of the flows failed", errorRate * 100), errorRate <= maxErrorRate);
+
+        for (boolean v2g : new boolean[]{true, false}) {
+            double before = p99(first, v2g);
+            double after = p99(last, v2g);
+            assertTrue(String.format("%s p99 latency drifted from %.1f ms to %.1f ms", v2g ? "V2G" : "A2A", before, after),
+                    after <= before * maxLatencyDrift);
+        }
+        for (String node : nodes.keySet()) {
+            long before = minHeap(first, node);
+            long after = minHeap(last, node);
+            assertTrue(String.format("%s heap drifted from %d MB to %d MB", node, before >> 20, after >> 20),
+                    after <= before * maxHeapDrift);
+            long checkpoints = windows.get(windows.size() - 1).health.get(node).get("checkpoints");
+            assertTrue(String.format("%s has %d checkpoints left behind", node, checkpoints),
+                    checkpoints <= maxCheckpoints);
+        }
+    }
+
+    private static double p99(List<Window> windows, boolean v2g) {
+        List<Long> latencies = new ArrayList<>();
+        for (Window window : windows) {
+            latencies.addAll(v2g ? window.v2g : window.a2a);
+        }
+        return percentile(latencies, 0.99);
+    }
+
+    // the smallest sample is the nearest to the heap left after a collection, so it rises with a leak and not with load
+    private static long minHeap(List<Window> windows, String node) {
+        long min = Long.MAX_VALUE;
+        for (Window window : windows) {
+            min = Math.min(min, window.health.get(node).get("heapUsed"));
+        }
+        return min;
+    }
+
+    private static double percentile(List<Long> samples, double p) {
+        if (samples.isEmpty()) {
+            return 0;
+        }
+        List<Long> sorted = new ArrayList<>(samples);
+        Collections.sort(sorted);
+        int index = (int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1);
+        return sorted.get(Math.max(0, index)) / 1e6;
+    }
+
+    /**
+     * The flow latencies of one sample interval, and the health of each node at its end.
+     */
+    private static class Window {
+        private final List<Long> v2g = Collections.synchronizedList(new ArrayList<>());
+        private final List<Long> a2a = Collections.synchronizedList(new ArrayList<>());
+        private final Map<String, Map<String, Long>> health = new LinkedHashMap<>();
+
+        void record(boolean isV2g, long nanos) {
+            (isV2g ? v2g : a2a).add(nanos);
+        }
+
+        Window close(Map<String, CordaRPCOps> nodes) throws Exception {
+            StringBuilder line = new StringBuilder();
+            synchronized (v2g) {
+                line.append(String.format("V2G n=%d p50 %.1f ms p99 %.1f ms", v2g.size(),
+                        percentile(v2g, 0.5), percentile(v2g, 0.99)));
+            }
+            synchronized (a2a) {
+                line.append(String.format(" | A2A n=%d p50 %.1f ms p99 %.1f ms", a2a.size(),
+                        percentile(a2a, 0.5), percentile(a2a, 0.99)));
+            }
+            for (Map.Entry<String, CordaRPCOps> node : nodes.entrySet()) {
+                Map<String, Long> sample = node.getValue().startFlowDynamic(GetNodeHealth.class).getReturnValue().get();
+                health.put(node.getKey(), sample);
+                line.append(String.format(" | %s heap %d MB, %d states (%d unconsumed), %d checkpoints", node.getKey(),
+                        sample.get("heapUsed") >> 20, sample.get("vaultStates"), sample.get("unconsumedStates"),
+                        sample.get("checkpoints")));
+            }
+            System.out.println(line);
+            return this;
+        }
+    }
+}
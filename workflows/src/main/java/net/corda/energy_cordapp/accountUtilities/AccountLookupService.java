@@ -0,0 +1,166 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.services.AccountService;
+import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-memory index of the AccountInfo states known to this node, by name and by UUID.
+ * The flows resolve accounts through this service rather than querying the vault on every call.
+ * The index is kept current from the vault's update feed: accounts created or shared with this node
+ * are added as they are recorded, and consumed AccountInfo states are dropped.
+ * A lookup that is not in the index falls back to the AccountService and caches what it finds,
+ * so accounts recorded before the node started are indexed on first use.
+ */
+@CordaService
+public class AccountLookupService extends SingletonSerializeAsToken {
+    private final AppServiceHub serviceHub;
+
+    // account names are only unique per host, so a name maps to every account with that name
+    private final Map<String, List<StateAndRef<AccountInfo>>> byName = new ConcurrentHashMap<>();
+    private final Map<UUID, StateAndRef<AccountInfo>> byId = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    public AccountLookupService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        serviceHub.getVaultService().getUpdates().subscribe(this::onVaultUpdate);
+    }
+
+    /**
+     * Finds an account by its name, preferring the first one found like AccountService.accountInfo(name).get(0).
+     * @param name the (local) name of the account
+     * @return the account, or null if this node knows no account with this name
+     */
+    public StateAndRef<AccountInfo> accountInfo(String name) {
+        List<StateAndRef<AccountInfo>> found = byName.get(name);
+        if (found != null && !found.isEmpty()) {
+            hits.incrementAndGet();
+            return found.get(0);
+        }
+        misses.incrementAndGet();
+        List<StateAndRef<AccountInfo>> fromVault = accountService().accountInfo(name);
+        fromVault.forEach(this::add);
+        return fromVault.isEmpty() ? null : fromVault.get(0);
+    }
+
+    /**
+     * Finds an account by its UUID.
+     * @param id the UUID of the account
+     * @return the account, or null if this node knows no account with this UUID
+     */
+    public StateAndRef<AccountInfo> accountInfo(UUID id) {
+        StateAndRef<AccountInfo> found = byId.get(id);
+        if (found != null) {
+            hits.incrementAndGet();
+            return found;
+        }
+        misses.incrementAndGet();
+        StateAndRef<AccountInfo> fromVault = accountService().accountInfo(id);
+        if (fromVault != null) {
+            add(fromVault);
+        }
+        return fromVault;
+    }
+
+    /**
+     * Finds an account with the given name that is hosted on this node.
+     * @param name the (local) name of the account
+     * @return the account, or null if this node hosts no account with this name
+     */
+    public StateAndRef<AccountInfo> ourAccount(String name) {
+        List<StateAndRef<AccountInfo>> found = byName.get(name);
+        if (found != null) {
+            for (StateAndRef<AccountInfo> account : found) {
+                if (isOurs(account)) {
+                    hits.incrementAndGet();
+                    return account;
+                }
+            }
+        }
+        misses.incrementAndGet();
+        StateAndRef<AccountInfo> ours = null;
+        for (StateAndRef<AccountInfo> account : accountService().accountInfo(name)) {
+            add(account);
+            if (ours == null && isOurs(account)) {
+                ours = account;
+            }
+        }
+        return ours;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of accounts currently indexed
+     */
+    public int size() {
+        return byId.size();
+    }
+
+    private AccountService accountService() {
+        return serviceHub.cordaService(KeyManagementBackedAccountService.class);
+    }
+
+    private boolean isOurs(StateAndRef<AccountInfo> account) {
+        return serviceHub.getMyInfo().isLegalIdentity(account.getState().getData().getHost());
+    }
+
+    private void onVaultUpdate(Vault.Update<ContractState> update) {
+        for (StateAndRef<ContractState> consumed : update.getConsumed()) {
+            if (consumed.getState().getData() instanceof AccountInfo) {
+                remove(consumed);
+            }
+        }
+        for (StateAndRef<ContractState> produced : update.getProduced()) {
+            if (produced.getState().getData() instanceof AccountInfo) {
+                add(produced);
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void add(StateAndRef<? extends ContractState> state) {
+        StateAndRef<AccountInfo> account = (StateAndRef<AccountInfo>) state;
+        AccountInfo info = account.getState().getData();
+        StateAndRef<AccountInfo> previous = byId.put(info.getIdentifier().getId(), account);
+        List<StateAndRef<AccountInfo>> sameName
+                = byName.computeIfAbsent(info.getName(), it -> new CopyOnWriteArrayList<>());
+        if (previous != null) {
+            sameName.removeIf(it -> it.getRef().equals(previous.getRef()));
+        }
+        if (sameName.stream().noneMatch(it -> it.getRef().equals(account.getRef()))) {
+            sameName.add(account);
+        }
+    }
+
+    private void remove(StateAndRef<? extends ContractState> state) {
+        AccountInfo info = (AccountInfo) state.getState().getData();
+        byId.computeIfPresent(info.getIdentifier().getId(),
+                (id, indexed) -> indexed.getRef().equals(state.getRef()) ? null : indexed);
+        List<StateAndRef<AccountInfo>> sameName = byName.get(info.getName());
+        if (sameName != null) {
+            sameName.removeIf(it -> it.getRef().equals(state.getRef()));
+        }
+    }
+}
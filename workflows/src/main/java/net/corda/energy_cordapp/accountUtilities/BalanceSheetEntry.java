@@ -0,0 +1,61 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import net.corda.core.serialization.CordaSerializable;
+
+import java.util.UUID;
+
+/**
+ * One line of the balance sheet returned by GetBalanceSheet:
+ * the unconsumed amount of one token type, from one issuer, held by one holder.
+ * For tokens held by an account, the account's UUID and (if known to this node) its name are filled in;
+ * for tokens held directly by a node they are null.
+ */
+@CordaSerializable
+public class BalanceSheetEntry {
+    private final String holder;
+    private final String owningKeyHash;
+    private final UUID externalId;
+    private final String accountName;
+    private final String tokenIdentifier;
+    private final String issuer;
+    private final long amount;
+
+    public BalanceSheetEntry(String holder, String owningKeyHash, UUID externalId, String accountName,
+                             String tokenIdentifier, String issuer, long amount) {
+        this.holder = holder;
+        this.owningKeyHash = owningKeyHash;
+        this.externalId = externalId;
+        this.accountName = accountName;
+        this.tokenIdentifier = tokenIdentifier;
+        this.issuer = issuer;
+        this.amount = amount;
+    }
+
+    public String getHolder() {
+        return holder;
+    }
+
+    public String getOwningKeyHash() {
+        return owningKeyHash;
+    }
+
+    public UUID getExternalId() {
+        return externalId;
+    }
+
+    public String getAccountName() {
+        return accountName;
+    }
+
+    public String getTokenIdentifier() {
+        return tokenIdentifier;
+    }
+
+    public String getIssuer() {
+        return issuer;
+    }
+
+    public long getAmount() {
+        return amount;
+    }
+}
@@ -7,8 +7,9 @@ import net.corda.core.contracts.StateAndRef;
 import net.corda.core.flows.*;
 import co.paralleluniverse.fibers.Suspendable;
 import com.r3.corda.lib.accounts.workflows.services.AccountService;
-import net.corda.core.flows.FlowLogic;;
 import net.corda.core.flows.StartableByRPC;
+import net.corda.energy_cordapp.flows.FlowMetricsService;
+import net.corda.energy_cordapp.flows.TimedFlow;
 
 import java.util.UUID;
 
@@ -19,7 +20,7 @@ import java.util.UUID;
 @StartableByRPC
 @StartableByService
 @InitiatingFlow
-public class CreateNewAccount extends FlowLogic<String>{
+public class CreateNewAccount extends TimedFlow<String>{
 
     private String acctName;
 
@@ -32,9 +33,15 @@ public class CreateNewAccount extends FlowLogic<String>{
     }
 
 
+    @Override
+    protected String account() {
+        return acctName;
+    }
+
     @Override
     @Suspendable
-    public String call() throws FlowException {
+    protected String timedCall(FlowMetricsService metrics) throws FlowException {
+        metrics.step(this, "CREATING_ACCOUNT");
         StateAndRef<AccountInfo> newAccount = null;
         try {
             // get an AccountService from the ServiceHub and use it to create the desired account.
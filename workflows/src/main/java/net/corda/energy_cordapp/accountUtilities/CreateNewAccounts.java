@@ -0,0 +1,57 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.flows.CreateAccount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.energy_cordapp.flows.FlowMetricsService;
+import net.corda.energy_cordapp.flows.TimedFlow;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Bulk version of CreateNewAccount: creates an account for every name in a list, in a single flow.
+ * Names that already belong to one of our accounts are not created again, their existing UUID is returned instead,
+ * so a partially completed onboarding can simply be run again.
+ */
+@StartableByRPC
+@StartableByService
+public class CreateNewAccounts extends TimedFlow<Map<String, String>> {
+
+    private final List<String> acctNames;
+
+    /**
+     * Constructor. Creates an account for each of these names
+     * @param acctNames account names (local, NOT UUIDs)
+     */
+    public CreateNewAccounts(List<String> acctNames) {
+        this.acctNames = acctNames;
+    }
+
+    /**
+     * @return the UUID of every account, keyed by account name, in the order the names were given
+     */
+    @Override
+    @Suspendable
+    protected Map<String, String> timedCall(FlowMetricsService metrics) throws FlowException {
+        metrics.step(this, "CREATING_ACCOUNTS");
+        AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
+        Map<String, String> created = new LinkedHashMap<>();
+        for (String acctName : acctNames) {
+            if (created.containsKey(acctName)) {
+                continue;
+            }
+            StateAndRef<AccountInfo> account = accountLookup.ourAccount(acctName);
+            if (account == null) {
+                account = subFlow(new CreateAccount(acctName));
+            }
+            created.put(acctName, account.getState().getData().getIdentifier().getId().toString());
+        }
+        return created;
+    }
+}
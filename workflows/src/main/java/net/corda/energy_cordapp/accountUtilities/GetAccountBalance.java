@@ -1,16 +1,22 @@
 package net.corda.energy_cordapp.accountUtilities;
 
 import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
-import com.r3.corda.lib.accounts.workflows.services.AccountService;
-import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
+import com.r3.corda.lib.tokens.contracts.internal.schemas.FungibleTokenSchemaV1;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.flows.*;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.FieldInfo;
 import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
 
 import java.util.Collections;
 import java.util.List;
 
+/**
+ * Returns the total amount of FungibleTokens held by an account.
+ * The sum is computed by the vault as a single SQL SUM, so no token states are loaded.
+ */
 @StartableByRPC
 @StartableByService
 @InitiatingFlow
@@ -23,28 +29,29 @@ public class GetAccountBalance extends FlowLogic<Long> {
 
     @Override
     public Long call() throws FlowException {
-        AccountService accountService = getServiceHub().cordaService(KeyManagementBackedAccountService.class);
-        AccountInfo accountInfo = null;
-        try {
-            accountInfo = accountService.accountInfo(account).get(0).getState().getData();
-        } catch (IndexOutOfBoundsException e) {
+        StateAndRef<AccountInfo> accountRef = getServiceHub().cordaService(AccountLookupService.class).accountInfo(account);
+        if (accountRef == null) {
             throw new FlowException("No account found with name: " + account);
         }
+        AccountInfo accountInfo = accountRef.getState().getData();
 
         QueryCriteria heldByAccount = new QueryCriteria.VaultQueryCriteria()
                 .withExternalIds(Collections.singletonList(accountInfo.getIdentifier().getId()));
 
-        List<StateAndRef<FungibleToken>> tokenStates
-                = getServiceHub().getVaultService().queryBy(FungibleToken.class, heldByAccount).getStates();
-        if (tokenStates.size() == 0) {
-            return (long) 0;
-        }
-        long size = 0;
-        for (StateAndRef<FungibleToken>  state : tokenStates) {
-            size += state.getState().getData().getAmount().getQuantity();
+        FieldInfo amount;
+        try {
+            amount = QueryCriteriaUtils.getField("amount", FungibleTokenSchemaV1.PersistentFungibleToken.class);
+        } catch (NoSuchFieldException e) {
+            throw new FlowException("FungibleToken schema has no amount column", e);
         }
+        QueryCriteria sumOfAmounts = new QueryCriteria.VaultCustomQueryCriteria(Builder.sum(amount));
 
-        return size;
+        // the only "other result" of an ungrouped sum is the sum itself, which is null if there are no tokens
+        List<Object> sum = getServiceHub().getVaultService()
+                .queryBy(FungibleToken.class, heldByAccount.and(sumOfAmounts)).getOtherResults();
+        if (sum.isEmpty() || sum.get(0) == null) {
+            return (long) 0;
+        }
+        return ((Number) sum.get(0)).longValue();
     }
 }
-
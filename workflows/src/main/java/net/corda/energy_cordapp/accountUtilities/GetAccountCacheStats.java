@@ -0,0 +1,37 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Simple flow that returns the hit and miss counters of this node's AccountLookupService,
+ * along with the number of accounts it currently indexes.
+ */
+@StartableByRPC
+@StartableByService
+public class GetAccountCacheStats extends FlowLogic<Map<String, Long>> {
+
+    /**
+     * Empty constructor, since we don't have any fields to initialize
+     */
+    public GetAccountCacheStats() {
+    }
+
+    @Override
+    @Suspendable
+    public Map<String, Long> call() throws FlowException {
+        AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
+
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("hits", accountLookup.getHits());
+        stats.put("misses", accountLookup.getMisses());
+        stats.put("accounts", (long) accountLookup.size());
+        return stats;
+    }
+}
@@ -0,0 +1,75 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.node.services.Vault;
+
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Returns the balances of every holder in this node's vault, for every account and the node itself,
+ * broken down by holder, account external ID, token type and issuer.
+ * The whole sheet comes from one grouped SQL query: the token table is joined with the vault's state status
+ * and with the key to external ID map that the accounts library maintains, and summed in the database.
+ */
+@StartableByRPC
+@StartableByService
+public class GetBalanceSheet extends FlowLogic<List<BalanceSheetEntry>> {
+
+    // FUNGIBLE_TOKEN is the tokens SDK's mapped schema, PK_HASH_TO_EXT_ID_MAP is where account keys are recorded
+    private static final String BALANCE_SHEET_QUERY = "SELECT t.holder, t.owning_key_hash, m.external_id, " +
+            "t.token_identifier, t.issuer, SUM(t.amount) AS amount " +
+            "FROM fungible_token t " +
+            "JOIN vault_states v ON v.transaction_id = t.transaction_id AND v.output_index = t.output_index " +
+            "LEFT JOIN pk_hash_to_ext_id_map m ON m.public_key_hash = t.owning_key_hash " +
+            "WHERE v.state_status = ? " +
+            "GROUP BY t.holder, t.owning_key_hash, m.external_id, t.token_identifier, t.issuer";
+
+    /**
+     * Empty constructor, since we don't have any fields to initialize
+     */
+    public GetBalanceSheet() {
+    }
+
+    @Override
+    public List<BalanceSheetEntry> call() throws FlowException {
+        AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
+        List<BalanceSheetEntry> sheet = new ArrayList<>();
+
+        try (PreparedStatement statement = getServiceHub().jdbcSession().prepareStatement(BALANCE_SHEET_QUERY)) {
+            statement.setInt(1, Vault.StateStatus.UNCONSUMED.ordinal());
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String externalIdColumn = resultSet.getString("external_id");
+                    UUID externalId = externalIdColumn == null ? null : UUID.fromString(externalIdColumn);
+                    String accountName = null;
+                    if (externalId != null) {
+                        StateAndRef<AccountInfo> account = accountLookup.accountInfo(externalId);
+                        accountName = account == null ? null : account.getState().getData().getName();
+                    }
+                    sheet.add(new BalanceSheetEntry(
+                            resultSet.getString("holder"),
+                            resultSet.getString("owning_key_hash"),
+                            externalId,
+                            accountName,
+                            resultSet.getString("token_identifier"),
+                            resultSet.getString("issuer"),
+                            resultSet.getLong("amount")
+                    ));
+                }
+            }
+        } catch (SQLException e) {
+            throw new FlowException("Could not query the balance sheet", e);
+        }
+        return sheet;
+    }
+}
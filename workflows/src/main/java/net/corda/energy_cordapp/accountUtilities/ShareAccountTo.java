@@ -3,13 +3,13 @@ package net.corda.energy_cordapp.accountUtilities;
 import co.paralleluniverse.fibers.Suspendable;
 import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
 import com.r3.corda.lib.accounts.workflows.flows.AccountInfoByName;
-import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
 import net.corda.core.contracts.StateAndRef;
 import net.corda.core.flows.FlowException;
-import net.corda.core.flows.FlowLogic;
 import net.corda.core.flows.StartableByRPC;
 import net.corda.core.flows.StartableByService;
 import net.corda.core.identity.Party;
+import net.corda.energy_cordapp.flows.FlowMetricsService;
+import net.corda.energy_cordapp.flows.TimedFlow;
 import com.r3.corda.lib.accounts.workflows.flows.ShareAccountInfo;
 import java.util.*;
 
@@ -20,7 +20,7 @@ import java.util.*;
  */
 @StartableByRPC
 @StartableByService
-public class ShareAccountTo extends FlowLogic<String>{
+public class ShareAccountTo extends TimedFlow<String>{
 
     // the node to share the account to
     private final Party shareTo;
@@ -39,17 +39,22 @@ public class ShareAccountTo extends FlowLogic<String>{
     }
 
     @Override
-    @Suspendable
-    public String call() throws FlowException {
-        // gets the list of all of this node's accounts
-        List<StateAndRef<AccountInfo>> allmyAccounts = getServiceHub().cordaService(KeyManagementBackedAccountService.class).ourAccounts();
-
-        // streams and filters all our accounts to find the one with the matching name
-        // could implement an .orElse() to handle a case where the appropriate account is not found (doesn't exist)
-        StateAndRef<AccountInfo> SharedAccount = allmyAccounts.stream()
-                .filter(it -> it.getState().getData().getName().equals(acctNameShared))
-                .findAny().get();
+    protected String account() {
+        return acctNameShared;
+    }
 
+    @Override
+    @Suspendable
+    protected String timedCall(FlowMetricsService metrics) throws FlowException {
+        metrics.step(this, "RETRIEVING_DATA");
+        // finds our account with the matching name from the account index, rather than scanning all our accounts
+        StateAndRef<AccountInfo> SharedAccount
+                = getServiceHub().cordaService(AccountLookupService.class).ourAccount(acctNameShared);
+        if (SharedAccount == null) {
+            throw new FlowException("No account of ours found with name: " + acctNameShared);
+        }
+
+        metrics.step(this, "SHARING");
         // actually share the account from the StateAndRef we retrieved from all the accounts from the AccountService
         subFlow(new ShareAccountInfo(SharedAccount, Arrays.asList(shareTo)));
         // return a string, including the name shared and the name of the organization with which it is shared
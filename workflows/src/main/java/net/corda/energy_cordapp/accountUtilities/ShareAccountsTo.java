@@ -0,0 +1,110 @@
+package net.corda.energy_cordapp.accountUtilities;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.StatesToRecord;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.energy_cordapp.flows.FlowMetricsService;
+import net.corda.energy_cordapp.flows.TimedFlow;
+
+import java.util.*;
+
+/**
+ * Bulk version of ShareAccountTo: shares any set of our accounts with any set of nodes.
+ * Instead of one ShareAccountInfo exchange per account and node, every node receives all the accounts
+ * in a single exchange, so the cost grows with the number of nodes rather than accounts × nodes.
+ */
+@StartableByRPC
+@StartableByService
+@InitiatingFlow
+public class ShareAccountsTo extends TimedFlow<Integer> {
+
+    // the (local) names of the accounts to be shared
+    private final List<String> acctNamesShared;
+
+    // the nodes to share the accounts to
+    private final List<Party> shareTo;
+
+    /**
+     * The constructor of this flow
+     * @param acctNamesShared the (local) names of the accounts to share
+     * @param shareTo the parties of the nodes to share the accounts with
+     */
+    public ShareAccountsTo(List<String> acctNamesShared, List<Party> shareTo) {
+        this.acctNamesShared = acctNamesShared;
+        this.shareTo = shareTo;
+    }
+
+    /**
+     * @return the number of accounts shared with each node
+     */
+    @Override
+    @Suspendable
+    protected Integer timedCall(FlowMetricsService metrics) throws FlowException {
+        metrics.step(this, "RETRIEVING_DATA");
+        AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
+
+        // resolve every account up front, so nothing is sent if one of them doesn't exist
+        Map<String, StateAndRef<AccountInfo>> accounts = new LinkedHashMap<>();
+        for (String acctName : acctNamesShared) {
+            StateAndRef<AccountInfo> account = accountLookup.ourAccount(acctName);
+            if (account == null) {
+                throw new FlowException("No account of ours found with name: " + acctName);
+            }
+            accounts.put(acctName, account);
+        }
+        List<StateAndRef<AccountInfo>> toSend = new ArrayList<>(accounts.values());
+
+        metrics.step(this, "SHARING");
+        // one exchange per node, carrying all the accounts
+        for (Party party : new LinkedHashSet<>(shareTo)) {
+            if (party.equals(getOurIdentity())) {
+                continue;
+            }
+            FlowSession session = initiateFlow(party);
+            subFlow(new SendStateAndRefFlow(session, toSend));
+        }
+        return toSend.size();
+    }
+
+    /**
+     * The responding flow to ShareAccountsTo.
+     * Receives the accounts and records the transactions that created them, so they appear in our vault.
+     */
+    @InitiatedBy(ShareAccountsTo.class)
+    public static class ReceiveSharedAccounts extends FlowLogic<Integer> {
+
+        private final FlowSession otherSession;
+
+        public ReceiveSharedAccounts(FlowSession otherSession) {
+            this.otherSession = otherSession;
+        }
+
+        @Override
+        @Suspendable
+        public Integer call() throws FlowException {
+            // ReceiveStateAndRefFlow checks the sender can prove the states and resolves their transactions
+            List<StateAndRef<AccountInfo>> accounts = subFlow(new ReceiveStateAndRefFlow<>(otherSession));
+
+            Set<SecureHash> txIds = new LinkedHashSet<>();
+            for (StateAndRef<AccountInfo> account : accounts) {
+                txIds.add(account.getRef().getTxhash());
+            }
+            List<SignedTransaction> transactions = new ArrayList<>(txIds.size());
+            for (SecureHash txId : txIds) {
+                SignedTransaction transaction = getServiceHub().getValidatedTransactions().getTransaction(txId);
+                if (transaction == null) {
+                    throw new FlowException("Could not resolve the transaction of a shared account: " + txId);
+                }
+                transactions.add(transaction);
+            }
+            // AccountInfo states are not relevant to us, so record them as visible to make them show up in the vault
+            getServiceHub().recordTransactions(StatesToRecord.ALL_VISIBLE, transactions);
+            return accounts.size();
+        }
+    }
+}
@@ -3,20 +3,19 @@ package net.corda.energy_cordapp.flows;
 import co.paralleluniverse.fibers.Suspendable;
 import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
 import com.r3.corda.lib.accounts.workflows.flows.RequestKeyForAccount;
-import com.r3.corda.lib.accounts.workflows.services.AccountService;
-import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
 import com.r3.corda.lib.tokens.workflows.flows.rpc.MoveFungibleTokens;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
 import com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilities;
 import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
 import net.corda.core.flows.FlowException;
-import net.corda.core.flows.FlowLogic;
 import net.corda.core.flows.InitiatingFlow;
 import net.corda.core.flows.StartableByRPC;
 import net.corda.core.identity.AnonymousParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.services.vault.QueryCriteria;
 import net.corda.core.transactions.SignedTransaction;
+import net.corda.energy_cordapp.accountUtilities.AccountLookupService;
 import net.corda.energy_cordapp.states.EnergyTokenType;
 
 import java.util.Collections;
@@ -25,7 +24,7 @@ public class A2ATokenTransferFlow {
 
     @InitiatingFlow
     @StartableByRPC
-    public static class SendEnergyTokens extends FlowLogic<SignedTransaction> {
+    public static class SendEnergyTokens extends TimedFlow<SignedTransaction> {
 
         private final String whereTo;
         private final String whereFrom;
@@ -37,28 +36,33 @@ public class A2ATokenTransferFlow {
             this.amount = amount;
         }
 
+        @Override
+        protected String account() {
+            return whereFrom;
+        }
+
         @Override
         @Suspendable
-        public SignedTransaction call() throws FlowException {
+        protected SignedTransaction timedCall(FlowMetricsService metrics) throws FlowException {
+            metrics.step(this, "RETRIEVING_DATA");
             // TODO: query only for the tokens owned by the sender
             Party notary = NotaryUtilities.getPreferredNotary(getServiceHub());
 
-            AccountService accountService = getServiceHub().cordaService(KeyManagementBackedAccountService.class);
+            AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
 
-            AccountInfo receiverAccount = null;
-            AccountInfo senderAccount = null;
-            try {
-                receiverAccount = accountService.accountInfo(whereTo).get(0).getState().getData();
-            } catch (IndexOutOfBoundsException e) {
+            StateAndRef<AccountInfo> receiverAccountRef = accountLookup.accountInfo(whereTo);
+            if (receiverAccountRef == null) {
                 throw new FlowException("Receiver account with name " + whereTo + " not found.");
             }
+            AccountInfo receiverAccount = receiverAccountRef.getState().getData();
 
-            try {
-                senderAccount = accountService.accountInfo(whereFrom).get(0).getState().getData();
-            } catch (IndexOutOfBoundsException e) {
+            StateAndRef<AccountInfo> senderAccountRef = accountLookup.accountInfo(whereFrom);
+            if (senderAccountRef == null) {
                 throw new FlowException("Sender account with name " + whereFrom + " not found.");
             }
+            AccountInfo senderAccount = senderAccountRef.getState().getData();
 
+            metrics.step(this, "REQUESTING_KEY");
             AnonymousParty receiverParty = subFlow(new RequestKeyForAccount(receiverAccount));
             //AnonymousParty senderParty = subFlow(new RequestKeyForAccount(senderAccount));
 
@@ -67,6 +71,8 @@ public class A2ATokenTransferFlow {
 
             PartyAndAmount partyAndAmount = new PartyAndAmount<>(receiverParty, new Amount<>(amount, new EnergyTokenType()));
 
+            // coin selection, signing and finality
+            metrics.step(this, "MOVING_TOKENS");
             // perhaps shouldn't use subFlow?
             return subFlow(new MoveFungibleTokens(partyAndAmount, Collections.emptyList(), heldByAccount));
         }
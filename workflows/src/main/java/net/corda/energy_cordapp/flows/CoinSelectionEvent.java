@@ -0,0 +1,32 @@
+package net.corda.energy_cordapp.flows;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for the coin selection of an energy transfer: leasing a token shard, if sharding is enabled,
+ * and selecting the tokens to move. Only used when FlightRecorder.AVAILABLE.
+ */
+@Name("net.corda.energy_cordapp.CoinSelection")
+@Label("Coin Selection")
+@Category({"Energy CorDapp", "Flows"})
+@Description("Selection of the tokens an energy transfer spends")
+@StackTrace(false)
+final class CoinSelectionEvent extends jdk.jfr.Event {
+
+    @Label("Flow Class")
+    String flowClass;
+
+    @Label("Run ID")
+    String runId;
+
+    @Label("Amount")
+    long amount;
+
+    @Label("Sharded")
+    @Description("Whether the tokens were selected from a leased shard")
+    boolean sharded;
+}
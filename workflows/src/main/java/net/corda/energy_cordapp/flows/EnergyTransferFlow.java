@@ -4,32 +4,43 @@ import co.paralleluniverse.fibers.Suspendable;
 import com.google.common.collect.ImmutableList;
 import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
 import com.r3.corda.lib.accounts.workflows.flows.RequestKeyForAccount;
-import com.r3.corda.lib.accounts.workflows.services.AccountService;
-import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
 import com.r3.corda.lib.tokens.workflows.types.PartyAndAmount;
+import com.r3.corda.lib.tokens.contracts.types.TokenType;
 import net.corda.core.contracts.Amount;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.crypto.SecureHash;
 import net.corda.core.flows.*;
 import net.corda.core.identity.AnonymousParty;
 import net.corda.core.identity.Party;
 import net.corda.core.node.StatesToRecord;
+import net.corda.core.serialization.CordaSerializable;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.core.transactions.TransactionBuilder;
 
 import com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilities;
 import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilities;
 import net.corda.core.utilities.ProgressTracker;
+import net.corda.energy_cordapp.accountUtilities.AccountLookupService;
 import net.corda.energy_cordapp.contracts.Commands;
 import net.corda.energy_cordapp.states.EnergyTokenType;
 import net.corda.energy_cordapp.states.InteractionDataState;
 import org.jetbrains.annotations.NotNull;
 
 import java.nio.charset.StandardCharsets;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
- * Contains the classes SendEnergyTokens and ReceiveEnergyTokens.
+ * Contains the classes SendEnergyTokens, SendEnergyTokensBatch and their responders.
  * SendEnergyTokens is the initiating flow that is used
  * to send energy tokens from e.g. a grid node to an EV.
+ * SendEnergyTokensBatch settles many such V2G sessions in a single transaction.
  * ReceiveEnergyTokens is the responding flow that signs the transaction,
  * and can be subclassed or overridden for specific checks that are to be performed
  * by the EV manufacturer or the MEC node
@@ -46,7 +57,7 @@ public class EnergyTransferFlow {
      */
     @InitiatingFlow
     @StartableByRPC
-    public static class SendEnergyTokens extends FlowLogic<SignedTransaction> {
+    public static class SendEnergyTokens extends TimedFlow<SignedTransaction> {
         private final long amount;
 
         // For suspendability, we will simply store String account names rather than actual Parties or AccountInfo's
@@ -150,76 +161,347 @@ public class EnergyTransferFlow {
             return progressTracker;
         }
 
-        @Suspendable
         @Override
-        public SignedTransaction call() throws FlowException {
+        protected String account() {
+            return whereTo;
+        }
+
+        @Override
+        @Suspendable
+        protected SignedTransaction timedCall(FlowMetricsService metrics) throws FlowException {
             progressTracker.setCurrentStep(RETRIEVING_DATA);
+            metrics.step(this, "RETRIEVING_DATA");
 
             Party notary = NotaryUtilities.getPreferredNotary(getServiceHub());
 
-            // getting the account service, which will then give us the account
-            AccountService accountService = getServiceHub().cordaService(KeyManagementBackedAccountService.class);
+            // getting the account lookup service, which will then give us the account without a vault query
+            AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
 
-            // fetching the first element; this may be a bad way of doing things
+            // fetching the first account with this name; this may be a bad way of doing things
             // TODO: find a preferred notary, rather than the first notary
-            AccountInfo receiverAccount = accountService.accountInfo(whereTo).get(0).getState().getData();
+            StateAndRef<AccountInfo> receiverAccountRef = accountLookup.accountInfo(whereTo);
+            if (receiverAccountRef == null) {
+                throw new FlowException("Receiver account with name " + whereTo + " not found.");
+            }
+            AccountInfo receiverAccount = receiverAccountRef.getState().getData();
 
             // the account to which to send tokens
             AnonymousParty receiver = subFlow(new RequestKeyForAccount(receiverAccount));
 
-            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
-            // instantiate the builder object that will build the transaction,
-            // pass it the notary we retrieved above
-            TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
-
-            // add the transaction and command involved in moving fungible tokens to the transaction builder
-            // this command will be used for all token transfers
-            MoveTokensUtilities.addMoveFungibleTokens(
-                    transactionBuilder,
-                    getServiceHub(),
-                    ImmutableList.of(new PartyAndAmount<>(receiver, new Amount<>(amount, new EnergyTokenType()))),
-                    getOurIdentity()
-                    //me
-                    );
-
-            // create the InteractionDataState that will store interaction data
-            // and make this beholden to our custom contract
-            InteractionDataState interactionDataState = new InteractionDataState(
-                    getOurIdentity(), receiverAccount.getHost(), sanctionsBody, hash,
-                    amount, note);
-            transactionBuilder.addOutputState(interactionDataState);
-            // add another command that mandates the signature of the sanctions body
-            // along with other participants
-            // this command is only used for energy transfer
-            transactionBuilder.addCommand(
-                    new Commands.EnergyTransfer(),
-                    getOurIdentity().getOwningKey(),
-                    receiver.getOwningKey(),
-                    sanctionsBody.getOwningKey()
-            );
+            // with sharded coin selection, spend only token states no other running transfer is spending
+            TokenShardService tokenShards = getServiceHub().cordaService(TokenShardService.class);
+            metrics.coinSelectionStarted(this);
+            List<StateRef> shards = tokenShards.lease(getServiceHub(), getOurIdentity(), amount, getRunId().getUuid());
+            try {
+                progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+                metrics.step(this, "GENERATING_TRANSACTION");
+                // instantiate the builder object that will build the transaction,
+                // pass it the notary we retrieved above
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+
+                // add the transaction and command involved in moving fungible tokens to the transaction builder
+                // this command will be used for all token transfers
+                MoveTokensUtilities.addMoveFungibleTokens(
+                        transactionBuilder,
+                        getServiceHub(),
+                        ImmutableList.of(new PartyAndAmount<>(receiver, new Amount<>(amount, new EnergyTokenType()))),
+                        getOurIdentity(),
+                        //me
+                        TokenShardService.onlyShards(shards)
+                        );
+                metrics.coinSelectionEnded(this, amount, shards != null);
+
+                // create the InteractionDataState that will store interaction data
+                // and make this beholden to our custom contract
+                InteractionDataState interactionDataState = new InteractionDataState(
+                        getOurIdentity(), receiverAccount.getHost(), sanctionsBody, hash,
+                        amount, note);
+                transactionBuilder.addOutputState(interactionDataState);
+                // add another command that mandates the signature of the sanctions body
+                // along with other participants
+                // this command is only used for energy transfer
+                transactionBuilder.addCommand(
+                        new Commands.EnergyTransfer(),
+                        getOurIdentity().getOwningKey(),
+                        receiver.getOwningKey(),
+                        sanctionsBody.getOwningKey()
+                );
+
+                // VERIFYING_TRANSACTION
+                progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+                metrics.step(this, "VERIFYING_TRANSACTION");
+                transactionBuilder.verify(getServiceHub());
+
+                // SIGNING_TRANSACTION
+                progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+                metrics.step(this, "SIGNING_TRANSACTION");
+                final SignedTransaction meSignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+
+                // GATHERING_SIGNATURES
+                progressTracker.setCurrentStep(GATHERING_SIGS);
+                metrics.step(this, "GATHERING_SIGS");
+                FlowSession sanctionsBodySession = initiateFlow(sanctionsBody);
+                FlowSession receiverSession = initiateFlow(receiverAccount.getHost());
+
+                // send the transaction to sign to the receiver and sanctions body
+                final SignedTransaction fullySignedTx = subFlow(
+                        new CollectSignaturesFlow(meSignedTx,
+                                ImmutableList.of(sanctionsBodySession, receiverSession))
+                );
+
+                // FINALISING_TRANSACTION
+                progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+                metrics.step(this, "FINALISING_TRANSACTION");
+                return subFlow(new FinalityFlow(fullySignedTx, ImmutableList.of(receiverSession, sanctionsBodySession)));
+            } finally {
+                tokenShards.release(shards);
+            }
+        }
+    }
+
+    /**
+     * A single V2G session to be settled by SendEnergyTokensBatch:
+     * the account to pay, the amount, the interaction hash and an optional note.
+     */
+    @CordaSerializable
+    public static class TransferEntry {
+        private final String whereTo;
+        private final long amount;
+        private final byte[] hash;
+        private final String note;
 
-            // VERIFYING_TRANSACTION
-            progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
-            transactionBuilder.verify(getServiceHub());
+        public TransferEntry(String whereTo, long amount, byte[] hash, String note) {
+            this.whereTo = whereTo;
+            this.amount = amount;
+            this.hash = hash;
+            this.note = note == null ? "" : note;
+        }
 
-            // SIGNING_TRANSACTION
-            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
-            final SignedTransaction meSignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+        public String getWhereTo() {
+            return whereTo;
+        }
 
-            // GATHERING_SIGNATURES
-            progressTracker.setCurrentStep(GATHERING_SIGS);
-            FlowSession sanctionsBodySession = initiateFlow(sanctionsBody);
-            FlowSession receiverSession = initiateFlow(receiverAccount.getHost());
+        public long getAmount() {
+            return amount;
+        }
 
-            // send the transaction to sign to the receiver and sanctions body
-            final SignedTransaction fullySignedTx = subFlow(
-                    new CollectSignaturesFlow(meSignedTx,
-                            ImmutableList.of(sanctionsBodySession, receiverSession))
-            );
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public String getNote() {
+            return note;
+        }
+    }
+
+    /**
+     * Batch variant of SendEnergyTokens.
+     * Settles a list of V2G sessions in one transaction: the tokens for every session are moved together,
+     * and one InteractionDataState is output per session.
+     * Keys are requested once per distinct account and signatures are collected once per counterparty node,
+     * so the notary and signature round trips are shared across the whole batch.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    @StartableByService
+    public static class SendEnergyTokensBatch extends TimedFlow<SignedTransaction> {
+
+        // the sessions to settle, in order
+        private final List<TransferEntry> entries;
+
+        // the sanctions body, probably Parsedata
+        private final Party sanctionsBody;
+
+        // the hashes of the sessions paid for, to anchor in the same transaction, if any
+        private final List<byte[]> sessionHashes;
+
+        private final ProgressTracker.Step RETRIEVING_DATA
+                = new ProgressTracker.Step("Retrieving account data");
+        private final ProgressTracker.Step GENERATING_TRANSACTION
+                = new ProgressTracker.Step("Generating transaction from retrieved data");
+        private final ProgressTracker.Step VERIFYING_TRANSACTION
+                = new ProgressTracker.Step("Verifying contract constraints");
+        private final ProgressTracker.Step SIGNING_TRANSACTION
+                = new ProgressTracker.Step("Signing the transaction");
+        private final ProgressTracker.Step GATHERING_SIGS
+                = new ProgressTracker.Step("Gathering the counterparties' signatures") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION
+                = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                RETRIEVING_DATA,
+                GENERATING_TRANSACTION,
+                VERIFYING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        /**
+         * The constructor for the batched energy token transfer.
+         * Every account in the batch must already have been shared with the sending node,
+         * and the sending node must hold enough EnergyTokenType FungibleTokens to cover the sum of all entries.
+         * @param entries the sessions to settle (at least one)
+         * @param sanctionsBody the node verifying the cars are discharging
+         */
+        public SendEnergyTokensBatch(List<TransferEntry> entries, Party sanctionsBody) {
+            this(entries, sanctionsBody, null);
+        }
 
-            // FINALISING_TRANSACTION
-            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
-            return subFlow(new FinalityFlow(fullySignedTx, ImmutableList.of(receiverSession, sanctionsBodySession)));
+        /**
+         * The constructor for a batched transfer that also anchors the sessions it pays for, as AnchorSessions does:
+         * the transaction carries an InteractionBatchState over their hashes, with the hashes attached,
+         * so each session can be proven with GetSessionInclusionProof even when several share an entry.
+         * @param entries the sessions to settle (at least one)
+         * @param sanctionsBody the node verifying the cars are discharging
+         * @param sessionHashes the SHA-256 hashes of the sessions paid for, or null to anchor none
+         */
+        public SendEnergyTokensBatch(List<TransferEntry> entries, Party sanctionsBody, List<byte[]> sessionHashes) {
+            this.entries = entries;
+            this.sanctionsBody = sanctionsBody;
+            this.sessionHashes = sessionHashes;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        protected SignedTransaction timedCall(FlowMetricsService metrics) throws FlowException {
+            if (entries == null || entries.isEmpty()) {
+                throw new FlowException("A batch must contain at least one transfer.");
+            }
+            // checked before any key is requested or token selected, so a bad entry fails the batch at once
+            long total = 0;
+            for (int i = 0; i < entries.size(); i++) {
+                TransferEntry entry = entries.get(i);
+                if (entry == null || entry.getWhereTo() == null) {
+                    throw new FlowException("Transfer " + i + " of the batch has no receiver account.");
+                }
+                if (entry.getHash() == null || entry.getHash().length == 0) {
+                    throw new FlowException("Transfer " + i + " of the batch, to " + entry.getWhereTo()
+                            + ", has no interaction hash.");
+                }
+                if (entry.getAmount() <= 0) {
+                    throw new FlowException("Transfer " + i + " of the batch, to " + entry.getWhereTo()
+                            + ", has a non-positive amount of " + entry.getAmount() + ".");
+                }
+                try {
+                    total = Math.addExact(total, entry.getAmount());
+                } catch (ArithmeticException e) {
+                    throw new FlowException("Transfer " + i + " of the batch, to " + entry.getWhereTo()
+                            + ", takes the total amount past " + Long.MAX_VALUE + ".");
+                }
+            }
+            progressTracker.setCurrentStep(RETRIEVING_DATA);
+            metrics.step(this, "RETRIEVING_DATA");
+
+            Party notary = NotaryUtilities.getPreferredNotary(getServiceHub());
+
+            AccountLookupService accountLookup = getServiceHub().cordaService(AccountLookupService.class);
+
+            // resolve each distinct account only once, however many sessions it has in the batch
+            Map<String, AccountInfo> accounts = new LinkedHashMap<>();
+            Map<String, AnonymousParty> receivers = new LinkedHashMap<>();
+            for (TransferEntry entry : entries) {
+                if (accounts.containsKey(entry.getWhereTo())) {
+                    continue;
+                }
+                StateAndRef<AccountInfo> found = accountLookup.accountInfo(entry.getWhereTo());
+                if (found == null) {
+                    throw new FlowException("Receiver account with name " + entry.getWhereTo() + " not found.");
+                }
+                AccountInfo account = found.getState().getData();
+                accounts.put(entry.getWhereTo(), account);
+                receivers.put(entry.getWhereTo(), subFlow(new RequestKeyForAccount(account)));
+            }
+
+            // with sharded coin selection, spend only token states no other running transfer is spending
+            TokenShardService tokenShards = getServiceHub().cordaService(TokenShardService.class);
+            metrics.coinSelectionStarted(this);
+            List<StateRef> shards = tokenShards.lease(getServiceHub(), getOurIdentity(), total, getRunId().getUuid());
+            try {
+                progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+                metrics.step(this, "GENERATING_TRANSACTION");
+                TransactionBuilder transactionBuilder = new TransactionBuilder(notary);
+
+                // one token move per session, all selected from the node's own tokens in a single pass
+                List<PartyAndAmount<TokenType>> partiesAndAmounts = new ArrayList<>(entries.size());
+                for (TransferEntry entry : entries) {
+                    partiesAndAmounts.add(new PartyAndAmount<>(receivers.get(entry.getWhereTo()),
+                            new Amount<>(entry.getAmount(), new EnergyTokenType())));
+                }
+                MoveTokensUtilities.addMoveFungibleTokens(
+                        transactionBuilder,
+                        getServiceHub(),
+                        partiesAndAmounts,
+                        getOurIdentity(),
+                        TokenShardService.onlyShards(shards)
+                );
+                metrics.coinSelectionEnded(this, total, shards != null);
+
+                // one InteractionDataState per session, so each session hash stays individually queryable
+                for (TransferEntry entry : entries) {
+                    transactionBuilder.addOutputState(new InteractionDataState(
+                            getOurIdentity(), accounts.get(entry.getWhereTo()).getHost(), sanctionsBody,
+                            entry.getHash(), entry.getAmount(), entry.getNote()));
+                }
+                if (sessionHashes != null) {
+                    SessionAnchorFlow.addBatch(transactionBuilder, getServiceHub(), getOurIdentity(), sanctionsBody,
+                            sessionHashes, "");
+                }
+
+                // a single EnergyTransfer command signed by us, every receiving key and the sanctions body
+                List<PublicKey> signers = new ArrayList<>();
+                signers.add(getOurIdentity().getOwningKey());
+                for (AnonymousParty receiver : receivers.values()) {
+                    signers.add(receiver.getOwningKey());
+                }
+                signers.add(sanctionsBody.getOwningKey());
+                transactionBuilder.addCommand(new Commands.EnergyTransfer(), signers);
+
+                progressTracker.setCurrentStep(VERIFYING_TRANSACTION);
+                metrics.step(this, "VERIFYING_TRANSACTION");
+                transactionBuilder.verify(getServiceHub());
+
+                progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+                metrics.step(this, "SIGNING_TRANSACTION");
+                final SignedTransaction meSignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+
+                progressTracker.setCurrentStep(GATHERING_SIGS);
+                metrics.step(this, "GATHERING_SIGS");
+                // one session per counterparty node, rather than one per session in the batch
+                Set<Party> counterparties = new LinkedHashSet<>();
+                counterparties.add(sanctionsBody);
+                for (AccountInfo account : accounts.values()) {
+                    counterparties.add(account.getHost());
+                }
+                counterparties.remove(getOurIdentity());
+                List<FlowSession> sessions = new ArrayList<>(counterparties.size());
+                for (Party counterparty : counterparties) {
+                    sessions.add(initiateFlow(counterparty));
+                }
+
+                final SignedTransaction fullySignedTx = subFlow(new CollectSignaturesFlow(meSignedTx, sessions));
+
+                progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+                metrics.step(this, "FINALISING_TRANSACTION");
+                return subFlow(new FinalityFlow(fullySignedTx, sessions));
+            } finally {
+                tokenShards.release(shards);
+            }
         }
     }
 
@@ -267,4 +549,16 @@ public class EnergyTransferFlow {
             return recordedTx;
         }
     }
+
+    /**
+     * The responding flow to the SendEnergyTokensBatch flow.
+     * Signs and records the batched transaction exactly as ReceiveEnergyTokens does for a single session.
+     */
+    @InitiatedBy(SendEnergyTokensBatch.class)
+    public static class ReceiveEnergyTokensBatch extends ReceiveEnergyTokens {
+
+        public ReceiveEnergyTokensBatch(FlowSession initiatingSession) {
+            super(initiatingSession);
+        }
+    }
 }
@@ -0,0 +1,32 @@
+package net.corda.energy_cordapp.flows;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event spanning one of this CorDapp's flows, from FlowMetricsService.start to end.
+ * Only used when FlightRecorder.AVAILABLE.
+ */
+@Name("net.corda.energy_cordapp.Flow")
+@Label("Flow")
+@Category({"Energy CorDapp", "Flows"})
+@Description("A flow of the energy CorDapp, from its start to its end")
+@StackTrace(false)
+final class FlowEvent extends jdk.jfr.Event {
+
+    @Label("Flow Class")
+    String flowClass;
+
+    @Label("Run ID")
+    String runId;
+
+    @Label("Account")
+    @Description("The account the flow acts for, if any")
+    String account;
+
+    @Label("Succeeded")
+    boolean succeeded;
+}
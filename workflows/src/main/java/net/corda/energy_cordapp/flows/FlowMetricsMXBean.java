@@ -0,0 +1,26 @@
+package net.corda.energy_cordapp.flows;
+
+import java.util.Map;
+
+/**
+ * The JMX view of FlowMetricsService, registered as net.corda.energy_cordapp:type=FlowMetrics,node=<our name>.
+ * Keys are "<flow>/<step>", with the step "total" for the whole flow.
+ */
+public interface FlowMetricsMXBean {
+
+    /**
+     * @return per flow, the flows started, succeeded, failed, abandoned and still running,
+     * e.g. "A2ATokenTransferFlow.SendEnergyTokens/failed"
+     */
+    Map<String, Long> getCounts();
+
+    /**
+     * @return per flow step, its count, mean, p50 and p99 in milliseconds, e.g. "EnergyTransferFlow.SendEnergyTokens/GATHERING_SIGS/p99"
+     */
+    Map<String, Double> getLatencies();
+
+    /**
+     * @return the same metrics in the Prometheus text format
+     */
+    String getPrometheusText();
+}
@@ -0,0 +1,356 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.energy_cordapp.contracts.FlightRecorder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Times the steps of this CorDapp's flows on this node: the energy, A2A, issuance and account flows.
+ * A flow calls start(this) when it starts, step(this, name) as it enters each step, and end(this, succeeded) when it
+ * ends (TimedFlow does the first and last); a step lasts until the next one is entered, and the whole flow is
+ * recorded as the step "total".
+ * For the energy transfers, coin selection is GENERATING_TRANSACTION, our signature SIGNING_TRANSACTION, the
+ * counterparties' signatures GATHERING_SIGS and the notary FINALISING_TRANSACTION.
+ *
+ * Latencies go into fixed histogram buckets, so recording is a few uncontended LongAdder increments.
+ * The metrics are published over JMX (FlowMetricsMXBean) and as Prometheus text by GetFlowMetrics,
+ * which the Spring server serves at /flowMetrics.
+ * Flows restored from a checkpoint after a restart are timed from their next step.
+ * A flow that is killed, or kept in the flow hospital, never ends: once it has run for flowMetricsMaxRunningSeconds
+ * (in the CorDapp config, 30 minutes by default) it is no longer counted as running, but as abandoned.
+ *
+ * When the JVM supports Java Flight Recorder events (see FlightRecorder), each flow is also a FlowEvent, with the
+ * account it acts for, and the energy transfers' coin selection a CoinSelectionEvent, so a recording shows them
+ * next to GC pauses and lock contention. The events are held here rather than in the flows, so they never end up
+ * in a checkpoint.
+ */
+@CordaService
+public class FlowMetricsService extends SingletonSerializeAsToken implements FlowMetricsMXBean {
+    private static final Logger logger = LoggerFactory.getLogger(FlowMetricsService.class);
+
+    // the upper bounds of the histogram buckets, in seconds; the last bucket is unbounded
+    private static final double[] BUCKETS = {
+            0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+    };
+    static final String TOTAL = "total";
+    static final long DEFAULT_MAX_RUNNING_SECONDS = 1800;
+    // how often starting flows look for abandoned ones
+    private static final long EVICTION_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    // histograms by flow and step, and outcome counters by flow
+    private final Map<String, Map<String, Histogram>> histograms = new ConcurrentHashMap<>();
+    private final Map<String, Counters> counters = new ConcurrentHashMap<>();
+    // the flows running on this node, by run ID
+    private final Map<UUID, Running> running = new ConcurrentHashMap<>();
+    private final long maxRunningNanos;
+    private final AtomicLong lastEviction = new AtomicLong(System.nanoTime());
+
+    public FlowMetricsService(AppServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.maxRunningNanos = TimeUnit.SECONDS.toNanos(config.exists("flowMetricsMaxRunningSeconds")
+                ? config.getLong("flowMetricsMaxRunningSeconds") : DEFAULT_MAX_RUNNING_SECONDS);
+        String node = serviceHub.getMyInfo().getLegalIdentities().get(0).getName().toString();
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName("net.corda.energy_cordapp:type=FlowMetrics,node=" + ObjectName.quote(node));
+            // a node restarted in the same JVM (e.g. by a MockNetwork) replaces its predecessor's metrics
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+            server.registerMBean(new StandardMBean(this, FlowMetricsMXBean.class, true), name);
+        } catch (JMException e) {
+            logger.warn("Could not publish the flow metrics over JMX", e);
+        }
+    }
+
+    public void start(FlowLogic<?> flow) {
+        start(flow, null);
+    }
+
+    /**
+     * @param account the account the flow acts for, recorded in its FlowEvent (may be null)
+     */
+    public void start(FlowLogic<?> flow, String account) {
+        String name = flowName(flow);
+        counters(name).started.increment();
+        long now = System.nanoTime();
+        Running run = new Running(name, now);
+        if (FlightRecorder.AVAILABLE) {
+            run.event = new FlowEvent();
+            run.event.account = account;
+            run.event.begin();
+        }
+        running.put(flow.getRunId().getUuid(), run);
+
+        long last = lastEviction.get();
+        if (now - last >= EVICTION_INTERVAL_NANOS && lastEviction.compareAndSet(last, now)) {
+            evictAbandoned(now);
+        }
+    }
+
+    /**
+     * Ends the flow's current step, if any, and starts timing the next one.
+     */
+    public void step(FlowLogic<?> flow, String step) {
+        long now = System.nanoTime();
+        Running run = running.computeIfAbsent(flow.getRunId().getUuid(), it -> new Running(flowName(flow), now));
+        run.endStep(now);
+        run.step = step;
+        run.stepStarted = now;
+    }
+
+    public void end(FlowLogic<?> flow, boolean succeeded) {
+        long now = System.nanoTime();
+        Running run = running.remove(flow.getRunId().getUuid());
+        if (run == null) {
+            return;
+        }
+        run.endStep(now);
+        histogram(run.flow, TOTAL).record(now - run.started);
+        Counters flowCounters = counters(run.flow);
+        (succeeded ? flowCounters.succeeded : flowCounters.failed).increment();
+        if (run.event != null) {
+            FlowEvent event = run.event;
+            event.end();
+            if (event.shouldCommit()) {
+                event.flowClass = run.flow;
+                event.runId = flow.getRunId().getUuid().toString();
+                event.succeeded = succeeded;
+                event.commit();
+            }
+        }
+    }
+
+    /**
+     * Starts the flow's CoinSelectionEvent. Does nothing without JFR.
+     */
+    public void coinSelectionStarted(FlowLogic<?> flow) {
+        if (!FlightRecorder.AVAILABLE) {
+            return;
+        }
+        Running run = running.get(flow.getRunId().getUuid());
+        if (run != null) {
+            run.coinSelection = new CoinSelectionEvent();
+            run.coinSelection.begin();
+        }
+    }
+
+    /**
+     * Ends the flow's CoinSelectionEvent, if coinSelectionStarted started one.
+     * @param amount the amount of tokens selected
+     * @param sharded whether they were selected from a leased shard
+     */
+    public void coinSelectionEnded(FlowLogic<?> flow, long amount, boolean sharded) {
+        Running run = running.get(flow.getRunId().getUuid());
+        if (run == null || run.coinSelection == null) {
+            return;
+        }
+        CoinSelectionEvent event = run.coinSelection;
+        run.coinSelection = null;
+        event.end();
+        if (event.shouldCommit()) {
+            event.flowClass = run.flow;
+            event.runId = flow.getRunId().getUuid().toString();
+            event.amount = amount;
+            event.sharded = sharded;
+            event.commit();
+        }
+    }
+
+    // the run IDs of flows that never ended would otherwise stay in running, and in the gauge, for good
+    private void evictAbandoned(long now) {
+        for (Map.Entry<UUID, Running> entry : running.entrySet()) {
+            Running run = entry.getValue();
+            // unless the flow's own end() got there first
+            if (now - run.started > maxRunningNanos && running.remove(entry.getKey(), run)) {
+                counters(run.flow).abandoned.increment();
+            }
+        }
+    }
+
+    @Override
+    public Map<String, Long> getCounts() {
+        evictAbandoned(System.nanoTime());
+        Map<String, Long> counts = new TreeMap<>();
+        counters.forEach((flow, flowCounters) -> {
+            long started = flowCounters.started.sum();
+            long succeeded = flowCounters.succeeded.sum();
+            long failed = flowCounters.failed.sum();
+            long abandoned = flowCounters.abandoned.sum();
+            counts.put(flow + "/started", started);
+            counts.put(flow + "/succeeded", succeeded);
+            counts.put(flow + "/failed", failed);
+            counts.put(flow + "/abandoned", abandoned);
+            counts.put(flow + "/running", Math.max(0, started - succeeded - failed - abandoned));
+        });
+        return counts;
+    }
+
+    @Override
+    public Map<String, Double> getLatencies() {
+        Map<String, Double> latencies = new TreeMap<>();
+        histograms.forEach((flow, steps) -> steps.forEach((step, histogram) -> {
+            long[] counts = histogram.counts();
+            long count = histogram.count(counts);
+            String key = flow + "/" + step + "/";
+            latencies.put(key + "count", (double) count);
+            latencies.put(key + "mean", count == 0 ? 0 : histogram.sumNanos.sum() / 1e6 / count);
+            latencies.put(key + "p50", histogram.percentileMillis(counts, 0.5));
+            latencies.put(key + "p99", histogram.percentileMillis(counts, 0.99));
+        }));
+        return latencies;
+    }
+
+    @Override
+    public String getPrometheusText() {
+        evictAbandoned(System.nanoTime());
+        StringBuilder text = new StringBuilder();
+        text.append("# HELP energy_flow_step_seconds Time spent in each step of the energy CorDapp's flows\n");
+        text.append("# TYPE energy_flow_step_seconds histogram\n");
+        new TreeMap<>(histograms).forEach((flow, steps) -> new TreeMap<>(steps).forEach((step, histogram) -> {
+            String labels = "flow=\"" + flow + "\",step=\"" + step + "\"";
+            long[] counts = histogram.counts();
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                String le = i < BUCKETS.length ? Double.toString(BUCKETS[i]) : "+Inf";
+                text.append("energy_flow_step_seconds_bucket{").append(labels).append(",le=\"").append(le)
+                        .append("\"} ").append(cumulative).append('\n');
+            }
+            text.append("energy_flow_step_seconds_sum{").append(labels).append("} ")
+                    .append(String.format(Locale.ROOT, "%.6f", histogram.sumNanos.sum() / 1e9)).append('\n');
+            text.append("energy_flow_step_seconds_count{").append(labels).append("} ").append(cumulative).append('\n');
+        }));
+
+        text.append("# HELP energy_flows_total Flows of the energy CorDapp, by outcome\n");
+        text.append("# TYPE energy_flows_total counter\n");
+        new TreeMap<>(counters).forEach((flow, flowCounters) -> {
+            text.append("energy_flows_total{flow=\"").append(flow).append("\",outcome=\"succeeded\"} ")
+                    .append(flowCounters.succeeded.sum()).append('\n');
+            text.append("energy_flows_total{flow=\"").append(flow).append("\",outcome=\"failed\"} ")
+                    .append(flowCounters.failed.sum()).append('\n');
+            text.append("energy_flows_total{flow=\"").append(flow).append("\",outcome=\"abandoned\"} ")
+                    .append(flowCounters.abandoned.sum()).append('\n');
+        });
+        text.append("# HELP energy_flows_running Flows of the energy CorDapp running now\n");
+        text.append("# TYPE energy_flows_running gauge\n");
+        text.append("energy_flows_running ").append(running.size()).append('\n');
+        return text.toString();
+    }
+
+    private Histogram histogram(String flow, String step) {
+        return histograms.computeIfAbsent(flow, it -> new ConcurrentHashMap<>())
+                .computeIfAbsent(step, it -> new Histogram());
+    }
+
+    private Counters counters(String flow) {
+        return counters.computeIfAbsent(flow, it -> new Counters());
+    }
+
+    // e.g. EnergyTransferFlow.SendEnergyTokens, to tell it from A2ATokenTransferFlow.SendEnergyTokens
+    private static String flowName(FlowLogic<?> flow) {
+        String name = flow.getClass().getName();
+        return name.substring(name.lastIndexOf('.') + 1).replace('$', '.');
+    }
+
+    /**
+     * A running flow, and the step it is in. Only the flow's own fiber updates it.
+     */
+    private class Running {
+        private final String flow;
+        private final long started;
+        private String step;
+        private long stepStarted;
+        // only set when the JVM supports JFR events
+        private FlowEvent event;
+        private CoinSelectionEvent coinSelection;
+
+        Running(String flow, long started) {
+            this.flow = flow;
+            this.started = started;
+        }
+
+        void endStep(long now) {
+            if (step != null) {
+                histogram(flow, step).record(now - stepStarted);
+            }
+        }
+    }
+
+    private static class Counters {
+        private final LongAdder started = new LongAdder();
+        private final LongAdder succeeded = new LongAdder();
+        private final LongAdder failed = new LongAdder();
+        // ran for longer than maxRunningNanos without ending
+        private final LongAdder abandoned = new LongAdder();
+    }
+
+    private static class Histogram {
+        private final LongAdder[] buckets = new LongAdder[BUCKETS.length + 1];
+        private final LongAdder sumNanos = new LongAdder();
+
+        Histogram() {
+            for (int i = 0; i < buckets.length; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        void record(long nanos) {
+            double seconds = nanos / 1e9;
+            int bucket = 0;
+            while (bucket < BUCKETS.length && seconds > BUCKETS[bucket]) {
+                bucket++;
+            }
+            buckets[bucket].increment();
+            sumNanos.add(nanos);
+        }
+
+        long[] counts() {
+            long[] counts = new long[buckets.length];
+            for (int i = 0; i < buckets.length; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return counts;
+        }
+
+        long count(long[] counts) {
+            long count = 0;
+            for (long bucket : counts) {
+                count += bucket;
+            }
+            return count;
+        }
+
+        // the upper bound of the bucket holding the percentile, or the largest bound for the unbounded bucket
+        double percentileMillis(long[] counts, double percentile) {
+            long rank = (long) Math.ceil(percentile * count(counts));
+            long cumulative = 0;
+            for (int i = 0; i < counts.length; i++) {
+                cumulative += counts[i];
+                if (cumulative >= rank && cumulative > 0) {
+                    return BUCKETS[Math.min(i, BUCKETS.length - 1)] * 1000;
+                }
+            }
+            return 0;
+        }
+    }
+}
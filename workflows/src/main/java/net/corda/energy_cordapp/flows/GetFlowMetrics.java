@@ -0,0 +1,27 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+
+/**
+ * Simple flow that returns this node's flow step timings from FlowMetricsService, in the Prometheus text format.
+ */
+@StartableByRPC
+@StartableByService
+public class GetFlowMetrics extends FlowLogic<String> {
+
+    /**
+     * Empty constructor, since we don't have any fields to initialize
+     */
+    public GetFlowMetrics() {
+    }
+
+    @Override
+    @Suspendable
+    public String call() throws FlowException {
+        return getServiceHub().cordaService(FlowMetricsService.class).getPrometheusText();
+    }
+}
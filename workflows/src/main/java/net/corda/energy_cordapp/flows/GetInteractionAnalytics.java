@@ -0,0 +1,131 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Sums the DLR transferred by the V2G interactions this node has recorded, per time bucket
+ * and per grid, OEM or (grid, OEM) pair.
+ * The aggregation is one grouped SQL query: interaction_data_state_model (InteractionDataSchemaV1) is joined with
+ * the vault's recorded time and summed in the database, so only one row per series and bucket leaves it.
+ */
+@StartableByRPC
+@StartableByService
+public class GetInteractionAnalytics extends FlowLogic<InteractionAnalytics> {
+
+    // the smallest bucket, and the most buckets a single query may span
+    static final long MIN_BUCKET_SECONDS = 60;
+    static final long MAX_BUCKETS = 10_000;
+
+    private final Instant from;
+    private final Instant to;
+    private final long bucketSeconds;
+    private final boolean byGrid;
+    private final boolean byOem;
+
+    /**
+     * @param from the start of the first bucket (inclusive)
+     * @param to the end of the range (exclusive)
+     * @param bucketSeconds the width of a bucket, e.g. 3600 for hourly or 86400 for daily series
+     * @param byGrid whether to have a series per grid
+     * @param byOem whether to have a series per OEM (with byGrid, a series per grid and OEM pair)
+     */
+    public GetInteractionAnalytics(Instant from, Instant to, long bucketSeconds, boolean byGrid, boolean byOem) {
+        this.from = from;
+        this.to = to;
+        this.bucketSeconds = bucketSeconds;
+        this.byGrid = byGrid;
+        this.byOem = byOem;
+    }
+
+    @Override
+    public InteractionAnalytics call() throws FlowException {
+        if (!from.isBefore(to)) {
+            throw new FlowException("The range must end after it starts, got " + from + " to " + to);
+        }
+        if (bucketSeconds < MIN_BUCKET_SECONDS) {
+            throw new FlowException("Buckets must be at least " + MIN_BUCKET_SECONDS + " seconds, got " + bucketSeconds);
+        }
+        if (Duration.between(from, to).getSeconds() / bucketSeconds >= MAX_BUCKETS) {
+            throw new FlowException("The range spans more than " + MAX_BUCKETS + " buckets, use larger buckets");
+        }
+
+        Map<List<String>, InteractionAnalytics.Series> series = new LinkedHashMap<>();
+        Connection connection = getServiceHub().jdbcSession();
+        try (PreparedStatement statement = connection.prepareStatement(query(connection))) {
+            Timestamp start = Timestamp.from(from);
+            statement.setTimestamp(1, start);
+            statement.setLong(2, bucketSeconds);
+            statement.setTimestamp(3, start);
+            statement.setTimestamp(4, Timestamp.from(to));
+            try (ResultSet resultSet = statement.executeQuery()) {
+                while (resultSet.next()) {
+                    String grid = byGrid ? resultSet.getString("grid") : null;
+                    String oem = byOem ? resultSet.getString("oem") : null;
+                    InteractionAnalytics.Series one = series.computeIfAbsent(
+                            listOf(grid, oem), it -> new InteractionAnalytics.Series(grid, oem));
+                    one.getBuckets().add(resultSet.getLong("bucket"));
+                    one.getAmounts().add(resultSet.getLong("amount"));
+                    one.getSessions().add(resultSet.getLong("sessions"));
+                }
+            }
+        } catch (SQLException e) {
+            throw new FlowException("Could not query the interaction analytics", e);
+        }
+        return new InteractionAnalytics(from, to, bucketSeconds, new ArrayList<>(series.values()));
+    }
+
+    /**
+     * Builds the grouped query, with the bucket computed in the database's own dialect.
+     * Buckets are counted from the start of the range, which is bound as a timestamp like the range itself,
+     * so they line up with it whatever time zone the database stores timestamps in.
+     * The bucket is computed in a derived table, so the outer query can group by it by name.
+     */
+    private String query(Connection connection) throws SQLException, FlowException {
+        String bucket = bucketExpression(connection.getMetaData().getDatabaseProductName());
+        String dimensions = (byGrid ? "b.grid, " : "") + (byOem ? "b.oem, " : "");
+        return "SELECT " + dimensions + "b.bucket, SUM(b.amount) AS amount, COUNT(*) AS sessions " +
+                "FROM (SELECT i.grid, i.oem, i.amount, " + bucket + " AS bucket " +
+                "FROM interaction_data_state_model i " +
+                "JOIN vault_states v ON v.transaction_id = i.transaction_id AND v.output_index = i.output_index " +
+                "WHERE v.recorded_timestamp >= ? AND v.recorded_timestamp < ?) b " +
+                "GROUP BY " + dimensions + "b.bucket " +
+                "ORDER BY " + dimensions + "b.bucket";
+    }
+
+    // the number of whole buckets between the first parameter (the range start) and the recorded time
+    private static String bucketExpression(String databaseProduct) throws FlowException {
+        switch (databaseProduct) {
+            case "H2":
+                return "FLOOR(DATEDIFF('SECOND', ?, v.recorded_timestamp) / ?)";
+            case "PostgreSQL":
+                return "FLOOR(EXTRACT(EPOCH FROM (v.recorded_timestamp - CAST(? AS TIMESTAMP))) / ?)";
+            case "Microsoft SQL Server":
+                return "FLOOR(DATEDIFF_BIG(SECOND, ?, v.recorded_timestamp) / ?)";
+            default:
+                throw new FlowException("Interaction analytics are not supported on " + databaseProduct);
+        }
+    }
+
+    private static List<String> listOf(String grid, String oem) {
+        List<String> key = new ArrayList<>(2);
+        key.add(Objects.toString(grid, ""));
+        key.add(Objects.toString(oem, ""));
+        return key;
+    }
+}
@@ -0,0 +1,58 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Simple flow that returns gauges of this node's health: its heap usage, the rows in its vault and
+ * the number of flow checkpoints it has persisted.
+ * Sampled over time, they show a node slowly degrading, e.g. in the soak test.
+ */
+@StartableByRPC
+@StartableByService
+public class GetNodeHealth extends FlowLogic<Map<String, Long>> {
+
+    /**
+     * Empty constructor, since we don't have any fields to initialize
+     */
+    public GetNodeHealth() {
+    }
+
+    @Override
+    @Suspendable
+    public Map<String, Long> call() throws FlowException {
+        Map<String, Long> health = new LinkedHashMap<>();
+        MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+        health.put("heapUsed", heap.getUsed());
+        health.put("heapMax", heap.getMax());
+
+        Connection connection = getServiceHub().jdbcSession();
+        try {
+            health.put("vaultStates", count(connection, "SELECT COUNT(*) FROM vault_states"));
+            health.put("unconsumedStates", count(connection, "SELECT COUNT(*) FROM vault_states WHERE state_status = 0"));
+            health.put("checkpoints", count(connection, "SELECT COUNT(*) FROM node_checkpoints"));
+        } catch (SQLException e) {
+            throw new FlowException("Could not count the node's vault states and checkpoints", e);
+        }
+        return health;
+    }
+
+    private static long count(Connection connection, String sql) throws SQLException {
+        try (PreparedStatement statement = connection.prepareStatement(sql);
+             ResultSet resultSet = statement.executeQuery()) {
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.contracts.Attachment;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.Builder;
+import net.corda.core.node.services.vault.FieldInfo;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.QueryCriteriaUtils;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+import net.corda.energy_cordapp.states.InteractionBatchSchemaV1;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collections;
+import java.util.List;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Proves that a V2G session was anchored by one of the InteractionBatchStates this node knows of.
+ * Given the batch's Merkle root, that batch is looked up by its root; otherwise the batches holding the session
+ * are found through SessionIndexService, which must then be enabled, and the most recent one is used.
+ * Only that batch's attached session hashes are read to build the proof, whatever the number of sessions anchored.
+ * Returns null if no batch holds the session.
+ */
+@StartableByRPC
+@StartableByService
+public class GetSessionInclusionProof extends FlowLogic<SessionInclusionProof> {
+    // how many of the batches holding the session (or with its root) are read from the vault
+    private static final int PAGE_SIZE = 100;
+
+    private final byte[] sessionHash;
+    private final byte[] merkleRoot;
+
+    /**
+     * @param sessionHash the SHA-256 of the session's V2G data
+     * @param merkleRoot the root of the batch holding the session, or null to look it up in the session index
+     */
+    public GetSessionInclusionProof(byte[] sessionHash, byte[] merkleRoot) {
+        this.sessionHash = sessionHash;
+        this.merkleRoot = merkleRoot;
+    }
+
+    @Override
+    @Suspendable
+    public SessionInclusionProof call() throws FlowException {
+        if (sessionHash == null || sessionHash.length != SessionMerkleTree.HASH_SIZE) {
+            throw new FlowException("The session hash must be a SHA-256");
+        }
+        QueryCriteria criteria;
+        if (merkleRoot != null) {
+            try {
+                FieldInfo root = QueryCriteriaUtils.getField("merkleRoot", InteractionBatchSchemaV1.InteractionBatchModel.class);
+                criteria = new QueryCriteria.VaultCustomQueryCriteria(Builder.equal(root, merkleRoot));
+            } catch (NoSuchFieldException e) {
+                throw new FlowException(e);
+            }
+        } else {
+            SessionIndexService index = getServiceHub().cordaService(SessionIndexService.class);
+            if (!index.isEnabled()) {
+                throw new FlowException("The session index is disabled, so the Merkle root of the session's batch is required");
+            }
+            List<StateRef> holding = index.batchesHolding(sessionHash);
+            if (holding.isEmpty()) {
+                return null;
+            }
+            criteria = new QueryCriteria.VaultQueryCriteria().withStateRefs(holding);
+        }
+        Sort newestFirst = new Sort(Collections.singleton(new Sort.SortColumn(
+                new SortAttribute.Standard(Sort.VaultStateAttribute.RECORDED_TIME), Sort.Direction.DESC)));
+
+        // any batch holding the session proves it, so the first page is enough
+        Vault.Page<InteractionBatchState> batches = getServiceHub().getVaultService().queryBy(
+                InteractionBatchState.class, criteria, new PageSpecification(DEFAULT_PAGE_NUM, PAGE_SIZE), newestFirst);
+        for (StateAndRef<InteractionBatchState> batch : batches.getStates()) {
+            SessionInclusionProof proof = prove(batch);
+            if (proof != null) {
+                return proof;
+            }
+        }
+        return null;
+    }
+
+    // the session's proof within this batch, or null if the batch doesn't hold it
+    private SessionInclusionProof prove(StateAndRef<InteractionBatchState> batch) throws FlowException {
+        InteractionBatchState state = batch.getState().getData();
+        Attachment attachment = getServiceHub().getAttachments().openAttachment(state.getSessionHashes());
+        if (attachment == null) {
+            return null;
+        }
+        SessionMerkleTree tree;
+        try (InputStream in = attachment.open()) {
+            tree = SessionMerkleTree.fromAttachment(in);
+        } catch (IOException e) {
+            throw new FlowException("Cannot read the session hashes of " + batch.getRef(), e);
+        }
+        int index = tree.indexOf(sessionHash);
+        if (index < 0) {
+            return null;
+        }
+        return new SessionInclusionProof(sessionHash, tree.getRoot(), index, tree.getLeafCount(),
+                tree.auditPath(index), batch.getRef().getTxhash());
+    }
+}
@@ -0,0 +1,100 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.serialization.CordaSerializable;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The DLR transferred by V2G interactions in [from, to), as returned by GetInteractionAnalytics.
+ * Time is cut into buckets of bucketSeconds starting at `from`, and there is one Series per grid, OEM or
+ * (grid, OEM) pair, depending on what was grouped by.
+ * Series are sparse: bucket i starts at from + i * bucketSeconds, and buckets without interactions are left out.
+ */
+@CordaSerializable
+public class InteractionAnalytics {
+    private final Instant from;
+    private final Instant to;
+    private final long bucketSeconds;
+    private final List<Series> series;
+
+    public InteractionAnalytics(Instant from, Instant to, long bucketSeconds, List<Series> series) {
+        this.from = from;
+        this.to = to;
+        this.bucketSeconds = bucketSeconds;
+        this.series = series;
+    }
+
+    public Instant getFrom() {
+        return from;
+    }
+
+    public Instant getTo() {
+        return to;
+    }
+
+    public long getBucketSeconds() {
+        return bucketSeconds;
+    }
+
+    public List<Series> getSeries() {
+        return series;
+    }
+
+    /**
+     * The buckets of one grid, OEM or (grid, OEM) pair, as three lists of the same length.
+     * grid and oem are X500 names, or null for a dimension that was not grouped by.
+     */
+    @CordaSerializable
+    public static class Series {
+        private final String grid;
+        private final String oem;
+        private final List<Long> buckets;
+        private final List<Long> amounts;
+        private final List<Long> sessions;
+
+        public Series(String grid, String oem, List<Long> buckets, List<Long> amounts, List<Long> sessions) {
+            this.grid = grid;
+            this.oem = oem;
+            this.buckets = buckets;
+            this.amounts = amounts;
+            this.sessions = sessions;
+        }
+
+        Series(String grid, String oem) {
+            this(grid, oem, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        }
+
+        public String getGrid() {
+            return grid;
+        }
+
+        public String getOem() {
+            return oem;
+        }
+
+        public List<Long> getBuckets() {
+            return buckets;
+        }
+
+        public List<Long> getAmounts() {
+            return amounts;
+        }
+
+        public List<Long> getSessions() {
+            return sessions;
+        }
+
+        /**
+         * @return the DLR transferred over all buckets of this series
+         */
+        public long total() {
+            long total = 0;
+            for (long amount : amounts) {
+                total += amount;
+            }
+            return total;
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+import net.corda.energy_cordapp.flows.NettedSessionSchemaV1.PendingSession;
+import kotlin.Unit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Node-side service that nets many small V2G interactions into a few ledger transactions.
+ * Interactions are collected per (sanctions body, OEM account) window.
+ * A window is closed when it reaches the configured number of sessions, or at the next flush, whichever comes first.
+ * Flushes run at a fixed rate for the whole node rather than per window, and close every open window at once,
+ * so a session waits anywhere up to one period to be paid.
+ * All windows closed together for the same sanctions body are settled in a single
+ * EnergyTransferFlow.SendEnergyTokensBatch transaction, with one entry per account carrying the net amount.
+ * The same transaction anchors every session hash as an InteractionBatchState (see SessionAnchorFlow),
+ * so each session can still be proven with GetSessionInclusionProof, while signatures, notarisations and vault rows
+ * grow with the number of windows rather than the number of sessions.
+ *
+ * The recorded sessions are kept in the node's database (see NettedSessionSchemaV1) until NettedSettlementFlow
+ * has paid for them, so neither a restart nor a failed settlement loses them.
+ * Only one settlement runs at a time, so two never claim the same sessions.
+ * Sessions claimed by a settlement that is no longer in flight (killed, or failed outside of its payments)
+ * are handed back when the next one starts.
+ *
+ * The flush period and the window size can be tuned in the CorDapp config with nettingWindowSeconds
+ * and nettingMaxSessions.
+ */
+@CordaService
+public class InteractionNettingService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(InteractionNettingService.class);
+
+    static final long DEFAULT_WINDOW_SECONDS = 60;
+    static final int DEFAULT_MAX_SESSIONS = 100;
+
+    // node_checkpoints.status of the flows still in flight, by the ordinal of the node's Checkpoint.FlowStatus
+    private static final int CHECKPOINT_RUNNABLE = 0;
+    private static final int CHECKPOINT_HOSPITALIZED = 3;
+    private static final int CHECKPOINT_PAUSED = 5;
+
+    private final AppServiceHub serviceHub;
+    private final long windowSeconds;
+    private final int maxSessions;
+
+    // the settlement running, if any, and whether another flush was asked for while it ran
+    private CordaFuture<Integer> settling;
+    private boolean flushRequested;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "interaction-netting");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public InteractionNettingService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.windowSeconds = config.exists("nettingWindowSeconds")
+                ? config.getLong("nettingWindowSeconds") : DEFAULT_WINDOW_SECONDS;
+        this.maxSessions = config.exists("nettingMaxSessions")
+                ? config.getInt("nettingMaxSessions") : DEFAULT_MAX_SESSIONS;
+
+        // one flush interval for every window, not an age per window
+        scheduler.scheduleAtFixedRate(this::flushQuietly, windowSeconds, windowSeconds, TimeUnit.SECONDS);
+        serviceHub.registerUnloadHandler(() -> {
+            scheduler.shutdown();
+            return Unit.INSTANCE;
+        });
+    }
+
+    /**
+     * Adds a V2G interaction to the open window for its account.
+     * Must be called from a flow: the session is stored in the flow's database transaction.
+     * If the window is full, settlement is handed off to the scheduler thread,
+     * so this never blocks the caller.
+     * @param whereTo the name of the account to pay
+     * @param sanctionsBody the node verifying the car is discharging
+     * @param amount the amount of tokens owed for this session
+     * @param hash the SHA-256 interaction hash
+     * @return false if the session is already waiting for settlement
+     */
+    public boolean record(String whereTo, Party sanctionsBody, long amount, byte[] hash) {
+        String sessionHash = new SecureHash.SHA256(hash).toString();
+        long open = serviceHub.withEntityManager(entityManager -> {
+            if (entityManager.find(PendingSession.class, sessionHash) != null) {
+                return -1L;
+            }
+            entityManager.persist(new PendingSession(sessionHash, sanctionsBody, whereTo, amount, Instant.now()));
+            return entityManager.createQuery("SELECT COUNT(s) FROM PendingNettedSession s " +
+                    "WHERE s.sanctionsBody = :sanctionsBody AND s.accountName = :accountName " +
+                    "AND s.settlement IS NULL", Long.class)
+                    .setParameter("sanctionsBody", sanctionsBody)
+                    .setParameter("accountName", whereTo)
+                    .getSingleResult();
+        });
+        if (open >= maxSessions) {
+            scheduler.execute(this::flushQuietly);
+        }
+        return open >= 0;
+    }
+
+    /**
+     * @return the number of sessions waiting for settlement, including those being settled
+     */
+    public int pendingSessions() {
+        long pending = serviceHub.withEntityManager(entityManager -> {
+            return entityManager.createQuery("SELECT COUNT(s) FROM PendingNettedSession s",
+                    Long.class).getSingleResult();
+        });
+        return (int) pending;
+    }
+
+    /**
+     * Closes every open window and starts a NettedSettlementFlow to pay for them.
+     * If a settlement is already running, another one is started once it completes.
+     * @return the settlement flow's result: the number of settlement transactions made
+     */
+    public CordaFuture<Integer> flush() {
+        CordaFuture<Integer> started;
+        synchronized (this) {
+            if (settling != null && !settling.isDone()) {
+                flushRequested = true;
+                return settling;
+            }
+            settling = serviceHub.startFlow(new NettedSettlementFlow()).getReturnValue();
+            started = settling;
+        }
+        started.then(this::settlementDone);
+        return started;
+    }
+
+    private Unit settlementDone(CordaFuture<Integer> settlement) {
+        try {
+            settlement.get();
+        } catch (ExecutionException e) {
+            // a failed payment is handed back by the flow itself, so this is anything else, e.g. the claim failing
+            logger.error("Failed to settle netted interactions", e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        boolean again;
+        synchronized (this) {
+            again = flushRequested;
+            flushRequested = false;
+        }
+        if (again) {
+            scheduler.execute(this::flushQuietly);
+        }
+        return Unit.INSTANCE;
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (Exception e) {
+            // a settlement that can't start must not kill the scheduler, so the next window can still be settled
+            logger.error("Failed to start settling netted interactions", e);
+        }
+    }
+
+    /**
+     * Claims every session not being settled yet for a settlement flow, in the flow's database transaction.
+     * The sessions of earlier settlements that are no longer in flight are claimed as well.
+     * @param settlement the run ID of the settlement flow
+     * @return one settlement per sanctions body
+     */
+    List<Settlement> claim(UUID settlement) {
+        List<PendingSession> claimed = serviceHub.withEntityManager(entityManager -> {
+            // a claim commits with its flow's first checkpoint, so a flow without a live checkpoint will never pay;
+            // one kept in for observation still may once retried, so its sessions stay claimed until it is killed
+            int abandoned = entityManager.createNativeQuery("UPDATE netted_session_pending SET settlement = NULL " +
+                    "WHERE settlement IS NOT NULL AND settlement <> :settlement AND settlement NOT IN " +
+                    "(SELECT flow_id FROM node_checkpoints WHERE status IN (:runnable, :hospitalized, :paused))")
+                    .setParameter("settlement", settlement.toString())
+                    .setParameter("runnable", CHECKPOINT_RUNNABLE)
+                    .setParameter("hospitalized", CHECKPOINT_HOSPITALIZED)
+                    .setParameter("paused", CHECKPOINT_PAUSED)
+                    .executeUpdate();
+            if (abandoned > 0) {
+                logger.warn("Released " + abandoned + " sessions claimed by settlements no longer in flight");
+            }
+            entityManager.createQuery("UPDATE PendingNettedSession s " +
+                    "SET s.settlement = :settlement WHERE s.settlement IS NULL")
+                    .setParameter("settlement", settlement.toString())
+                    .executeUpdate();
+            return entityManager.createQuery("SELECT s FROM PendingNettedSession s " +
+                    "WHERE s.settlement = :settlement ORDER BY s.recordedAt, s.sessionHash", PendingSession.class)
+                    .setParameter("settlement", settlement.toString())
+                    .getResultList();
+        });
+
+        // by sanctions body, then by account, in the order the sessions were recorded
+        Map<Party, Map<String, List<PendingSession>>> windows = new LinkedHashMap<>();
+        for (PendingSession session : claimed) {
+            windows.computeIfAbsent(session.getSanctionsBody(), it -> new LinkedHashMap<>())
+                    .computeIfAbsent(session.getAccountName(), it -> new ArrayList<>())
+                    .add(session);
+        }
+
+        List<Settlement> settlements = new ArrayList<>(windows.size());
+        for (Map.Entry<Party, Map<String, List<PendingSession>>> bySanctionsBody : windows.entrySet()) {
+            List<byte[]> sessionHashes = new ArrayList<>();
+            for (List<PendingSession> window : bySanctionsBody.getValue().values()) {
+                for (PendingSession session : window) {
+                    sessionHashes.add(SecureHash.parse(session.getSessionHash()).getBytes());
+                }
+            }
+            // every entry carries the root the transaction anchors, which leads to each session's proof
+            byte[] root = new SessionMerkleTree(sessionHashes).getRoot();
+
+            List<EnergyTransferFlow.TransferEntry> entries = new ArrayList<>(bySanctionsBody.getValue().size());
+            for (Map.Entry<String, List<PendingSession>> byAccount : bySanctionsBody.getValue().entrySet()) {
+                long amount = 0;
+                for (PendingSession session : byAccount.getValue()) {
+                    amount += session.getAmount();
+                }
+                entries.add(new EnergyTransferFlow.TransferEntry(byAccount.getKey(), amount, root,
+                        "netted " + byAccount.getValue().size() + " sessions"));
+            }
+            settlements.add(new Settlement(bySanctionsBody.getKey(), entries, sessionHashes));
+        }
+        return settlements;
+    }
+
+    /**
+     * Forgets a settlement's sessions for a sanctions body, in the same database transaction as its payment.
+     */
+    void settled(UUID settlement, Party sanctionsBody) {
+        serviceHub.withEntityManager(entityManager -> {
+            entityManager.createQuery("DELETE FROM PendingNettedSession s " +
+                    "WHERE s.settlement = :settlement AND s.sanctionsBody = :sanctionsBody")
+                    .setParameter("settlement", settlement.toString())
+                    .setParameter("sanctionsBody", sanctionsBody)
+                    .executeUpdate();
+        });
+    }
+
+    /**
+     * Hands a failed settlement's sessions for a sanctions body back, to be paid by the next flush.
+     */
+    void release(UUID settlement, Party sanctionsBody) {
+        serviceHub.withEntityManager(entityManager -> {
+            entityManager.createQuery("UPDATE PendingNettedSession s SET s.settlement = NULL " +
+                    "WHERE s.settlement = :settlement AND s.sanctionsBody = :sanctionsBody")
+                    .setParameter("settlement", settlement.toString())
+                    .setParameter("sanctionsBody", sanctionsBody)
+                    .executeUpdate();
+        });
+    }
+
+    /**
+     * The closed windows of one sanctions body: one entry per account, and the hashes of all their sessions.
+     */
+    static class Settlement {
+        private final Party sanctionsBody;
+        private final List<EnergyTransferFlow.TransferEntry> entries;
+        private final List<byte[]> sessionHashes;
+
+        Settlement(Party sanctionsBody, List<EnergyTransferFlow.TransferEntry> entries, List<byte[]> sessionHashes) {
+            this.sanctionsBody = sanctionsBody;
+            this.entries = entries;
+            this.sessionHashes = sessionHashes;
+        }
+
+        Party getSanctionsBody() {
+            return sanctionsBody;
+        }
+
+        List<EnergyTransferFlow.TransferEntry> getEntries() {
+            return entries;
+        }
+
+        List<byte[]> getSessionHashes() {
+            return sessionHashes;
+        }
+    }
+}
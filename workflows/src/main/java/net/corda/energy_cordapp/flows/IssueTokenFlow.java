@@ -1,17 +1,20 @@
 package net.corda.energy_cordapp.flows;
 
 import co.paralleluniverse.fibers.Suspendable;
-import com.google.common.collect.ImmutableList;
-import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.AbstractToken;
 import com.r3.corda.lib.tokens.workflows.flows.rpc.IssueTokens;
 import com.r3.corda.lib.tokens.workflows.utilities.FungibleTokenBuilder;
 import net.corda.core.flows.FlowException;
-import net.corda.core.flows.FlowLogic;
 import net.corda.core.flows.StartableByRPC;
 import net.corda.core.identity.Party;
 import net.corda.core.transactions.SignedTransaction;
 import net.corda.energy_cordapp.states.EnergyTokenType;
 
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
 // EVENTUALLY: this flow belongs only to Parsedata's node
 
 /**
@@ -23,12 +26,9 @@ import net.corda.energy_cordapp.states.EnergyTokenType;
  * Therefore, it will eventually be a different Cordapp.
  */
 @StartableByRPC
-public class IssueTokenFlow extends FlowLogic<SignedTransaction> {
-    //the amount of tokens to issue
-    private final Long amount;
-
-    // the node to issue the tokens to
-    private final Party recipient;
+public class IssueTokenFlow extends TimedFlow<SignedTransaction> {
+    // the nodes to issue the tokens to, and the number of tokens for each of them
+    private final Map<Party, Long> amounts;
 
     /**
      * The constructor.
@@ -36,24 +36,39 @@ public class IssueTokenFlow extends FlowLogic<SignedTransaction> {
      * @param recipient the recipient party to issue the tokens to (must be a node)
      */
     public IssueTokenFlow(Long amount, Party recipient) {
-        this.amount = amount;
-        this.recipient = recipient;
+        this.amounts = new LinkedHashMap<>();
+        this.amounts.put(recipient, amount);
+    }
+
+    /**
+     * Batch constructor. Issues to every recipient in a single IssueTokens transaction.
+     * @param amounts the number of tokens to issue to each recipient party (each must be a node)
+     */
+    public IssueTokenFlow(Map<Party, Long> amounts) {
+        this.amounts = amounts;
     }
 
     @Override
     @Suspendable
-    public SignedTransaction call() throws FlowException {
-        // building the energy token which to issue
+    protected SignedTransaction timedCall(FlowMetricsService metrics) throws FlowException {
+        if (amounts == null || amounts.isEmpty()) {
+            throw new FlowException("At least one recipient is needed to issue tokens.");
+        }
+
+        // building the energy tokens which to issue, one per recipient
         // specifies: amount, of EnergyTokenType, from this node, to the recipient node
-        FungibleToken energyToken =
-                new FungibleTokenBuilder()
+        List<AbstractToken> energyTokens = new ArrayList<>(amounts.size());
+        for (Map.Entry<Party, Long> recipient : amounts.entrySet()) {
+            energyTokens.add(new FungibleTokenBuilder()
                     .ofTokenType(new EnergyTokenType())
-                    .withAmount(amount)
+                    .withAmount(recipient.getValue())
                     .issuedBy(getOurIdentity())
-                    .heldBy(recipient)
-                    .buildFungibleToken();
+                    .heldBy(recipient.getKey())
+                    .buildFungibleToken());
+        }
 
-        // actually issue the tokens created above
-        return subFlow(new IssueTokens(ImmutableList.of(energyToken)));
+        metrics.step(this, "ISSUING");
+        // actually issue all the tokens created above, in one transaction
+        return subFlow(new IssueTokens(energyTokens));
     }
 }
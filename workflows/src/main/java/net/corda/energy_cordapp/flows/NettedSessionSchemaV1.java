@@ -0,0 +1,98 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.identity.Party;
+import net.corda.core.schemas.MappedSchema;
+
+import org.jetbrains.annotations.Nullable;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import java.time.Instant;
+import java.util.Arrays;
+
+/**
+ * The sessions InteractionNettingService has recorded and not yet paid for,
+ * kept in the node's database so they survive a restart.
+ */
+public class NettedSessionSchemaV1 extends MappedSchema {
+    public NettedSessionSchemaV1() {
+        super(NettedSessionSchema.class, 1, Arrays.asList(PendingSession.class));
+    }
+
+    // migration/netted-session.changelog-master.xml, with the index on settlement
+    @Nullable
+    @Override
+    public String getMigrationResource() {
+        return "netted-session.changelog-master";
+    }
+
+    // queries refer to the entity by its name
+    @Entity(name = "PendingNettedSession")
+    @Table(name="netted_session_pending", indexes = {
+            @Index(name = "netted_session_settlement_idx", columnList = "settlement")
+    })
+    public static class PendingSession {
+
+        // the session hash in hex, so a session can only be waiting once
+        @Id
+        @Column(name="session_hash", length = 64)
+        private final String sessionHash;
+        @Column(name="sanctions_body")
+        private final Party sanctionsBody;
+        @Column(name="account_name")
+        private final String accountName;
+        @Column(name="amount")
+        private final long amount;
+        @Column(name="recorded_at")
+        private final Instant recordedAt;
+        // the run ID of the NettedSettlementFlow paying for the session, if one is
+        @Column(name="settlement", length = 36)
+        private final String settlement;
+
+        public PendingSession(String sessionHash, Party sanctionsBody, String accountName, long amount,
+                              Instant recordedAt) {
+            this.sessionHash = sessionHash;
+            this.sanctionsBody = sanctionsBody;
+            this.accountName = accountName;
+            this.amount = amount;
+            this.recordedAt = recordedAt;
+            this.settlement = null;
+        }
+
+        public PendingSession() {
+            this.sessionHash = null;
+            this.sanctionsBody = null;
+            this.accountName = null;
+            this.amount = 0;
+            this.recordedAt = null;
+            this.settlement = null;
+        }
+
+        public String getSessionHash() {
+            return sessionHash;
+        }
+
+        public Party getSanctionsBody() {
+            return sanctionsBody;
+        }
+
+        public String getAccountName() {
+            return accountName;
+        }
+
+        public long getAmount() {
+            return amount;
+        }
+
+        public Instant getRecordedAt() {
+            return recordedAt;
+        }
+
+        public String getSettlement() {
+            return settlement;
+        }
+    }
+}
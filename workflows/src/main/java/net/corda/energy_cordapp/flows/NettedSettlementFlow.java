@@ -0,0 +1,53 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByService;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Pays for the sessions recorded by InteractionNettingService, with one EnergyTransferFlow.SendEnergyTokensBatch
+ * per sanctions body that also anchors the hashes of the sessions it pays for.
+ * The sessions are claimed in the same database transaction as the flow's first checkpoint,
+ * and forgotten in the same one as their payment, so a node restart resumes the settlement rather than repeating it.
+ * A payment that fails (e.g. for lack of tokens) hands its sessions back, for the next flush to pay.
+ */
+@StartableByService
+public class NettedSettlementFlow extends FlowLogic<Integer> {
+
+    /**
+     * Empty constructor, since we don't have any fields to initialize
+     */
+    public NettedSettlementFlow() {
+    }
+
+    /**
+     * @return the number of settlement transactions made
+     */
+    @Override
+    @Suspendable
+    public Integer call() throws FlowException {
+        InteractionNettingService netting = getServiceHub().cordaService(InteractionNettingService.class);
+        UUID runId = getRunId().getUuid();
+        List<InteractionNettingService.Settlement> settlements = netting.claim(runId);
+
+        int settled = 0;
+        for (InteractionNettingService.Settlement settlement : settlements) {
+            try {
+                subFlow(new EnergyTransferFlow.SendEnergyTokensBatch(settlement.getEntries(),
+                        settlement.getSanctionsBody(), settlement.getSessionHashes()));
+            } catch (FlowException e) {
+                getLogger().warn("Failed to settle " + settlement.getSessionHashes().size() + " sessions with "
+                        + settlement.getSanctionsBody() + ", they will be settled by the next flush", e);
+                netting.release(runId, settlement.getSanctionsBody());
+                continue;
+            }
+            netting.settled(runId, settlement.getSanctionsBody());
+            settled++;
+        }
+        return settled;
+    }
+}
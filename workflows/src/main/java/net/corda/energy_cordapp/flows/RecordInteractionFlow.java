@@ -0,0 +1,62 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.identity.Party;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+
+/**
+ * Records a V2G interaction for netted settlement instead of settling it straight away.
+ * The interaction is added to the grid's InteractionNettingService,
+ * which pays the account the net amount of all its sessions once the window closes.
+ * Use EnergyTransferFlow.SendEnergyTokens instead when the session must be settled on its own.
+ */
+@StartableByRPC
+public class RecordInteractionFlow extends FlowLogic<Integer> {
+    private final long amount;
+
+    // the String name of the account to send the tokens to
+    private final String whereTo;
+
+    // the sanctions body, probably Parsedata
+    private final Party sanctionsBody;
+
+    private final byte[] hash;
+
+    /**
+     * The constructor.
+     * @param amount the amount of EnergyTokenType FungibleTokens owed for this session
+     * @param whereTo the String name of the account to which the tokens will be sent
+     * @param sanctionsBody the node verifying the car is discharging
+     * @param hash the SHA-256 interaction hash
+     */
+    public RecordInteractionFlow(long amount, String whereTo, Party sanctionsBody, byte[] hash) {
+        this.amount = amount;
+        this.whereTo = whereTo;
+        this.sanctionsBody = sanctionsBody;
+        this.hash = hash;
+    }
+
+    /**
+     * @return the number of sessions waiting for settlement on this node, including this one
+     */
+    @Override
+    @Suspendable
+    public Integer call() throws FlowException {
+        if (amount <= 0) {
+            throw new FlowException("Amount must be positive, got " + amount);
+        }
+        // the hash is anchored as a leaf of a SessionMerkleTree when the session is settled
+        if (hash == null || hash.length != SessionMerkleTree.HASH_SIZE) {
+            throw new FlowException("The interaction hash must be a SHA-256");
+        }
+        InteractionNettingService nettingService = getServiceHub().cordaService(InteractionNettingService.class);
+        if (!nettingService.record(whereTo, sanctionsBody, amount, hash)) {
+            throw new FlowException("Session " + new SecureHash.SHA256(hash) + " is already waiting for settlement");
+        }
+        return nettingService.pendingSessions();
+    }
+}
@@ -0,0 +1,176 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.google.common.collect.ImmutableList;
+import com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilities;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.*;
+import net.corda.core.identity.Party;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.AttachmentStorage;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.energy_cordapp.contracts.Commands;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Contains the classes AnchorSessions and its responder ReceiveAnchoredSessions.
+ * AnchorSessions lets a grid commit many V2G sessions to the ledger as a single InteractionBatchState,
+ * holding the Merkle root over their hashes, rather than one InteractionDataState per session.
+ * The session hashes are attached to the transaction, and GetSessionInclusionProof proves a session's inclusion.
+ */
+public class SessionAnchorFlow {
+
+    /**
+     * Anchors the hashes of many V2G sessions on the ledger, signed off by the sanctions body.
+     * Moves no tokens: the sessions are paid for separately.
+     */
+    @InitiatingFlow
+    @StartableByRPC
+    public static class AnchorSessions extends TimedFlow<SignedTransaction> {
+        // the SHA-256 hashes of the sessions' V2G data
+        private final List<byte[]> sessionHashes;
+
+        // the sanctions body, probably Parsedata
+        private final Party sanctionsBody;
+
+        private final String note;
+
+        private final ProgressTracker.Step GENERATING_TRANSACTION
+                = new ProgressTracker.Step("Building the Merkle tree and the transaction");
+        private final ProgressTracker.Step SIGNING_TRANSACTION
+                = new ProgressTracker.Step("Signing the transaction");
+        private final ProgressTracker.Step GATHERING_SIGS
+                = new ProgressTracker.Step("Gathering the sanctions body's signature") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return CollectSignaturesFlow.Companion.tracker();
+            }
+        };
+        private final ProgressTracker.Step FINALISING_TRANSACTION
+                = new ProgressTracker.Step("Obtaining notary signature and recording transaction.") {
+            @Override
+            public ProgressTracker childProgressTracker() {
+                return FinalityFlow.Companion.tracker();
+            }
+        };
+
+        private final ProgressTracker progressTracker = new ProgressTracker(
+                GENERATING_TRANSACTION,
+                SIGNING_TRANSACTION,
+                GATHERING_SIGS,
+                FINALISING_TRANSACTION
+        );
+
+        public AnchorSessions(List<byte[]> sessionHashes, Party sanctionsBody, String note) {
+            this.sessionHashes = sessionHashes;
+            this.sanctionsBody = sanctionsBody;
+            this.note = note;
+        }
+
+        @Override
+        public ProgressTracker getProgressTracker() {
+            return progressTracker;
+        }
+
+        @Override
+        @Suspendable
+        protected SignedTransaction timedCall(FlowMetricsService metrics) throws FlowException {
+            progressTracker.setCurrentStep(GENERATING_TRANSACTION);
+            metrics.step(this, "GENERATING_TRANSACTION");
+            TransactionBuilder transactionBuilder = buildTransaction();
+            transactionBuilder.verify(getServiceHub());
+
+            progressTracker.setCurrentStep(SIGNING_TRANSACTION);
+            metrics.step(this, "SIGNING_TRANSACTION");
+            final SignedTransaction meSignedTx = getServiceHub().signInitialTransaction(transactionBuilder);
+
+            progressTracker.setCurrentStep(GATHERING_SIGS);
+            metrics.step(this, "GATHERING_SIGS");
+            FlowSession sanctionsBodySession = initiateFlow(sanctionsBody);
+            final SignedTransaction fullySignedTx = subFlow(
+                    new CollectSignaturesFlow(meSignedTx, ImmutableList.of(sanctionsBodySession)));
+
+            progressTracker.setCurrentStep(FINALISING_TRANSACTION);
+            metrics.step(this, "FINALISING_TRANSACTION");
+            return subFlow(new FinalityFlow(fullySignedTx, ImmutableList.of(sanctionsBodySession)));
+        }
+
+        private TransactionBuilder buildTransaction() throws FlowException {
+            TransactionBuilder transactionBuilder = new TransactionBuilder(
+                    NotaryUtilities.getPreferredNotary(getServiceHub()));
+            addBatch(transactionBuilder, getServiceHub(), getOurIdentity(), sanctionsBody, sessionHashes, note);
+            return transactionBuilder;
+        }
+    }
+
+    /**
+     * Adds an InteractionBatchState over these sessions to a transaction, with its command and the attached hashes.
+     * The grid and the sanctions body must sign the transaction.
+     * Builds the tree in a frame of its own, so it is never part of the calling flow's checkpoints.
+     */
+    static void addBatch(TransactionBuilder transactionBuilder, ServiceHub serviceHub, Party grid,
+                         Party sanctionsBody, List<byte[]> sessionHashes, String note) throws FlowException {
+        if (sessionHashes == null || sessionHashes.isEmpty()) {
+            throw new FlowException("A batch must contain at least one session hash.");
+        }
+        SessionMerkleTree tree;
+        byte[] attachment;
+        try {
+            tree = new SessionMerkleTree(sessionHashes);
+            attachment = tree.toAttachment();
+        } catch (IllegalArgumentException | IOException e) {
+            throw new FlowException("Cannot anchor these sessions: " + e.getMessage(), e);
+        }
+
+        // an attachment's ID is the hash of its content, so the same sessions anchored again reuse it
+        AttachmentStorage attachments = serviceHub.getAttachments();
+        SecureHash attachmentId = SecureHash.sha256(attachment);
+        if (!attachments.hasAttachment(attachmentId)) {
+            attachmentId = attachments.importAttachment(new ByteArrayInputStream(attachment),
+                    grid.getName().toString(),
+                    "session-hashes-" + new SecureHash.SHA256(tree.getRoot()) + ".jar");
+        }
+
+        InteractionBatchState batch = new InteractionBatchState(grid, sanctionsBody, tree.getRoot(),
+                tree.getLeafCount(), attachmentId, note);
+        transactionBuilder
+                .addOutputState(batch)
+                .addCommand(new Commands.AnchorBatch(), grid.getOwningKey(), sanctionsBody.getOwningKey())
+                .addAttachment(attachmentId);
+    }
+
+    /**
+     * The responding flow to the AnchorSessions flow, hosted by the sanctions body.
+     * The contract already checks that the root is the one of the attached session hashes.
+     */
+    @InitiatedBy(AnchorSessions.class)
+    public static class ReceiveAnchoredSessions extends FlowLogic<SignedTransaction> {
+
+        private final FlowSession initiatingSession;
+
+        public ReceiveAnchoredSessions(FlowSession initiatingSession) {
+            this.initiatingSession = initiatingSession;
+        }
+
+        @Suspendable
+        @Override
+        public SignedTransaction call() throws FlowException {
+            SignTransactionFlow signTransactionFlow = new SignTransactionFlow(initiatingSession) {
+                @Override
+                protected void checkTransaction(@NotNull SignedTransaction stx) throws FlowException {
+                    // overridden by the sanctions body to check the sessions it is asked to sign off
+                }
+            };
+            SecureHash txId = subFlow(signTransactionFlow).getId();
+            return subFlow(new ReceiveFinalityFlow(initiatingSession, txId));
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+
+import java.util.List;
+
+/**
+ * The proof, returned by GetSessionInclusionProof, that a V2G session is one of those anchored by an
+ * InteractionBatchState: the session's place in the batch's Merkle tree and the hashes on its path to the root.
+ * Anyone with the root can check it, without the other sessions of the batch.
+ */
+@CordaSerializable
+public class SessionInclusionProof {
+    private final byte[] sessionHash;
+    private final byte[] merkleRoot;
+    private final int leafIndex;
+    private final int leafCount;
+    private final List<byte[]> auditPath;
+    // the transaction that anchored the root
+    private final SecureHash transactionId;
+
+    public SessionInclusionProof(byte[] sessionHash, byte[] merkleRoot, int leafIndex, int leafCount,
+                                 List<byte[]> auditPath, SecureHash transactionId) {
+        this.sessionHash = sessionHash;
+        this.merkleRoot = merkleRoot;
+        this.leafIndex = leafIndex;
+        this.leafCount = leafCount;
+        this.auditPath = auditPath;
+        this.transactionId = transactionId;
+    }
+
+    /**
+     * @return whether the audit path leads from the session hash to the Merkle root
+     */
+    public boolean verify() {
+        return SessionMerkleTree.verify(sessionHash, leafIndex, leafCount, auditPath, merkleRoot);
+    }
+
+    public byte[] getSessionHash() {
+        return sessionHash;
+    }
+
+    public byte[] getMerkleRoot() {
+        return merkleRoot;
+    }
+
+    public int getLeafIndex() {
+        return leafIndex;
+    }
+
+    public int getLeafCount() {
+        return leafCount;
+    }
+
+    public List<byte[]> getAuditPath() {
+        return auditPath;
+    }
+
+    public SecureHash getTransactionId() {
+        return transactionId;
+    }
+}
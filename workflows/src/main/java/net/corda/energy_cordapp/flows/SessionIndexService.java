@@ -0,0 +1,106 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.contracts.Attachment;
+import net.corda.core.contracts.ContractState;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.energy_cordapp.contracts.SessionMerkleTree;
+import net.corda.energy_cordapp.states.InteractionBatchSchemaV1.SessionModel;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Indexes the session hashes of every InteractionBatchState this node records, by session hash,
+ * so GetSessionInclusionProof goes straight to the batches holding a session instead of reading every batch.
+ * The index is written from the vault's raw update feed, in the same database transaction as the batch itself,
+ * so a batch is never recorded without its sessions being indexed.
+ *
+ * The index costs a row for every session of every batch, on every participant, so it is only kept
+ * with sessionIndex = true in the CorDapp config. Without it, a session can only be proven given its batch's
+ * Merkle root, which is looked up by the indexed merkle_root column instead.
+ */
+@CordaService
+public class SessionIndexService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(SessionIndexService.class);
+
+    private final AppServiceHub serviceHub;
+    private final boolean enabled;
+
+    public SessionIndexService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.enabled = config.exists("sessionIndex") && config.getBoolean("sessionIndex");
+        if (enabled) {
+            serviceHub.getVaultService().getRawUpdates().subscribe(this::onVaultUpdate);
+        }
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return the batches anchoring this session, or none if no batch this node knows of does
+     * @throws IllegalStateException if the index is disabled
+     */
+    public List<StateRef> batchesHolding(byte[] sessionHash) {
+        if (!enabled) {
+            throw new IllegalStateException("The session index is disabled, set sessionIndex = true to enable it");
+        }
+        String hex = new SecureHash.SHA256(sessionHash).toString();
+        List<SessionModel> found = serviceHub.withEntityManager(entityManager -> {
+            return entityManager.createQuery("SELECT s FROM InteractionBatchSession s " +
+                    "WHERE s.key.sessionHash = :sessionHash", SessionModel.class)
+                    .setParameter("sessionHash", hex)
+                    .getResultList();
+        });
+        List<StateRef> batches = new ArrayList<>(found.size());
+        for (SessionModel session : found) {
+            batches.add(new StateRef(SecureHash.parse(session.getTransactionId()), session.getOutputIndex()));
+        }
+        return batches;
+    }
+
+    private void onVaultUpdate(Vault.Update<ContractState> update) {
+        for (StateAndRef<ContractState> produced : update.getProduced()) {
+            if (produced.getState().getData() instanceof InteractionBatchState) {
+                index(produced.getRef(), (InteractionBatchState) produced.getState().getData());
+            }
+        }
+    }
+
+    private void index(StateRef ref, InteractionBatchState batch) {
+        // the contract has read these hashes already, so only a missing attachment stops them being indexed
+        Attachment attachment = serviceHub.getAttachments().openAttachment(batch.getSessionHashes());
+        if (attachment == null) {
+            logger.error("The session hashes of " + ref + " are missing, so its sessions can't be indexed");
+            return;
+        }
+        List<byte[]> sessionHashes;
+        try (InputStream in = attachment.open()) {
+            sessionHashes = SessionMerkleTree.readLeaves(in);
+        } catch (IOException e) {
+            logger.error("Cannot read the session hashes of " + ref + ", so its sessions can't be indexed", e);
+            return;
+        }
+        String transactionId = ref.getTxhash().toString();
+        serviceHub.withEntityManager(entityManager -> {
+            for (byte[] sessionHash : sessionHashes) {
+                entityManager.persist(new SessionModel(new SecureHash.SHA256(sessionHash).toString(),
+                        transactionId, ref.getIndex()));
+            }
+        });
+    }
+}
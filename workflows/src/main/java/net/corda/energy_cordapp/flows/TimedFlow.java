@@ -0,0 +1,42 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+
+/**
+ * A flow timed by FlowMetricsService from start to end, whether it succeeds or fails.
+ * Subclasses implement timedCall() instead of call(), and time its steps with metrics.step(this, name).
+ * @param <T> the flow's result
+ */
+public abstract class TimedFlow<T> extends FlowLogic<T> {
+
+    @Override
+    @Suspendable
+    public final T call() throws FlowException {
+        FlowMetricsService metrics = getServiceHub().cordaService(FlowMetricsService.class);
+        metrics.start(this, account());
+        boolean succeeded = false;
+        try {
+            T result = timedCall(metrics);
+            succeeded = true;
+            return result;
+        } finally {
+            metrics.end(this, succeeded);
+        }
+    }
+
+    /**
+     * The body of the flow.
+     * @param metrics the service timing the flow, for its steps
+     */
+    @Suspendable
+    protected abstract T timedCall(FlowMetricsService metrics) throws FlowException;
+
+    /**
+     * @return the account the flow acts for, recorded in its FlowEvent, or null
+     */
+    protected String account() {
+        return null;
+    }
+}
@@ -0,0 +1,304 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.accounts.contracts.states.AccountInfo;
+import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
+import com.r3.corda.lib.tokens.contracts.states.AbstractToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.workflows.flows.finality.ObserverAwareFinalityFlow;
+import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilities;
+import com.r3.corda.lib.tokens.workflows.utilities.FungibleTokenBuilder;
+import com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilities;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilities;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.crypto.SecureHash;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.CordaSerializable;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.energy_cordapp.accountUtilities.AccountLookupService;
+import net.corda.energy_cordapp.states.EnergyTokenType;
+
+import java.util.*;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Contains the classes Consolidate and ConsolidateAll.
+ * Every EnergyTransferFlow and A2ATokenTransferFlow move leaves change outputs behind,
+ * so over time a node or account ends up holding many small FungibleToken states.
+ * Consolidate merges the small states of one holder (the node itself or one of its accounts)
+ * into a few large ones, which keeps coin selection, balance queries and transaction sizes cheap.
+ * ConsolidateAll does so for the node and every account it hosts, and is what TokenConsolidationService runs.
+ * With sharded coin selection (see TokenShardService) the node's own float is re-split instead of merged.
+ */
+public class TokenConsolidationFlow {
+
+    // the largest number of token states spent by a single consolidation transaction
+    static final int DEFAULT_MAX_INPUTS = 200;
+
+    /**
+     * The outcome of a consolidation: how many token states the holder(s) had before and after,
+     * and the transactions that were recorded to get there.
+     */
+    @CordaSerializable
+    public static class ConsolidationReport {
+        private final int statesBefore;
+        private final int statesAfter;
+        private final List<SecureHash> transactionIds;
+
+        public ConsolidationReport(int statesBefore, int statesAfter, List<SecureHash> transactionIds) {
+            this.statesBefore = statesBefore;
+            this.statesAfter = statesAfter;
+            this.transactionIds = transactionIds;
+        }
+
+        public int getStatesBefore() {
+            return statesBefore;
+        }
+
+        public int getStatesAfter() {
+            return statesAfter;
+        }
+
+        public List<SecureHash> getTransactionIds() {
+            return transactionIds;
+        }
+
+        ConsolidationReport plus(ConsolidationReport other) {
+            List<SecureHash> ids = new ArrayList<>(transactionIds);
+            ids.addAll(other.transactionIds);
+            return new ConsolidationReport(statesBefore + other.statesBefore, statesAfter + other.statesAfter, ids);
+        }
+    }
+
+    /**
+     * Merges the EnergyTokenType FungibleTokens held by this node, or by one of its accounts,
+     * into one state per issuer (or one per DEFAULT_MAX_INPUTS inputs, for very fragmented holders).
+     * Nothing is done unless the holder has at least `threshold` states of the same issued token type.
+ * States leased by a running transfer are left alone.
+ * When tokenShards is set, the node's own tokens are evened out by TokenShardFlow.Split instead, so the float
+ * stays split for sharded coin selection; the report then counts the states that were respent.
+     * The merged state is held by the same key as the first state it replaces, so no counterparty is involved
+     * and only the notary is contacted.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class Consolidate extends FlowLogic<ConsolidationReport> {
+
+        // the (local) name of the account whose tokens to merge, or null for the node's own tokens
+        private final String account;
+
+        // the minimum number of states of one issued token type before they are merged
+        private final int threshold;
+
+        /**
+         * Consolidate the node's own tokens.
+         * @param threshold the minimum number of states of one issued token type before they are merged (at least 2)
+         */
+        public Consolidate(int threshold) {
+            this(null, threshold);
+        }
+
+        /**
+         * Consolidate the tokens of one of this node's accounts.
+         * @param account the (local) name of the account, or null for the node's own tokens
+         * @param threshold the minimum number of states of one issued token type before they are merged (at least 2)
+         */
+        public Consolidate(String account, int threshold) {
+            this.account = account;
+            this.threshold = threshold;
+        }
+
+        @Override
+        @Suspendable
+        public ConsolidationReport call() throws FlowException {
+            if (threshold < 2) {
+                throw new FlowException("Threshold must be at least 2, got " + threshold);
+            }
+
+            if (account == null && getServiceHub().cordaService(TokenShardService.class).isEnabled()) {
+                return resplit();
+            }
+
+            QueryCriteria heldByHolder;
+            if (account == null) {
+                heldByHolder = QueryUtilities.heldTokenAmountCriteria(new EnergyTokenType(), getOurIdentity());
+            } else {
+                StateAndRef<AccountInfo> accountRef
+                        = getServiceHub().cordaService(AccountLookupService.class).ourAccount(account);
+                if (accountRef == null) {
+                    throw new FlowException("No account of ours found with name: " + account);
+                }
+                heldByHolder = QueryUtilities.tokenAmountCriteria(new EnergyTokenType())
+                        .and(new QueryCriteria.VaultQueryCriteria()
+                                .withExternalIds(Collections.singletonList(
+                                        accountRef.getState().getData().getIdentifier().getId())));
+            }
+            // skip states another flow is already spending
+            heldByHolder = heldByHolder.and(new QueryCriteria.VaultQueryCriteria()
+                    .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(
+                            QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList())));
+
+            // page through the holder's states, grouping them by issuer and token type;
+            // by state ref, as pages of an unsorted query may overlap or leave states out, and a state
+            // read twice would be spent twice by the same merge
+            Sort byStateRef = new Sort(new LinkedHashSet<>(Arrays.asList(
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_TXN_ID),
+                            Sort.Direction.ASC),
+                    new Sort.SortColumn(new SortAttribute.Standard(Sort.CommonStateAttribute.STATE_REF_INDEX),
+                            Sort.Direction.ASC))));
+            Map<IssuedTokenType, List<StateAndRef<FungibleToken>>> byIssuedType = new LinkedHashMap<>();
+            int statesBefore = 0;
+            int pageNumber = DEFAULT_PAGE_NUM;
+            while (true) {
+                Vault.Page<FungibleToken> page = getServiceHub().getVaultService().queryBy(FungibleToken.class,
+                        heldByHolder, new PageSpecification(pageNumber, DEFAULT_MAX_INPUTS), byStateRef);
+                for (StateAndRef<FungibleToken> token : page.getStates()) {
+                    byIssuedType.computeIfAbsent(token.getState().getData().getIssuedTokenType(),
+                            it -> new ArrayList<>()).add(token);
+                }
+                statesBefore += page.getStates().size();
+                if ((long) pageNumber * DEFAULT_MAX_INPUTS >= page.getTotalStatesAvailable()) {
+                    break;
+                }
+                pageNumber++;
+            }
+
+            int statesAfter = statesBefore;
+            List<SecureHash> transactionIds = new ArrayList<>();
+            for (Map.Entry<IssuedTokenType, List<StateAndRef<FungibleToken>>> group : byIssuedType.entrySet()) {
+                List<StateAndRef<FungibleToken>> tokens = group.getValue();
+                if (tokens.size() < threshold) {
+                    continue;
+                }
+                for (int from = 0; from < tokens.size(); from += DEFAULT_MAX_INPUTS) {
+                    List<StateAndRef<FungibleToken>> chunk
+                            = tokens.subList(from, Math.min(tokens.size(), from + DEFAULT_MAX_INPUTS));
+                    if (chunk.size() < 2) {
+                        continue;
+                    }
+                    SignedTransaction merged = mergeFree(group.getKey(), chunk);
+                    if (merged != null) {
+                        transactionIds.add(merged.getId());
+                        statesAfter -= merged.getTx().getInputs().size() - 1;
+                    }
+                }
+            }
+            return new ConsolidationReport(statesBefore, statesAfter, transactionIds);
+        }
+
+        @Suspendable
+        private ConsolidationReport resplit() throws FlowException {
+            List<SignedTransaction> splits = subFlow(new TokenShardFlow.Split());
+            int statesBefore = 0;
+            int statesAfter = 0;
+            List<SecureHash> transactionIds = new ArrayList<>(splits.size());
+            for (SignedTransaction split : splits) {
+                statesBefore += split.getTx().getInputs().size();
+                statesAfter += split.getTx().getOutputs().size();
+                transactionIds.add(split.getId());
+            }
+            return new ConsolidationReport(statesBefore, statesAfter, transactionIds);
+        }
+
+        /**
+         * Merges those of the states no transfer has leased, if there are at least two.
+         * @return the merge, or null if nothing was merged
+         */
+        @Suspendable
+        private SignedTransaction mergeFree(IssuedTokenType issuedTokenType, List<StateAndRef<FungibleToken>> chunk)
+                throws FlowException {
+            TokenShardService tokenShards = getServiceHub().cordaService(TokenShardService.class);
+            List<StateRef> reserved = new ArrayList<>(chunk.size());
+            for (StateAndRef<FungibleToken> token : chunk) {
+                reserved.add(token.getRef());
+            }
+            reserved = tokenShards.reserve(reserved);
+            try {
+                List<StateAndRef<FungibleToken>> free = new ArrayList<>(reserved.size());
+                for (StateAndRef<FungibleToken> token : chunk) {
+                    if (reserved.contains(token.getRef())) {
+                        free.add(token);
+                    }
+                }
+                return free.size() < 2 ? null : merge(issuedTokenType, free);
+            } finally {
+                tokenShards.release(reserved);
+            }
+        }
+
+        /**
+         * Spends the given states into a single state of the same issued token type.
+         */
+        @Suspendable
+        private SignedTransaction merge(IssuedTokenType issuedTokenType, List<StateAndRef<FungibleToken>> chunk)
+                throws FlowException {
+            Set<StateRef> refs = new LinkedHashSet<>();
+            long total = 0;
+            for (StateAndRef<FungibleToken> token : chunk) {
+                refs.add(token.getRef());
+                total += token.getState().getData().getAmount().getQuantity();
+            }
+            getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.copyOf(refs));
+
+            FungibleToken merged = new FungibleTokenBuilder()
+                    .ofTokenType(issuedTokenType.getTokenType())
+                    .withAmount(total)
+                    .issuedBy(issuedTokenType.getIssuer())
+                    .heldBy(chunk.get(0).getState().getData().getHolder())
+                    .buildFungibleToken();
+
+            TransactionBuilder transactionBuilder = new TransactionBuilder(NotaryUtilities.getPreferredNotary(getServiceHub()));
+            List<StateAndRef<AbstractToken>> inputs = new ArrayList<>(chunk.size());
+            for (StateAndRef<FungibleToken> token : chunk) {
+                inputs.add(getServiceHub().toStateAndRef(token.getRef()));
+            }
+            MoveTokensUtilities.addMoveTokens(transactionBuilder, inputs, Collections.singletonList(merged));
+
+            // every input is held by one of our keys, so there is nobody else to ask for a signature
+            return subFlow(new ObserverAwareFinalityFlow(transactionBuilder, Collections.emptyList()));
+        }
+    }
+
+    /**
+     * Consolidates the node's own tokens and those of every account it hosts.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class ConsolidateAll extends FlowLogic<ConsolidationReport> {
+
+        // the minimum number of states of one issued token type before they are merged
+        private final int threshold;
+
+        /**
+         * @param threshold the minimum number of states of one issued token type before they are merged (at least 2)
+         */
+        public ConsolidateAll(int threshold) {
+            this.threshold = threshold;
+        }
+
+        @Override
+        @Suspendable
+        public ConsolidationReport call() throws FlowException {
+            ConsolidationReport report = subFlow(new Consolidate(threshold));
+            List<StateAndRef<AccountInfo>> ourAccounts
+                    = getServiceHub().cordaService(KeyManagementBackedAccountService.class).ourAccounts();
+            for (StateAndRef<AccountInfo> account : ourAccounts) {
+                report = report.plus(subFlow(new Consolidate(account.getState().getData().getName(), threshold)));
+            }
+            return report;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package net.corda.energy_cordapp.flows;
+
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import kotlin.Unit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Optional background service that periodically runs TokenConsolidationFlow.ConsolidateAll,
+ * so the node and its accounts do not accumulate small change states between manual consolidations.
+ * It is disabled unless consolidationIntervalSeconds is set to a positive value in the CorDapp config;
+ * consolidationThreshold sets the number of states of one issued token type that triggers a merge.
+ */
+@CordaService
+public class TokenConsolidationService extends SingletonSerializeAsToken {
+    private static final Logger logger = LoggerFactory.getLogger(TokenConsolidationService.class);
+
+    static final int DEFAULT_THRESHOLD = 50;
+
+    private final AppServiceHub serviceHub;
+    private final int threshold;
+
+    private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "token-consolidation");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    public TokenConsolidationService(AppServiceHub serviceHub) {
+        this.serviceHub = serviceHub;
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        long intervalSeconds = config.exists("consolidationIntervalSeconds")
+                ? config.getLong("consolidationIntervalSeconds") : 0;
+        this.threshold = config.exists("consolidationThreshold")
+                ? config.getInt("consolidationThreshold") : DEFAULT_THRESHOLD;
+
+        if (intervalSeconds > 0) {
+            scheduler.scheduleWithFixedDelay(this::consolidateQuietly, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        }
+        serviceHub.registerUnloadHandler(() -> {
+            scheduler.shutdown();
+            return Unit.INSTANCE;
+        });
+    }
+
+    private void consolidateQuietly() {
+        try {
+            // wait for the run to finish, so consecutive runs never compete for the same states
+            TokenConsolidationFlow.ConsolidationReport report = serviceHub
+                    .startFlow(new TokenConsolidationFlow.ConsolidateAll(threshold))
+                    .getReturnValue()
+                    .get();
+            logger.info("Consolidated token states from {} to {} in {} transactions",
+                    report.getStatesBefore(), report.getStatesAfter(), report.getTransactionIds().size());
+        } catch (Exception e) {
+            // a failed run must not kill the scheduler, so the next one can still happen
+            logger.error("Failed to consolidate token states", e);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package net.corda.energy_cordapp.flows;
+
+import co.paralleluniverse.fibers.Suspendable;
+import com.r3.corda.lib.tokens.contracts.states.AbstractToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.contracts.types.IssuedTokenType;
+import com.r3.corda.lib.tokens.workflows.flows.finality.ObserverAwareFinalityFlow;
+import com.r3.corda.lib.tokens.workflows.flows.move.MoveTokensUtilities;
+import com.r3.corda.lib.tokens.workflows.utilities.FungibleTokenBuilder;
+import com.r3.corda.lib.tokens.workflows.utilities.NotaryUtilities;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilities;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.flows.FlowException;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.flows.StartableByRPC;
+import net.corda.core.flows.StartableByService;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.core.transactions.TransactionBuilder;
+import net.corda.core.utilities.NonEmptySet;
+import net.corda.energy_cordapp.states.EnergyTokenType;
+
+import java.util.*;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Contains the class Split, which prepares the node's float for sharded coin selection (see TokenShardService).
+ */
+public class TokenShardFlow {
+
+    /**
+     * Re-splits the EnergyTokenType FungibleTokens held by this node into `shards` states of (almost) equal size,
+     * one transaction per issuer. Up to TokenConsolidationFlow.DEFAULT_MAX_INPUTS states are respent at once.
+     * Shards leased by running transfers are left out, and fewer new ones are made to leave room for the change
+     * they will return. TokenConsolidationFlow runs this for the node's own tokens when tokenShards is set.
+     */
+    @StartableByRPC
+    @StartableByService
+    public static class Split extends FlowLogic<List<SignedTransaction>> {
+
+        // the number of states to split each issuer's float into
+        private final int shards;
+
+        /**
+         * Split into the number of shards configured for TokenShardService.
+         */
+        public Split() {
+            this(0);
+        }
+
+        /**
+         * @param shards the number of states to split each issuer's float into, or 0 to use the configured number
+         */
+        public Split(int shards) {
+            this.shards = shards;
+        }
+
+        @Override
+        @Suspendable
+        public List<SignedTransaction> call() throws FlowException {
+            TokenShardService tokenShards = getServiceHub().cordaService(TokenShardService.class);
+            int count = shards > 0 ? shards : tokenShards.getShards();
+            if (count < 1) {
+                throw new FlowException("Set tokenShards in the CorDapp config, or pass the number of shards.");
+            }
+
+            List<StateAndRef<FungibleToken>> tokens = getServiceHub().getVaultService().queryBy(FungibleToken.class,
+                    QueryUtilities.heldTokenAmountCriteria(new EnergyTokenType(), getOurIdentity())
+                            .and(new QueryCriteria.VaultQueryCriteria()
+                                    .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(
+                                            QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList()))),
+                    new PageSpecification(DEFAULT_PAGE_NUM, TokenConsolidationFlow.DEFAULT_MAX_INPUTS)).getStates();
+            List<StateRef> refs = new ArrayList<>(tokens.size());
+            for (StateAndRef<FungibleToken> token : tokens) {
+                refs.add(token.getRef());
+            }
+            // the shards running transfers have leased are left to them, and come back as change
+            List<StateRef> reserved = tokenShards.reserve(refs);
+            try {
+                int busy = tokenShards.leasedCount() - reserved.size();
+                Map<IssuedTokenType, List<StateAndRef<FungibleToken>>> byIssuedType = new LinkedHashMap<>();
+                for (StateAndRef<FungibleToken> token : tokens) {
+                    if (reserved.contains(token.getRef())) {
+                        byIssuedType.computeIfAbsent(token.getState().getData().getIssuedTokenType(),
+                                it -> new ArrayList<>()).add(token);
+                    }
+                }
+
+                List<SignedTransaction> transactions = new ArrayList<>();
+                for (Map.Entry<IssuedTokenType, List<StateAndRef<FungibleToken>>> group : byIssuedType.entrySet()) {
+                    long total = 0;
+                    Set<StateRef> groupRefs = new LinkedHashSet<>();
+                    List<StateAndRef<AbstractToken>> inputs = new ArrayList<>(group.getValue().size());
+                    for (StateAndRef<FungibleToken> token : group.getValue()) {
+                        total += token.getState().getData().getAmount().getQuantity();
+                        groupRefs.add(token.getRef());
+                        inputs.add(getServiceHub().toStateAndRef(token.getRef()));
+                    }
+                    // never make empty shards, nor more than the leased ones leave room for
+                    int groupShards = (int) Math.min(Math.max(1, count - busy), total);
+                    if (groupShards < 1 || (groupShards == inputs.size() && isEven(group.getValue(), total))) {
+                        continue;
+                    }
+
+                    List<AbstractToken> outputs = new ArrayList<>(groupShards);
+                    for (int i = 0; i < groupShards; i++) {
+                        // the first (total % groupShards) shards take one extra token each
+                        long size = total / groupShards + (i < total % groupShards ? 1 : 0);
+                        outputs.add(new FungibleTokenBuilder()
+                                .ofTokenType(group.getKey().getTokenType())
+                                .withAmount(size)
+                                .issuedBy(group.getKey().getIssuer())
+                                .heldBy(getOurIdentity())
+                                .buildFungibleToken());
+                    }
+
+                    getServiceHub().getVaultService().softLockReserve(getRunId().getUuid(), NonEmptySet.copyOf(groupRefs));
+                    TransactionBuilder transactionBuilder
+                            = new TransactionBuilder(NotaryUtilities.getPreferredNotary(getServiceHub()));
+                    MoveTokensUtilities.addMoveTokens(transactionBuilder, inputs, outputs);
+                    transactions.add(subFlow(new ObserverAwareFinalityFlow(transactionBuilder, Collections.emptyList())));
+                }
+                return transactions;
+            } finally {
+                tokenShards.release(reserved);
+            }
+        }
+
+        /**
+         * @return whether the states are already as evenly sized as a split would make them
+         */
+        private static boolean isEven(List<StateAndRef<FungibleToken>> tokens, long total) {
+            long floor = total / tokens.size();
+            for (StateAndRef<FungibleToken> token : tokens) {
+                long quantity = token.getState().getData().getAmount().getQuantity();
+                if (quantity != floor && quantity != floor + 1) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+}
@@ -0,0 +1,189 @@
+package net.corda.energy_cordapp.flows;
+
+import com.r3.corda.lib.tokens.contracts.internal.schemas.PersistentFungibleToken;
+import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
+import com.r3.corda.lib.tokens.selection.InsufficientBalanceException;
+import com.r3.corda.lib.tokens.workflows.utilities.QueryUtilities;
+import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
+import net.corda.core.cordapp.CordappConfig;
+import net.corda.core.identity.Party;
+import net.corda.core.node.AppServiceHub;
+import net.corda.core.node.ServiceHub;
+import net.corda.core.node.services.CordaService;
+import net.corda.core.node.services.Vault;
+import net.corda.core.node.services.vault.PageSpecification;
+import net.corda.core.node.services.vault.QueryCriteria;
+import net.corda.core.node.services.vault.Sort;
+import net.corda.core.node.services.vault.SortAttribute;
+import net.corda.core.serialization.SingletonSerializeAsToken;
+import net.corda.energy_cordapp.states.EnergyTokenType;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static net.corda.core.node.services.vault.QueryCriteriaUtils.DEFAULT_PAGE_NUM;
+
+/**
+ * Hands each concurrent energy transfer its own token state ("shard") to spend.
+ * Without it, concurrent EnergyTransferFlows all select the same few large FungibleTokens,
+ * and then wait on each other's soft locks or fail with an insufficient balance although the total is fine.
+ * With sharding enabled (tokenShards > 0 in the CorDapp config) the node's float is kept split into
+ * that many states by TokenShardFlow.Split, and every transfer leases one shard that covers its amount.
+ * The change output of a transfer becomes a shard again once the transfer is recorded.
+ * If no single free shard covers the amount, the transfer leases several; it never selects from shards
+ * another running transfer has leased.
+ *
+ * Flows that respend token states themselves (TokenConsolidationFlow, TokenShardFlow.Split) reserve them here too,
+ * so they never take a shard a transfer has leased but not yet soft-locked, nor the other way round.
+ * In shard mode, consolidation evens the float out with Split rather than merging it, so running ConsolidateAll
+ * (or TokenConsolidationService) keeps it split as transfers wear the shards down to change.
+ */
+@CordaService
+public class TokenShardService extends SingletonSerializeAsToken {
+
+    // the number of candidate shards read from the vault at once, largest first
+    private static final int MAX_CANDIDATES = 200;
+
+    private final int shards;
+
+    // shards currently leased by a running flow
+    private final Set<StateRef> leased = ConcurrentHashMap.newKeySet();
+
+    public TokenShardService(AppServiceHub serviceHub) {
+        CordappConfig config = serviceHub.getAppContext().getConfig();
+        this.shards = config.exists("tokenShards") ? config.getInt("tokenShards") : 0;
+    }
+
+    public boolean isEnabled() {
+        return shards > 0;
+    }
+
+    /**
+     * @return the number of shards the node's float should be split into, or 0 if sharding is disabled
+     */
+    public int getShards() {
+        return shards;
+    }
+
+    /**
+     * @return the number of shards currently leased by running flows
+     */
+    public int leasedCount() {
+        return leased.size();
+    }
+
+    /**
+     * Leases free shards held by `holder` that cover `amount`: a single shard if one is large enough on its own,
+     * otherwise as few of the largest free shards as add up to it.
+     * Must be called from a flow, since it queries the vault. Each flow starts looking at a different shard
+     * (derived from its run ID), so concurrent flows rarely race for the same one.
+     * @return the leased shards, or null if sharding is disabled
+     * @throws InsufficientBalanceException if the shards no other flow has leased don't cover the amount;
+     * selecting from every token instead would take shards from under the flows that leased them
+     */
+    public List<StateRef> lease(ServiceHub serviceHub, Party holder, long amount, UUID runId)
+            throws InsufficientBalanceException {
+        if (!isEnabled()) {
+            return null;
+        }
+        QueryCriteria unlockedShards = QueryUtilities.heldTokenAmountCriteria(new EnergyTokenType(), holder)
+                .and(new QueryCriteria.VaultQueryCriteria()
+                        .withSoftLockingCondition(new QueryCriteria.SoftLockingCondition(
+                                QueryCriteria.SoftLockingType.UNLOCKED_ONLY, Collections.emptyList())));
+        int pageNumber = DEFAULT_PAGE_NUM;
+        Vault.Page<FungibleToken> page = largestFirst(serviceHub, unlockedShards, pageNumber);
+
+        // the shards that cover the amount alone come first; each flow starts at a different one of them
+        List<StateAndRef<FungibleToken>> candidates = page.getStates();
+        int covering = 0;
+        while (covering < candidates.size() && quantity(candidates.get(covering)) >= amount) {
+            covering++;
+        }
+        if (covering > 0) {
+            int start = Math.floorMod(runId.hashCode(), covering);
+            for (int i = 0; i < covering; i++) {
+                StateAndRef<FungibleToken> candidate = candidates.get((start + i) % covering);
+                if (leased.add(candidate.getRef())) {
+                    return Collections.singletonList(candidate.getRef());
+                }
+            }
+        }
+
+        // no free shard covers the amount alone, so combine the largest free ones, a page at a time
+        List<StateRef> combined = new ArrayList<>();
+        long covered = 0;
+        while (true) {
+            for (StateAndRef<FungibleToken> candidate : candidates) {
+                if (covered >= amount) {
+                    break;
+                }
+                if (leased.add(candidate.getRef())) {
+                    combined.add(candidate.getRef());
+                    covered += quantity(candidate);
+                }
+            }
+            if (covered >= amount || (long) pageNumber * MAX_CANDIDATES >= page.getTotalStatesAvailable()) {
+                break;
+            }
+            page = largestFirst(serviceHub, unlockedShards, ++pageNumber);
+            candidates = page.getStates();
+        }
+        if (covered < amount) {
+            release(combined);
+            throw new InsufficientBalanceException("The free token shards hold " + covered + " of the " + amount
+                    + " needed; the others are being spent by running transfers");
+        }
+        return combined;
+    }
+
+    private static Vault.Page<FungibleToken> largestFirst(ServiceHub serviceHub, QueryCriteria criteria, int pageNumber) {
+        Sort byAmount = new Sort(Collections.singletonList(new Sort.SortColumn(
+                new SortAttribute.Custom(PersistentFungibleToken.class, "amount"), Sort.Direction.DESC)));
+        return serviceHub.getVaultService().queryBy(FungibleToken.class, criteria,
+                new PageSpecification(pageNumber, MAX_CANDIDATES), byAmount);
+    }
+
+    /**
+     * Leases the given token states for a flow that respends them itself, rather than for a transfer.
+     * @return those of the states no other flow had leased, now leased; give them back with release
+     */
+    public List<StateRef> reserve(Collection<StateRef> refs) {
+        List<StateRef> reserved = new ArrayList<>(refs.size());
+        for (StateRef ref : refs) {
+            if (leased.add(ref)) {
+                reserved.add(ref);
+            }
+        }
+        return reserved;
+    }
+
+    /**
+     * Gives shards back, once the flow that leased them has spent them or failed.
+     * @param shards the shards returned by lease (may be null)
+     */
+    public void release(List<StateRef> shards) {
+        if (shards != null) {
+            leased.removeAll(shards);
+        }
+    }
+
+    /**
+     * @return query criteria that restrict coin selection to the leased shards, or null to select from everything
+     */
+    public static QueryCriteria onlyShards(List<StateRef> shards) {
+        if (shards == null) {
+            return null;
+        }
+        return new QueryCriteria.VaultQueryCriteria().withStateRefs(shards);
+    }
+
+    private static long quantity(StateAndRef<FungibleToken> token) {
+        return token.getState().getData().getAmount().getQuantity();
+    }
+}
@@ -0,0 +1,234 @@
+package net.corda.energy_cordapp;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.flows.FlowLogic;
+import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
+import net.corda.core.utilities.ProgressTracker;
+import net.corda.energy_cordapp.accountUtilities.CreateNewAccounts;
+import net.corda.energy_cordapp.accountUtilities.ShareAccountsTo;
+import net.corda.energy_cordapp.flows.A2ATokenTransferFlow;
+import net.corda.energy_cordapp.flows.EnergyTransferFlow;
+import net.corda.energy_cordapp.flows.IssueTokenFlow;
+import net.corda.energy_cordapp.flows.TokenShardFlow;
+import net.corda.testing.node.*;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// WHAT WE ARE MEASURING:
+//  * How many EnergyTransferFlow.SendEnergyTokens (grid to an OEM's account, with a sanctions body),
+//    or A2ATokenTransferFlow.SendEnergyTokens (account to account on the OEM's node), the MockNetwork sustains
+//  * The p50/p99/p999 latency of each flow, and of each step of its progress tracker
+//
+// This is not part of the test suite; run it with ./gradlew :workflows:benchmarkEnergyFlows, configured with
+//  -Pbenchmark.flow=energy|a2a        which flow to run (energy)
+//  -Pbenchmark.flows=N                how many flows to run after the warm-up (500)
+//  -Pbenchmark.warmup=N               how many flows to run first, unmeasured (50)
+//  -Pbenchmark.concurrency=N          how many flows are in flight at once (8)
+//  -Pbenchmark.accounts=N             how many accounts the flows are spread over (10)
+//  -Pbenchmark.fragments=N            how many token states the grid's float is split into, 0 for one (0)
+//  -Pbenchmark.shards=N               the tokenShards setting of the nodes, 0 for none (0)
+
+public class EnergyFlowBenchmark {
+    private static final long AMOUNT_PER_FLOW = 1;
+
+    private final String flow = System.getProperty("benchmark.flow", "energy");
+    private final int flows = Integer.getInteger("benchmark.flows", 500);
+    private final int warmup = Integer.getInteger("benchmark.warmup", 50);
+    private final int concurrency = Integer.getInteger("benchmark.concurrency", 8);
+    private final int accounts = Integer.getInteger("benchmark.accounts", 10);
+    private final int fragments = Integer.getInteger("benchmark.fragments", 0);
+    private final int shards = Integer.getInteger("benchmark.shards", 0);
+
+    private MockNetwork mockNetwork;
+    private StartedMockNode volkswagen;
+    private StartedMockNode grid;
+    private StartedMockNode parsedata;
+    private final List<String> accountNames = new ArrayList<>();
+
+    @Before
+    public void setup() throws Exception {
+        // a thread per node and automatic message delivery, so flows really run concurrently
+        mockNetwork = new MockNetwork(new MockNetworkParameters()
+                .withThreadPerNode(true)
+                .withNetworkSendManuallyPumped(false)
+                .withCordappsForAllNodes(ImmutableList.of(
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.contracts"),
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.flows")
+                                .withConfig(ImmutableMap.of("tokenShards", shards)),
+                        TestCordapp.findCordapp("net.corda.energy_cordapp.accountUtilities"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.contracts"),
+                        TestCordapp.findCordapp("com.r3.corda.lib.tokens.workflows")
+                )));
+        volkswagen = mockNetwork.createPartyNode(new CordaX500Name("Volkswagen", "Wolfsburg", "DE"));
+        grid = mockNetwork.createPartyNode(new CordaX500Name("Hydro One", "Toronto", "CA"));
+        parsedata = mockNetwork.createPartyNode(new CordaX500Name("Parsedata", "Toronto", "CA"));
+        volkswagen.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokens.class);
+        parsedata.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokens.class);
+        grid.registerInitiatedFlow(ShareAccountsTo.ReceiveSharedAccounts.class);
+
+        for (int i = 0; i < accounts; i++) {
+            accountNames.add("Benchmark car " + i);
+        }
+        volkswagen.startFlow(new CreateNewAccounts(accountNames)).get();
+        volkswagen.startFlow(new ShareAccountsTo(accountNames, Collections.singletonList(party(grid)))).get();
+
+        long float_ = (warmup + flows) * AMOUNT_PER_FLOW * 2;
+        parsedata.startFlow(new IssueTokenFlow(float_, party(grid))).get();
+        if (fragments > 1) {
+            grid.startFlow(new TokenShardFlow.Split(fragments)).get();
+        }
+        if (flow.equals("a2a")) {
+            // the accounts need tokens of their own to pay each other
+            long perAccount = float_ / accounts;
+            for (String account : accountNames) {
+                grid.startFlow(new EnergyTransferFlow.SendEnergyTokens(
+                        perAccount, account, party(parsedata), "funding", "")).get();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        mockNetwork.stopNodes();
+    }
+
+    @Test
+    public void benchmark() throws Exception {
+        System.out.printf("%s flows: %d warm-up + %d measured, concurrency %d, %d accounts, %d fragments, %d shards%n",
+                flow, warmup, flows, concurrency, accounts, fragments, shards);
+        run(warmup, null);
+
+        Recorder recorder = new Recorder();
+        long start = System.nanoTime();
+        int failures = run(flows, recorder);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("throughput: %.1f flows/s (%d flows in %.2f s, %d failed)%n",
+                (flows - failures) / seconds, flows, seconds, failures);
+        recorder.report();
+    }
+
+    /**
+     * Runs `count` flows, keeping at most `concurrency` in flight.
+     * @return the number of flows that failed
+     * @throws IllegalStateException if some flows are still running after an hour
+     */
+    private int run(int count, Recorder recorder) throws InterruptedException {
+        Semaphore inFlight = new Semaphore(concurrency);
+        CountDownLatch done = new CountDownLatch(count);
+        AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < count; i++) {
+            inFlight.acquire();
+            FlowLogic<?> logic = newFlow(i);
+            StartedMockNode node = flow.equals("a2a") ? volkswagen : grid;
+
+            // the top-level steps of the flow's progress tracker, as they are reached
+            ProgressTracker tracker = logic.getProgressTracker();
+            List<Object[]> steps = Collections.synchronizedList(new ArrayList<>());
+            if (tracker != null && recorder != null) {
+                tracker.getChanges().subscribe(change -> {
+                    if (change instanceof ProgressTracker.Change.Position && change.getProgressTracker() == tracker) {
+                        steps.add(new Object[]{((ProgressTracker.Change.Position) change).getNewStep().getLabel(),
+                                System.nanoTime()});
+                    }
+                });
+            }
+
+            long started = System.nanoTime();
+            CordaFuture<?> future = node.startFlow(logic);
+            future.then(it -> {
+                long finished = System.nanoTime();
+                try {
+                    it.get();
+                    if (recorder != null) {
+                        recorder.record("total", finished - started);
+                        recordSteps(recorder, steps, finished);
+                    }
+                } catch (Exception e) {
+                    failures.incrementAndGet();
+                } finally {
+                    inFlight.release();
+                    done.countDown();
+                }
+                return null;
+            });
+        }
+        if (!done.await(1, TimeUnit.HOURS)) {
+            // the timings of the flows that did finish would be reported as if they were all of them
+            throw new IllegalStateException(done.getCount() + " of " + count + " flows still running after an hour");
+        }
+        return failures.get();
+    }
+
+    private FlowLogic<?> newFlow(int i) {
+        String account = accountNames.get(i % accounts);
+        byte[] hash = ("benchmark session " + i).getBytes(StandardCharsets.UTF_8);
+        if (flow.equals("a2a")) {
+            String to = accountNames.get((i + 1) % accounts);
+            return new A2ATokenTransferFlow.SendEnergyTokens(to, account, AMOUNT_PER_FLOW);
+        }
+        return new EnergyTransferFlow.SendEnergyTokens(AMOUNT_PER_FLOW, account, party(parsedata), hash);
+    }
+
+    // a step lasts until the next step is reached, and the last one until the flow finishes
+    private static void recordSteps(Recorder recorder, List<Object[]> steps, long finished) {
+        synchronized (steps) {
+            for (int s = 0; s < steps.size(); s++) {
+                long end = s + 1 < steps.size() ? (long) steps.get(s + 1)[1] : finished;
+                recorder.record((String) steps.get(s)[0], end - (long) steps.get(s)[1]);
+            }
+        }
+    }
+
+    private static Party party(StartedMockNode node) {
+        return node.getInfo().getLegalIdentities().get(0);
+    }
+
+    /**
+     * Latency samples per flow step, in the order the steps were first reached.
+     */
+    private static class Recorder {
+        private final Map<String, List<Long>> samples = new ConcurrentHashMap<>();
+        private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+
+        void record(String step, long nanos) {
+            samples.computeIfAbsent(step, it -> {
+                order.add(it);
+                return Collections.synchronizedList(new ArrayList<>());
+            }).add(nanos);
+        }
+
+        void report() {
+            synchronized (order) {
+                for (String step : order) {
+                    List<Long> sorted;
+                    synchronized (samples.get(step)) {
+                        sorted = new ArrayList<>(samples.get(step));
+                    }
+                    Collections.sort(sorted);
+                    System.out.printf("  %-60s n=%-6d p50 %9.2f ms  p99 %9.2f ms  p999 %9.2f ms%n", step, sorted.size(),
+                            percentile(sorted, 0.50), percentile(sorted, 0.99), percentile(sorted, 0.999));
+                }
+            }
+        }
+
+        private static double percentile(List<Long> sorted, double p) {
+            int index = (int) Math.min(sorted.size() - 1, Math.ceil(p * sorted.size()) - 1);
+            return sorted.get(Math.max(0, index)) / 1e6;
+        }
+    }
+}
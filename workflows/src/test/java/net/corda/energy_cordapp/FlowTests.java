@@ -1,39 +1,84 @@
 package net.corda.energy_cordapp;
 
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.r3.corda.lib.accounts.workflows.services.AccountService;
 import com.r3.corda.lib.accounts.workflows.services.KeyManagementBackedAccountService;
 import com.r3.corda.lib.tokens.contracts.states.FungibleToken;
 import com.r3.corda.lib.tokens.selection.InsufficientBalanceException;
 import net.corda.core.concurrent.CordaFuture;
+import net.corda.core.crypto.SecureHash;
 import net.corda.core.contracts.StateAndRef;
+import net.corda.core.contracts.StateRef;
 import net.corda.core.flows.FlowException;
 import net.corda.core.identity.CordaX500Name;
+import net.corda.core.identity.Party;
 import net.corda.core.node.NetworkParameters;
+import net.corda.core.transactions.SignedTransaction;
+import net.corda.energy_cordapp.accountUtilities.AccountLookupService;
+import net.corda.energy_cordapp.accountUtilities.BalanceSheetEntry;
 import net.corda.energy_cordapp.accountUtilities.CreateNewAccount;
+import net.corda.energy_cordapp.accountUtilities.CreateNewAccounts;
 import net.corda.energy_cordapp.accountUtilities.GetAccountBalance;
+import net.corda.energy_cordapp.accountUtilities.GetBalanceSheet;
 import net.corda.energy_cordapp.accountUtilities.ShareAccountTo;
+import net.corda.energy_cordapp.accountUtilities.ShareAccountsTo;
 import net.corda.energy_cordapp.flows.A2ATokenTransferFlow;
 import net.corda.energy_cordapp.flows.EnergyTransferFlow;
+import net.corda.energy_cordapp.flows.FlowMetricsService;
+import net.corda.energy_cordapp.flows.GetFlowMetrics;
+import net.corda.energy_cordapp.flows.GetInteractionAnalytics;
+import net.corda.energy_cordapp.flows.InteractionAnalytics;
+import net.corda.energy_cordapp.flows.InteractionNettingService;
 import net.corda.energy_cordapp.flows.IssueTokenFlow;
+import net.corda.energy_cordapp.flows.GetSessionInclusionProof;
+import net.corda.energy_cordapp.flows.RecordInteractionFlow;
+import net.corda.energy_cordapp.flows.SessionAnchorFlow;
+import net.corda.energy_cordapp.flows.SessionInclusionProof;
+import net.corda.energy_cordapp.flows.TokenConsolidationFlow;
+import net.corda.energy_cordapp.flows.TokenShardFlow;
+import net.corda.energy_cordapp.flows.TokenShardService;
+import net.corda.energy_cordapp.states.InteractionBatchState;
+import net.corda.energy_cordapp.states.InteractionDataState;
 import net.corda.testing.node.*;
 import org.junit.*;
 import org.junit.rules.ExpectedException;
 
 import java.nio.charset.StandardCharsets;
 import java.time.Instant;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 
 import static org.hamcrest.CoreMatchers.instanceOf;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
 // WHAT WE ARE TESTING:
 //  * Accounts can be created on BMW's node
 //  * Account can be shared to Grid's node
+//  * Accounts are resolved from the AccountLookupService index once known
+//  * Accounts can be created and shared in bulk
 //  * Grid's node can be issued tokens
+//  * Balances are summed by the vault, per holder, account, token type and issuer
+//  * Fragmented token states can be consolidated without changing the balance
+//  * A node's float can be split into shards for sharded coin selection
+//  * Concurrent transfers with sharded coin selection each spend their own shards
 //  * Grid's node can send its tokens by EnergyTransferFlow.SendEnergyTokens to BMW's node
+//  * Grid's node can settle several sessions at once by EnergyTransferFlow.SendEnergyTokensBatch
+//  * Grid's node can net several recorded sessions into one settlement with InteractionNettingService
+//      (sessions whose settlement fails, or is no longer in flight, are settled by the next flush)
+//  * Transferred DLR is summed per grid, OEM and hour by GetInteractionAnalytics
+//  * Each step of an energy transfer is timed by FlowMetricsService and published by GetFlowMetrics
+//  * Grid's node can anchor many session hashes under one Merkle root, and prove any one of them was anchored
+//      (with or without the batch's root)
 //      * VW's node sees an increased balance of tokens
 //      * Grid's node sees a decreased balance of tokens
 //  * Account-to-account transaction cannot be performed from a non-existent account (appropriate error is thrown)
@@ -63,10 +108,17 @@ public class FlowTests {
 
     @Before
     public void setup() {
+        startNetwork(TestCordapp.findCordapp("net.corda.energy_cordapp.flows"));
+    }
+
+    /**
+     * @param flows the flows CorDapp, with the config the test needs
+     */
+    private void startNetwork(TestCordapp flows) {
         // need to include all these components of the cordapp explicitly to be loaded for testing
         mockNetwork = new MockNetwork(new MockNetworkParameters().withCordappsForAllNodes(ImmutableList.of(
                 TestCordapp.findCordapp("net.corda.energy_cordapp.contracts"),
-                TestCordapp.findCordapp("net.corda.energy_cordapp.flows"),
+                flows,
                 TestCordapp.findCordapp("net.corda.energy_cordapp.accountUtilities"),
                 TestCordapp.findCordapp("com.r3.corda.lib.accounts.contracts"),
                 TestCordapp.findCordapp("com.r3.corda.lib.accounts.workflows"),
@@ -83,6 +135,11 @@ public class FlowTests {
         volkswagen.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokens.class);
         parsedata.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokens.class);
         grid.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokens.class);
+        volkswagen.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokensBatch.class);
+        parsedata.registerInitiatedFlow(EnergyTransferFlow.ReceiveEnergyTokensBatch.class);
+        grid.registerInitiatedFlow(ShareAccountsTo.ReceiveSharedAccounts.class);
+        parsedata.registerInitiatedFlow(ShareAccountsTo.ReceiveSharedAccounts.class);
+        parsedata.registerInitiatedFlow(SessionAnchorFlow.ReceiveAnchoredSessions.class);
         mockNetwork.runNetwork();
     }
 
@@ -136,6 +193,53 @@ public class FlowTests {
         assert (accountService.accountsForHost(volkswagen.getInfo().getLegalIdentities().get(0)).size() != 0);
     }
 
+    /**
+     * Test creating several accounts at once with CreateNewAccounts and sharing them to two nodes with ShareAccountsTo
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void BulkAccountCreationAndSharing() throws ExecutionException, InterruptedException {
+        List<String> names = Arrays.asList("Batmobile", "Bluesmobile", "Ecto-1");
+
+        CordaFuture<Map<String, String>> created = volkswagen.startFlow(new CreateNewAccounts(names));
+        mockNetwork.runNetwork();
+        assertEquals(3, created.get().size());
+
+        volkswagen.startFlow(new ShareAccountsTo(names, Arrays.asList(
+                grid.getInfo().getLegalIdentities().get(0),
+                parsedata.getInfo().getLegalIdentities().get(0))));
+        mockNetwork.runNetwork();
+
+        // both nodes know all three accounts
+        Party host = volkswagen.getInfo().getLegalIdentities().get(0);
+        assertEquals(3, grid.getServices().cordaService(KeyManagementBackedAccountService.class)
+                .accountsForHost(host).size());
+        assertEquals(3, parsedata.getServices().cordaService(KeyManagementBackedAccountService.class)
+                .accountsForHost(host).size());
+    }
+
+    /**
+     * Test that repeated account lookups are served from the AccountLookupService index
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void AccountLookupCache() throws ExecutionException, InterruptedException {
+        volkswagen.startFlow(new CreateNewAccount("Batmobile"));
+        mockNetwork.runNetwork();
+
+        // look the account up twice by name
+        volkswagen.startFlow(new GetAccountBalance("Batmobile"));
+        volkswagen.startFlow(new GetAccountBalance("Batmobile"));
+        mockNetwork.runNetwork();
+
+        // at most the first lookup may go to the vault; the second must come from the index
+        AccountLookupService accountLookup = volkswagen.getServices().cordaService(AccountLookupService.class);
+        assert (accountLookup.getHits() >= 1);
+        assert (accountLookup.getHits() + accountLookup.getMisses() == 2);
+    }
+
     /**
      * Test the ability to issue tokens to a node using IssueTokenFlow
      * @throws ExecutionException
@@ -159,6 +263,205 @@ public class FlowTests {
         assertEquals(100, gridTokenStateAndRef.getState().getData().getAmount().getQuantity());
     }
 
+    /**
+     * Test that the balance sheet splits the node's tokens between the node itself and its accounts
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void BalanceSheetTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        grid.startFlow(new EnergyTransferFlow.SendEnergyTokens(
+                30,
+                batmobile,
+                parsedata.getInfo().getLegalIdentities().get(0),
+                "sample hash".getBytes(StandardCharsets.UTF_8),
+                ""
+        ));
+        mockNetwork.runNetwork();
+
+        // the OEM node only holds the account's tokens
+        CordaFuture<List<BalanceSheetEntry>> future = volkswagen.startFlow(new GetBalanceSheet());
+        mockNetwork.runNetwork();
+        long accountTotal = 0;
+        for (BalanceSheetEntry entry : future.get()) {
+            if (batmobile.equals(entry.getAccountName())) {
+                accountTotal += entry.getAmount();
+            }
+        }
+        assertEquals(30, accountTotal);
+        assertEquals(30, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+    }
+
+    /**
+     * Test that TokenConsolidationFlow merges a fragmented node balance into a single state
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void ConsolidationTest() throws ExecutionException, InterruptedException {
+        // five issuances leave the grid with five token states
+        for (int i = 0; i < 5; i++) {
+            parsedata.startFlow(new IssueTokenFlow((long) 10, grid.getInfo().getLegalIdentities().get(0)));
+            mockNetwork.runNetwork();
+        }
+
+        CordaFuture<TokenConsolidationFlow.ConsolidationReport> future
+                = grid.startFlow(new TokenConsolidationFlow.Consolidate(2));
+        mockNetwork.runNetwork();
+
+        TokenConsolidationFlow.ConsolidationReport report = future.get();
+        assertEquals(5, report.getStatesBefore());
+        assertEquals(1, report.getStatesAfter());
+        List<StateAndRef<FungibleToken>> tokens = grid.getServices().getVaultService()
+                .queryBy(FungibleToken.class).getStates();
+        assertEquals(1, tokens.size());
+        assertEquals(50, tokens.get(0).getState().getData().getAmount().getQuantity());
+    }
+
+    /**
+     * Test issuing tokens to several nodes in one transaction using IssueTokenFlow
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void BatchIssueTokensTest() throws ExecutionException, InterruptedException {
+        LinkedHashMap<Party, Long> amounts = new LinkedHashMap<>();
+        amounts.put(grid.getInfo().getLegalIdentities().get(0), 100L);
+        amounts.put(volkswagen.getInfo().getLegalIdentities().get(0), 40L);
+
+        CordaFuture<SignedTransaction> future = parsedata.startFlow(new IssueTokenFlow(amounts));
+        mockNetwork.runNetwork();
+
+        // both recipients are issued by the same transaction
+        assertEquals(2, future.get().getTx().outputsOfType(FungibleToken.class).size());
+        assertEquals(100, grid.getServices().getVaultService().queryBy(FungibleToken.class).getStates()
+                .get(0).getState().getData().getAmount().getQuantity());
+        assertEquals(40, volkswagen.getServices().getVaultService().queryBy(FungibleToken.class).getStates()
+                .get(0).getState().getData().getAmount().getQuantity());
+    }
+
+    /**
+     * Test that TokenShardFlow.Split divides the node's float into equal shards
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void SplitIntoShardsTest() throws ExecutionException, InterruptedException {
+        parsedata.startFlow(new IssueTokenFlow((long) 102, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        grid.startFlow(new TokenShardFlow.Split(4));
+        mockNetwork.runNetwork();
+
+        // 102 split four ways is 26, 26, 25, 25
+        List<StateAndRef<FungibleToken>> tokens = grid.getServices().getVaultService()
+                .queryBy(FungibleToken.class).getStates();
+        assertEquals(4, tokens.size());
+        long total = 0;
+        for (StateAndRef<FungibleToken> token : tokens) {
+            long quantity = token.getState().getData().getAmount().getQuantity();
+            assert (quantity == 25 || quantity == 26);
+            total += quantity;
+        }
+        assertEquals(102, total);
+    }
+
+    /**
+     * Test that concurrent transfers with sharded coin selection each spend their own shards and all succeed,
+     * including one that needs several shards
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void ShardedTokenSendTest() throws ExecutionException, InterruptedException {
+        mockNetwork.stopNodes();
+        startNetwork(TestCordapp.findCordapp("net.corda.energy_cordapp.flows")
+                .withConfig(ImmutableMap.of("tokenShards", 4)));
+        final String batmobile = "Batmobile";
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+        grid.startFlow(new TokenShardFlow.Split(4));
+        mockNetwork.runNetwork();
+
+        // started together, so each leases its shard while the others hold theirs
+        List<CordaFuture<SignedTransaction>> transfers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            transfers.add(grid.startFlow(new EnergyTransferFlow.SendEnergyTokens(20, batmobile,
+                    parsedata.getInfo().getLegalIdentities().get(0), "sharded hash " + i)));
+        }
+        mockNetwork.runNetwork();
+        for (CordaFuture<SignedTransaction> transfer : transfers) {
+            transfer.get();
+        }
+        TokenShardService tokenShards = grid.getServices().cordaService(TokenShardService.class);
+        assertEquals(0, tokenShards.leasedCount());
+
+        // every shard is down to 5, so 15 takes three of them
+        CordaFuture<SignedTransaction> combined = grid.startFlow(new EnergyTransferFlow.SendEnergyTokens(15, batmobile,
+                parsedata.getInfo().getLegalIdentities().get(0), "combined shards hash"));
+        mockNetwork.runNetwork();
+        combined.get();
+        assertEquals(95, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+    }
+
+    /**
+     * Test that with sharded coin selection, consolidation evens the float out instead of merging it,
+     * and leaves a shard a transfer has leased alone
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void ShardedConsolidationTest() throws ExecutionException, InterruptedException {
+        mockNetwork.stopNodes();
+        startNetwork(TestCordapp.findCordapp("net.corda.energy_cordapp.flows")
+                .withConfig(ImmutableMap.of("tokenShards", 4)));
+        Party gridParty = grid.getInfo().getLegalIdentities().get(0);
+        parsedata.startFlow(new IssueTokenFlow((long) 100, gridParty));
+        mockNetwork.runNetwork();
+        grid.startFlow(new TokenShardFlow.Split());
+        mockNetwork.runNetwork();
+        // a top-up arrives as a fifth, smaller state
+        parsedata.startFlow(new IssueTokenFlow((long) 10, gridParty));
+        mockNetwork.runNetwork();
+
+        // as if a transfer had leased one of the shards and not spent it yet
+        TokenShardService tokenShards = grid.getServices().cordaService(TokenShardService.class);
+        StateRef leased = grid.getServices().getVaultService().queryBy(FungibleToken.class).getStates().stream()
+                .filter(token -> token.getState().getData().getAmount().getQuantity() == 25)
+                .findFirst().get().getRef();
+        assertEquals(1, tokenShards.reserve(Collections.singletonList(leased)).size());
+
+        CordaFuture<TokenConsolidationFlow.ConsolidationReport> future
+                = grid.startFlow(new TokenConsolidationFlow.ConsolidateAll(2));
+        mockNetwork.runNetwork();
+        assertEquals(4, future.get().getStatesBefore());
+        assertEquals(3, future.get().getStatesAfter());
+
+        // the other 85 are split three ways, so with the leased shard the float is four states again
+        List<StateAndRef<FungibleToken>> tokens = grid.getServices().getVaultService()
+                .queryBy(FungibleToken.class).getStates();
+        assertEquals(4, tokens.size());
+        assertTrue(tokens.stream().anyMatch(token -> token.getRef().equals(leased)));
+        long total = 0;
+        for (StateAndRef<FungibleToken> token : tokens) {
+            total += token.getState().getData().getAmount().getQuantity();
+        }
+        assertEquals(110, total);
+        tokenShards.release(Collections.singletonList(leased));
+    }
+
     /**
      * Test EnergyTransferFlow from a node to an account on a different node
      * @throws ExecutionException
@@ -392,4 +695,369 @@ public class FlowTests {
         // ensure that the account balance matches what is expected
         assertEquals(40, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
     }
-}
\ No newline at end of file
+
+    /**
+     * Test EnergyTransferFlow.SendEnergyTokensBatch settling several sessions, for two accounts, in one transaction
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void batchTokenSendTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+        final String gordon = "GordonsCar";
+
+        // create and share both accounts with the grid
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        volkswagen.startFlow(new CreateNewAccount(gordon));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        volkswagen.startFlow(new ShareAccountTo(gordon, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        // three sessions, two of them for the same account
+        CordaFuture<SignedTransaction> future = grid.startFlow(new EnergyTransferFlow.SendEnergyTokensBatch(
+                Arrays.asList(
+                        new EnergyTransferFlow.TransferEntry(batmobile, 10,
+                                "first hash".getBytes(StandardCharsets.UTF_8), ""),
+                        new EnergyTransferFlow.TransferEntry(gordon, 15,
+                                "second hash".getBytes(StandardCharsets.UTF_8), "note"),
+                        new EnergyTransferFlow.TransferEntry(batmobile, 5,
+                                "third hash".getBytes(StandardCharsets.UTF_8), "")
+                ),
+                parsedata.getInfo().getLegalIdentities().get(0)
+        ));
+        mockNetwork.runNetwork();
+
+        // one InteractionDataState output per session, all in the same transaction
+        assertEquals(3, future.get().getTx().outputsOfType(InteractionDataState.class).size());
+        assertEquals(15, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+        assertEquals(15, volkswagen.startFlow(new GetAccountBalance(gordon)).get().intValue());
+    }
+
+    /**
+     * Test that a batch whose amounts overflow a long is refused before any tokens are selected
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void batchTokenSendOverflowTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        // each amount is positive, but their sum would wrap round to a small one the grid could cover
+        CordaFuture<SignedTransaction> future = grid.startFlow(new EnergyTransferFlow.SendEnergyTokensBatch(
+                Arrays.asList(
+                        new EnergyTransferFlow.TransferEntry(batmobile, Long.MAX_VALUE,
+                                "first hash".getBytes(StandardCharsets.UTF_8), ""),
+                        new EnergyTransferFlow.TransferEntry(batmobile, Long.MAX_VALUE,
+                                "second hash".getBytes(StandardCharsets.UTF_8), ""),
+                        new EnergyTransferFlow.TransferEntry(batmobile, 10,
+                                "third hash".getBytes(StandardCharsets.UTF_8), "")
+                ),
+                parsedata.getInfo().getLegalIdentities().get(0)
+        ));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        future.get();
+    }
+
+    /**
+     * Test that interactions recorded for netting are settled as one net payment per account,
+     * with every session still provable on its own
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void nettedTokenSendTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        // record three small sessions; nothing is settled yet
+        recordSessions(batmobile, 3);
+        InteractionNettingService nettingService = grid.getServices().cordaService(InteractionNettingService.class);
+        assertEquals(3, grid.transaction(nettingService::pendingSessions).intValue());
+
+        // closing the window settles all three sessions in one transaction
+        CordaFuture<Integer> settled = nettingService.flush();
+        mockNetwork.runNetwork();
+        assertEquals(1, settled.get().intValue());
+
+        assertEquals(0, grid.transaction(nettingService::pendingSessions).intValue());
+        assertEquals(6, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+        assertEquals(1, volkswagen.getServices().getVaultService()
+                .queryBy(InteractionDataState.class).getStates().size());
+
+        // the settlement anchors each session, so each one can still be proven
+        byte[] root = grid.getServices().getVaultService().queryBy(InteractionBatchState.class)
+                .getStates().get(0).getState().getData().getMerkleRoot();
+        for (int i = 0; i < 3; i++) {
+            CordaFuture<SessionInclusionProof> proof = grid.startFlow(
+                    new GetSessionInclusionProof(SecureHash.sha256("session " + i).getBytes(), root));
+            mockNetwork.runNetwork();
+            assertTrue(proof.get().verify());
+        }
+    }
+
+    /**
+     * Test that sessions whose netted settlement fails stay recorded, and are settled by the next flush
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void nettedSettlementRetryTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 5, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        // the grid holds too few tokens to pay for the sessions
+        recordSessions(batmobile, 3);
+        InteractionNettingService nettingService = grid.getServices().cordaService(InteractionNettingService.class);
+        CordaFuture<Integer> failed = nettingService.flush();
+        mockNetwork.runNetwork();
+        assertEquals(0, failed.get().intValue());
+        assertEquals(3, grid.transaction(nettingService::pendingSessions).intValue());
+        assertEquals(0, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+
+        // once it can, the next flush pays for them
+        parsedata.startFlow(new IssueTokenFlow((long) 10, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+        CordaFuture<Integer> settled = nettingService.flush();
+        mockNetwork.runNetwork();
+        assertEquals(1, settled.get().intValue());
+        assertEquals(0, grid.transaction(nettingService::pendingSessions).intValue());
+        assertEquals(6, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+    }
+
+    /**
+     * Test that sessions claimed by a settlement that is no longer in flight are settled by the next flush
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void nettedAbandonedClaimTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 10, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        // as if a settlement had claimed the sessions, then been killed
+        recordSessions(batmobile, 3);
+        grid.transaction(() -> {
+            grid.getServices().withEntityManager(entityManager -> {
+                entityManager.createQuery("UPDATE PendingNettedSession s SET s.settlement = :settlement")
+                        .setParameter("settlement", UUID.randomUUID().toString())
+                        .executeUpdate();
+            });
+            return null;
+        });
+
+        InteractionNettingService nettingService = grid.getServices().cordaService(InteractionNettingService.class);
+        CordaFuture<Integer> settled = nettingService.flush();
+        mockNetwork.runNetwork();
+        assertEquals(1, settled.get().intValue());
+        assertEquals(0, grid.transaction(nettingService::pendingSessions).intValue());
+        assertEquals(6, volkswagen.startFlow(new GetAccountBalance(batmobile)).get().intValue());
+    }
+
+    private void recordSessions(String whereTo, int count) throws ExecutionException, InterruptedException {
+        List<CordaFuture<Integer>> recorded = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            recorded.add(grid.startFlow(new RecordInteractionFlow(
+                    2,
+                    whereTo,
+                    parsedata.getInfo().getLegalIdentities().get(0),
+                    SecureHash.sha256("session " + i).getBytes()
+            )));
+        }
+        mockNetwork.runNetwork();
+        for (CordaFuture<Integer> future : recorded) {
+            future.get();
+        }
+    }
+
+    /**
+     * Test that GetInteractionAnalytics sums the transferred DLR per grid and OEM and per hour
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void interactionAnalyticsTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+        final String gordon = "GordonsCar";
+        Instant start = Instant.now().minusSeconds(60);
+
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        volkswagen.startFlow(new CreateNewAccount(gordon));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        volkswagen.startFlow(new ShareAccountTo(gordon, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+
+        grid.startFlow(new EnergyTransferFlow.SendEnergyTokensBatch(
+                Arrays.asList(
+                        new EnergyTransferFlow.TransferEntry(batmobile, 10,
+                                "first hash".getBytes(StandardCharsets.UTF_8), ""),
+                        new EnergyTransferFlow.TransferEntry(gordon, 15,
+                                "second hash".getBytes(StandardCharsets.UTF_8), "")
+                ),
+                parsedata.getInfo().getLegalIdentities().get(0)
+        ));
+        mockNetwork.runNetwork();
+
+        // both sessions are between the same grid and OEM, in the first hour of the range
+        CordaFuture<InteractionAnalytics> future = grid.startFlow(new GetInteractionAnalytics(
+                start, start.plusSeconds(7200), 3600, true, true));
+        mockNetwork.runNetwork();
+        InteractionAnalytics analytics = future.get();
+
+        assertEquals(1, analytics.getSeries().size());
+        InteractionAnalytics.Series series = analytics.getSeries().get(0);
+        assertEquals(grid.getInfo().getLegalIdentities().get(0).getName().toString(), series.getGrid());
+        assertEquals(Arrays.asList(0L), series.getBuckets());
+        assertEquals(Arrays.asList(25L), series.getAmounts());
+        assertEquals(Arrays.asList(2L), series.getSessions());
+    }
+
+    /**
+     * Test that FlowMetricsService times every step of an energy transfer, and GetFlowMetrics publishes the timings
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void flowMetricsTest() throws ExecutionException, InterruptedException {
+        final String batmobile = "Batmobile";
+        volkswagen.startFlow(new CreateNewAccount(batmobile));
+        mockNetwork.runNetwork();
+        volkswagen.startFlow(new ShareAccountTo(batmobile, grid.getInfo().getLegalIdentities().get(0)));
+        parsedata.startFlow(new IssueTokenFlow((long) 100, grid.getInfo().getLegalIdentities().get(0)));
+        mockNetwork.runNetwork();
+        grid.startFlow(new EnergyTransferFlow.SendEnergyTokens(10, batmobile,
+                parsedata.getInfo().getLegalIdentities().get(0), "metrics hash"));
+        mockNetwork.runNetwork();
+
+        FlowMetricsService metrics = grid.getServices().cordaService(FlowMetricsService.class);
+        Map<String, Long> counts = metrics.getCounts();
+        assertEquals(Long.valueOf(1), counts.get("EnergyTransferFlow.SendEnergyTokens/succeeded"));
+        assertEquals(Long.valueOf(0), counts.get("EnergyTransferFlow.SendEnergyTokens/running"));
+        Map<String, Double> latencies = metrics.getLatencies();
+        for (String step : Arrays.asList("RETRIEVING_DATA", "GENERATING_TRANSACTION", "VERIFYING_TRANSACTION",
+                "SIGNING_TRANSACTION", "GATHERING_SIGS", "FINALISING_TRANSACTION", "total")) {
+            assertEquals(step, 1.0, latencies.get("EnergyTransferFlow.SendEnergyTokens/" + step + "/count"), 0);
+        }
+
+        CordaFuture<String> future = grid.startFlow(new GetFlowMetrics());
+        mockNetwork.runNetwork();
+        String text = future.get();
+        assertTrue(text.contains("energy_flow_step_seconds_count{flow=\"EnergyTransferFlow.SendEnergyTokens\",step=\"GATHERING_SIGS\"} 1"));
+        assertTrue(text.contains("energy_flows_total{flow=\"EnergyTransferFlow.SendEnergyTokens\",outcome=\"succeeded\"} 1"));
+    }
+
+    /**
+     * Test that a batch of session hashes anchored by SessionAnchorFlow.AnchorSessions reaches both parties,
+     * and that GetSessionInclusionProof proves the inclusion of each session on either node
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void sessionAnchorTest() throws ExecutionException, InterruptedException {
+        List<byte[]> sessionHashes = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            sessionHashes.add(SecureHash.sha256("session " + i).getBytes());
+        }
+        CordaFuture<SignedTransaction> future = grid.startFlow(new SessionAnchorFlow.AnchorSessions(sessionHashes,
+                parsedata.getInfo().getLegalIdentities().get(0), "October sessions"));
+        mockNetwork.runNetwork();
+        SignedTransaction anchored = future.get();
+
+        for (StartedMockNode node : Arrays.asList(grid, parsedata)) {
+            List<StateAndRef<InteractionBatchState>> batches =
+                    node.getServices().getVaultService().queryBy(InteractionBatchState.class).getStates();
+            assertEquals(1, batches.size());
+            InteractionBatchState batch = batches.get(0).getState().getData();
+            assertEquals(10, batch.getLeafCount());
+
+            for (byte[] sessionHash : sessionHashes) {
+                CordaFuture<SessionInclusionProof> proof =
+                        node.startFlow(new GetSessionInclusionProof(sessionHash, batch.getMerkleRoot()));
+                mockNetwork.runNetwork();
+                assertTrue(proof.get().verify());
+                assertArrayEquals(batch.getMerkleRoot(), proof.get().getMerkleRoot());
+                assertEquals(anchored.getId(), proof.get().getTransactionId());
+            }
+        }
+
+        byte[] root = grid.getServices().getVaultService().queryBy(InteractionBatchState.class)
+                .getStates().get(0).getState().getData().getMerkleRoot();
+        CordaFuture<SessionInclusionProof> missing =
+                grid.startFlow(new GetSessionInclusionProof(SecureHash.sha256("unanchored session").getBytes(), root));
+        mockNetwork.runNetwork();
+        assertNull(missing.get());
+
+        // without the session index, the root can't be left out
+        CordaFuture<SessionInclusionProof> withoutRoot =
+                grid.startFlow(new GetSessionInclusionProof(sessionHashes.get(0), null));
+        mockNetwork.runNetwork();
+
+        exception.expectCause(instanceOf(FlowException.class));
+        withoutRoot.get();
+    }
+
+    /**
+     * Test that GetSessionInclusionProof finds a session's batch among several without being given its root,
+     * on nodes keeping the session index
+     * @throws ExecutionException
+     * @throws InterruptedException
+     */
+    @Test
+    public void sessionProofWithoutRootTest() throws ExecutionException, InterruptedException {
+        mockNetwork.stopNodes();
+        startNetwork(TestCordapp.findCordapp("net.corda.energy_cordapp.flows")
+                .withConfig(ImmutableMap.of("sessionIndex", true)));
+        List<SignedTransaction> anchored = new ArrayList<>();
+        for (int batch = 0; batch < 3; batch++) {
+            List<byte[]> sessionHashes = new ArrayList<>();
+            for (int i = 0; i < 50; i++) {
+                sessionHashes.add(SecureHash.sha256("batch " + batch + " session " + i).getBytes());
+            }
+            CordaFuture<SignedTransaction> future = grid.startFlow(new SessionAnchorFlow.AnchorSessions(sessionHashes,
+                    parsedata.getInfo().getLegalIdentities().get(0), "batch " + batch));
+            mockNetwork.runNetwork();
+            anchored.add(future.get());
+        }
+
+        CordaFuture<SessionInclusionProof> missing =
+                grid.startFlow(new GetSessionInclusionProof(SecureHash.sha256("unanchored session").getBytes(), null));
+        mockNetwork.runNetwork();
+        assertNull(missing.get());
+
+        for (StartedMockNode node : Arrays.asList(grid, parsedata)) {
+            for (int batch = 0; batch < 3; batch++) {
+                CordaFuture<SessionInclusionProof> proof = node.startFlow(new GetSessionInclusionProof(
+                        SecureHash.sha256("batch " + batch + " session 7").getBytes(), null));
+                mockNetwork.runNetwork();
+                assertTrue(proof.get().verify());
+                assertEquals(50, proof.get().getLeafCount());
+                assertEquals(anchored.get(batch).getId(), proof.get().getTransactionId());
+            }
+        }
+    }
+}